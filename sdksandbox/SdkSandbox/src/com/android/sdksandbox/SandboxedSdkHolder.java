@@ -16,24 +16,42 @@
 
 package com.android.sdksandbox;
 
+import android.app.sdksandbox.ISdkChannel;
+import android.app.sdksandbox.LatencyHistogram;
 import android.app.sdksandbox.SandboxedSdkContext;
 import android.app.sdksandbox.SandboxedSdkProvider;
+import android.app.sdksandbox.SdkChannel;
+import android.app.sdksandbox.SdkSandboxTrace;
 import android.content.Context;
 import android.hardware.display.DisplayManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
+import android.view.Display;
 import android.view.SurfaceControlViewHost;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 
+import com.android.internal.annotations.GuardedBy;
+
 import java.io.PrintWriter;
 import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A holder for loaded code.
@@ -41,38 +59,137 @@ import java.util.Random;
 class SandboxedSdkHolder {
 
     private static final String TAG = "SdkSandbox";
+    private static final long INIT_THREAD_KEEP_ALIVE_SECONDS = 10;
+    private static final int DEFAULT_SURFACE_PACKAGE_SIZE = 500;
+    // Default upper bound on live surface packages per sdk; the least recently used one is
+    // released when an sdk goes past it.
+    private static final int MAX_SURFACE_PACKAGES = 16;
+    // Rough cost of a surface buffer per pixel, assuming RGBA_8888.
+    private static final int BYTES_PER_PIXEL = 4;
 
     private boolean mInitialized = false;
     private ISdkSandboxToSdkSandboxManagerCallback mCallback;
-    private SandboxedSdkProvider mSdk;
+    private volatile SandboxedSdkProvider mSdk;
     private Context mContext;
+    private ClassLoader mClassLoader;
+    private SdkResourceUsage mUsage;
+    private int mMaxSurfacePackages = MAX_SURFACE_PACKAGES;
 
     private DisplayManager mDisplayManager;
     private final Random mRandom = new SecureRandom();
-    private final SparseArray<SurfaceControlViewHost.SurfacePackage> mSurfacePackages =
-            new SparseArray<>();
+    // Live surface packages by id, eldest first. Their last use is only ordered on eviction, as
+    // it is updated on every frame.
+    @GuardedBy("mSurfacePackages")
+    private final LinkedHashMap<Integer, SurfacePackageRecord> mSurfacePackages =
+            new LinkedHashMap<>();
+    @GuardedBy("mSurfacePackages")
+    private long mSurfacePackageBytes = 0;
+    @GuardedBy("mSurfacePackages")
+    private int mEvictedSurfacePackages = 0;
+
+    // Window contexts are created once per display and shared by all surface packages on it.
+    @GuardedBy("mWindowContexts")
+    private final SparseArray<Context> mWindowContexts = new SparseArray<>();
+    // Views inflated ahead of requests, or recycled from released surface packages, per display.
+    @GuardedBy("mSpareViews")
+    private final SparseArray<ArrayDeque<View>> mSpareViews = new SparseArray<>();
+    private volatile int mPreInflateViews = 0;
+    private int mPreInflateDisplayId = Display.INVALID_DISPLAY;
+
+    private final LatencyHistogram mSurfacePackageLatency =
+            new LatencyHistogram("surfacePackage");
 
-    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Hosts the views of the sdk: the main looper, or a looper of the sdk's own if it opted in.
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mLooperThread;
+    // Runs the callbacks of the sdk that are not tied to a binder call, on the same looper.
+    private Executor mSdkExecutor;
+    private SdkWatchdog mWatchdog;
+    private String mSdkProviderClassName;
 
     void init(Context context, Bundle params,
             ISdkSandboxToSdkSandboxManagerCallback callback,
             String sdkProviderClassName, ClassLoader loader,
-            SandboxedSdkContext sandboxedSdkContext) {
+            SandboxedSdkContext sandboxedSdkContext, SdkWatchdog watchdog) {
+        final boolean traced = SdkSandboxTrace.beginSection(
+                "SandboxedSdkHolder#init", SdkSandboxTrace.getRequestId(params));
+        try {
+            initTraced(context, params, callback, sdkProviderClassName, loader,
+                    sandboxedSdkContext, watchdog);
+        } finally {
+            SdkSandboxTrace.endSection(traced);
+        }
+    }
+
+    private void initTraced(Context context, Bundle params,
+            ISdkSandboxToSdkSandboxManagerCallback callback,
+            String sdkProviderClassName, ClassLoader loader,
+            SandboxedSdkContext sandboxedSdkContext, SdkWatchdog watchdog) {
         if (mInitialized) {
             throw new IllegalStateException("Already initialized!");
         }
         mInitialized = true;
         mCallback = callback;
         mContext = context;
+        mClassLoader = loader;
+        mWatchdog = watchdog;
+        mSdkProviderClassName = sdkProviderClassName;
         mDisplayManager = mContext.getSystemService(DisplayManager.class);
+        mPreInflateViews = params.getInt(SdkSandboxServiceImpl.PRE_INFLATE_VIEWS_KEY, 0);
+        mPreInflateDisplayId = params.getInt(
+                SdkSandboxServiceImpl.PRE_INFLATE_DISPLAY_ID_KEY, Display.INVALID_DISPLAY);
+        mUsage = new SdkResourceUsage(params.getLong(
+                ISdkSandboxToSdkSandboxManagerCallback.QUOTA_CALLBACK_TIME_MS_PER_MINUTE_KEY, 0));
+        final int surfacePackagesQuota = params.getInt(
+                ISdkSandboxToSdkSandboxManagerCallback.QUOTA_SURFACE_PACKAGES_KEY, 0);
+        if (surfacePackagesQuota > 0) {
+            mMaxSurfacePackages = surfacePackagesQuota;
+        }
+        if (params.getBoolean(SdkSandboxServiceImpl.DEDICATED_LOOPER_KEY, false)) {
+            // A slow sdk then only stalls its own views, not those of the other sdks.
+            mLooperThread = new HandlerThread("Sdk:" + sdkProviderClassName);
+            mLooperThread.start();
+            mHandler = new Handler(mLooperThread.getLooper());
+            mSdkExecutor = mHandler::post;
+        } else {
+            mSdkExecutor = mContext.getMainExecutor();
+        }
+        if (params.getBoolean(SdkSandboxServiceImpl.INIT_IN_BACKGROUND_KEY, false)) {
+            // Sdks initialize in parallel, each on a thread of its own, so that they neither
+            // wait for each other nor for the main thread which hosts the views.
+            final Executor initExecutor = createInitExecutor(sdkProviderClassName);
+            initExecutor.execute(() -> initSdk(params, sdkProviderClassName, loader,
+                    sandboxedSdkContext, initExecutor));
+        } else if (mLooperThread != null) {
+            mHandler.post(() -> initSdk(params, sdkProviderClassName, loader,
+                    sandboxedSdkContext, mSdkExecutor));
+        } else {
+            initSdk(params, sdkProviderClassName, loader, sandboxedSdkContext, mSdkExecutor);
+        }
+    }
+
+    private void initSdk(Bundle params, String sdkProviderClassName, ClassLoader loader,
+            SandboxedSdkContext sandboxedSdkContext, Executor executor) {
+        final long startTimeMillis = SystemClock.elapsedRealtime();
+        // The heap is shared by all sdks, so its growth while the sdk initializes is only an
+        // estimate of what the sdk allocated.
+        final long startHeapBytes = getUsedHeapBytes();
+        final SdkCallback sdkCallback = startSdkCallback("initSdk");
+        final boolean traced = SdkSandboxTrace.beginSection(
+                "SandboxedSdkHolder#initSdk", SdkSandboxTrace.getRequestId(params));
         try {
             Class<?> clz = Class.forName(sdkProviderClassName, true, loader);
             mSdk = (SandboxedSdkProvider) clz.getConstructor().newInstance();
-            mSdk.initSdk(sandboxedSdkContext, params, mContext.getMainExecutor(),
+            mSdk.initSdk(sandboxedSdkContext, params, executor,
                     new SandboxedSdkProvider.InitSdkCallback() {
                         @Override
                         public void onInitSdkFinished(Bundle extraParams) {
-                            sendLoadSdkSuccess();
+                            mUsage.setInitHeapBytes(getUsedHeapBytes() - startHeapBytes);
+                            sendLoadSdkSuccess(SystemClock.elapsedRealtime() - startTimeMillis);
+                            if (mPreInflateViews > 0
+                                    && mPreInflateDisplayId != Display.INVALID_DISPLAY) {
+                                mHandler.post(() -> preInflateViews(mPreInflateDisplayId));
+                            }
                         }
 
                         @Override
@@ -86,18 +203,229 @@ class SandboxedSdkHolder {
             sendLoadSdkError("Could not instantiate SandboxedSdkProvider: " + e);
         } catch (Throwable e) {
             sendLoadSdkError("Error thrown during init: " + e);
+        } finally {
+            SdkSandboxTrace.endSection(traced);
+            finishSdkCallback(sdkCallback);
         }
     }
 
+    private static long getUsedHeapBytes() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Starts accounting for and watching a callback into the sdk. */
+    private SdkCallback startSdkCallback(String callbackName) {
+        return new SdkCallback(mUsage.onCallbackStarted(),
+                mWatchdog.start(mSdkProviderClassName, callbackName, mUsage));
+    }
+
+    /** Accounts for a callback into the sdk, and reports the sdk if it went over its quota. */
+    private void finishSdkCallback(SdkCallback sdkCallback) {
+        mWatchdog.stop(sdkCallback.mWatch);
+        if (mUsage.onCallbackFinished(sdkCallback.mThreadTimeMs)) {
+            Log.w(TAG, "Sdk went over its quota of " + mUsage.getCallbackTimeQuotaMs()
+                    + " ms in callbacks per minute, throttling it");
+            sendResourceUsage();
+        }
+    }
+
+    private void sendResourceUsage() {
+        final Bundle usage = new Bundle();
+        mUsage.writeTo(usage);
+        synchronized (mSurfacePackages) {
+            usage.putInt(ISdkSandboxToSdkSandboxManagerCallback.USAGE_SURFACE_PACKAGES_KEY,
+                    mSurfacePackages.size());
+            usage.putLong(ISdkSandboxToSdkSandboxManagerCallback.USAGE_SURFACE_PACKAGE_BYTES_KEY,
+                    mSurfacePackageBytes);
+            usage.putInt(
+                    ISdkSandboxToSdkSandboxManagerCallback.USAGE_EVICTED_SURFACE_PACKAGES_KEY,
+                    mEvictedSurfacePackages);
+        }
+        try {
+            mCallback.onResourceUsage(usage);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Could not send onResourceUsage: " + e);
+        }
+    }
+
+    private static Executor createInitExecutor(String sdkProviderClassName) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                INIT_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "SdkInit:" + sdkProviderClassName));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** Returns the class loader the sdk was loaded with. */
+    ClassLoader getClassLoader() {
+        return mClassLoader;
+    }
+
     void dump(PrintWriter writer) {
         writer.print("mInitialized: " + mInitialized);
         final String sdkClass = mSdk == null ? "null" : mSdk.getClass().getName();
         writer.println(" mSdk class: " + sdkClass);
+        synchronized (mSurfacePackages) {
+            writer.printf("Surface packages: %d, estimated memory: %d bytes, evicted: %d",
+                    mSurfacePackages.size(), mSurfacePackageBytes, mEvictedSurfacePackages);
+            writer.println();
+        }
+        mSurfacePackageLatency.dump(writer);
+        if (mUsage != null) {
+            mUsage.dump(writer);
+        }
+    }
+
+    /** Returns the window context to host views on {@code displayId}, creating it once. */
+    private Context getWindowContext(int displayId) {
+        synchronized (mWindowContexts) {
+            Context windowContext = mWindowContexts.get(displayId);
+            if (windowContext == null) {
+                Context displayContext = mContext.createDisplayContext(
+                        mDisplayManager.getDisplay(displayId));
+                // TODO(b/209009304): Support other window contexts?
+                windowContext = displayContext.createWindowContext(
+                        WindowManager.LayoutParams.TYPE_APPLICATION_PANEL, null);
+                mWindowContexts.put(displayId, windowContext);
+            }
+            return windowContext;
+        }
+    }
+
+    /** Tops up the spare views of {@code displayId} to the number the sdk asked for. */
+    private void preInflateViews(int displayId) {
+        try {
+            final Context windowContext = getWindowContext(displayId);
+            while (getSpareViewCount(displayId) < mPreInflateViews && !mUsage.throttle()) {
+                final SdkCallback sdkCallback = startSdkCallback("getView");
+                try {
+                    addSpareView(displayId, mSdk.getView(windowContext, new Bundle()));
+                } finally {
+                    finishSdkCallback(sdkCallback);
+                }
+            }
+        } catch (Throwable e) {
+            Log.w(TAG, "Could not pre-inflate views", e);
+        }
+    }
+
+    private int getSpareViewCount(int displayId) {
+        synchronized (mSpareViews) {
+            final ArrayDeque<View> views = mSpareViews.get(displayId);
+            return views == null ? 0 : views.size();
+        }
+    }
+
+    private boolean addSpareView(int displayId, View view) {
+        synchronized (mSpareViews) {
+            ArrayDeque<View> views = mSpareViews.get(displayId);
+            if (views == null) {
+                views = new ArrayDeque<>();
+                mSpareViews.put(displayId, views);
+            }
+            if (views.size() >= mPreInflateViews) {
+                return false;
+            }
+            views.add(view);
+            return true;
+        }
+    }
+
+    private View pollSpareView(int displayId) {
+        synchronized (mSpareViews) {
+            final ArrayDeque<View> views = mSpareViews.get(displayId);
+            return views == null ? null : views.poll();
+        }
+    }
+
+    /**
+     * Releases everything the sdk holds on to in the sandbox. The holder is not usable
+     * afterwards.
+     */
+    void unload() {
+        final ArrayList<SurfacePackageRecord> records;
+        synchronized (mSurfacePackages) {
+            records = new ArrayList<>(mSurfacePackages.values());
+            mSurfacePackages.clear();
+            mSurfacePackageBytes = 0;
+        }
+        mPreInflateViews = 0;
+        for (int i = 0; i < records.size(); i++) {
+            releaseHost(records.get(i));
+        }
+        synchronized (mSpareViews) {
+            mSpareViews.clear();
+        }
+        synchronized (mWindowContexts) {
+            mWindowContexts.clear();
+        }
+        if (mLooperThread != null) {
+            // Lets the releases posted above run first.
+            mLooperThread.quitSafely();
+        }
+        mSdk = null;
+    }
+
+    /**
+     * Drops the views kept for reuse, which are inflated again on demand, and lets the sdk drop
+     * its own caches.
+     */
+    void onTrimMemory(int level) {
+        synchronized (mSpareViews) {
+            mSpareViews.clear();
+        }
+        final SandboxedSdkProvider sdk = mSdk;
+        if (sdk != null) {
+            final SdkCallback sdkCallback = startSdkCallback("onTrimMemory");
+            try {
+                sdk.onTrimMemory(level);
+            } finally {
+                finishSdkCallback(sdkCallback);
+            }
+        }
+    }
+
+    /**
+     * Releases the surface package {@code surfacePackageId}. The view it hosted is kept for
+     * reuse if the sdk opted into view pre-inflation.
+     */
+    void releaseSurfacePackage(int surfacePackageId) {
+        final SurfacePackageRecord record;
+        synchronized (mSurfacePackages) {
+            record = mSurfacePackages.remove(surfacePackageId);
+            if (record == null) {
+                Log.w(TAG, "Unknown surface package id: " + surfacePackageId);
+                return;
+            }
+            mSurfacePackageBytes -= record.mBytes;
+        }
+        releaseHost(record);
+    }
+
+    private void releaseHost(SurfacePackageRecord record) {
+        mHandler.post(() -> {
+            final View view = record.mHost.getView();
+            final int displayId;
+            if (view != null) {
+                view.removeOnLayoutChangeListener(record);
+                view.getViewTreeObserver().removeOnDrawListener(record);
+                displayId = view.getContext().getDisplay().getDisplayId();
+            } else {
+                displayId = Display.INVALID_DISPLAY;
+            }
+            record.mHost.release();
+            if (view != null && mPreInflateViews > 0) {
+                addSpareView(displayId, view);
+            }
+        });
     }
 
-    private void sendLoadSdkSuccess() {
+    private void sendLoadSdkSuccess(long initDurationMillis) {
+        final Bundle params = new Bundle();
+        params.putLong(SdkSandboxServiceImpl.INIT_DURATION_MILLIS_KEY, initDurationMillis);
         try {
-            mCallback.onLoadSdkSuccess(new Bundle(), new SdkSandboxCallbackImpl());
+            mCallback.onLoadSdkSuccess(params, new SdkSandboxCallbackImpl());
         } catch (RemoteException e) {
             Log.e(TAG, "Could not send onLoadSdkSuccess: " + e);
         }
@@ -124,16 +452,153 @@ class SandboxedSdkHolder {
         }
     }
 
-    private int allocateSurfacePackageId(SurfaceControlViewHost.SurfacePackage surfacePackage) {
+    /** Must be called on the handler thread, which the views of the sdk are drawn on. */
+    private int allocateSurfacePackageId(SurfaceControlViewHost host, int width, int height) {
+        final SurfacePackageRecord record =
+                new SurfacePackageRecord(host, (long) width * height * BYTES_PER_PIXEL);
+        final int id;
         synchronized (mSurfacePackages) {
-            for (int i = 0; i < 32; i++) {
-                int id = mRandom.nextInt();
-                if (!mSurfacePackages.contains(id)) {
-                    mSurfacePackages.put(id, surfacePackage);
-                    return id;
+            id = allocateSurfacePackageIdLocked(record);
+        }
+        final View view = host.getView();
+        view.addOnLayoutChangeListener(record);
+        view.getViewTreeObserver().addOnDrawListener(record);
+        evictSurfacePackages();
+        return id;
+    }
+
+    @GuardedBy("mSurfacePackages")
+    private int allocateSurfacePackageIdLocked(SurfacePackageRecord record) {
+        for (int i = 0; i < 32; i++) {
+            int id = mRandom.nextInt();
+            if (!mSurfacePackages.containsKey(id)) {
+                record.mId = id;
+                mSurfacePackages.put(id, record);
+                mSurfacePackageBytes += record.mBytes;
+                return id;
+            }
+        }
+        throw new IllegalStateException("Could not allocate surfacePackageId");
+    }
+
+    /**
+     * Releases the least recently used surface packages beyond the quota of the sdk. The app is
+     * not told, so each of these forced releases is logged and reported in the resource usage.
+     */
+    private void evictSurfacePackages() {
+        synchronized (mSurfacePackages) {
+            final int excess = mSurfacePackages.size() - mMaxSurfacePackages;
+            if (excess <= 0) {
+                return;
+            }
+            // Stable, so that the eldest go first among those used at the same time.
+            final ArrayList<SurfacePackageRecord> records =
+                    new ArrayList<>(mSurfacePackages.values());
+            records.sort(Comparator.comparingLong(record -> record.mLastUsedMs));
+            for (int i = 0; i < excess; i++) {
+                final SurfacePackageRecord record = records.get(i);
+                mSurfacePackages.remove(record.mId);
+                mSurfacePackageBytes -= record.mBytes;
+                mEvictedSurfacePackages++;
+                Log.w(TAG, "Released surface package " + record.mId + " over the quota of "
+                        + mMaxSurfacePackages + " surface packages");
+                releaseHost(record);
+            }
+        }
+    }
+
+    private void requestSurfacePackage(IBinder token, int displayId, Bundle params,
+            long requestTimeMillis) {
+        final int requestId = SdkSandboxTrace.getRequestId(params);
+        try {
+            final Context windowContext = getWindowContext(displayId);
+            View spareView = pollSpareView(displayId);
+            final View view;
+            if (spareView != null) {
+                view = spareView;
+            } else {
+                final SdkCallback sdkCallback = startSdkCallback("getView");
+                final boolean traced = SdkSandboxTrace.beginSection(
+                        "SandboxedSdkHolder#getView", requestId);
+                try {
+                    view = mSdk.getView(windowContext, params);
+                } finally {
+                    SdkSandboxTrace.endSection(traced);
+                    finishSdkCallback(sdkCallback);
                 }
             }
-            throw new IllegalStateException("Could not allocate surfacePackageId");
+            // Creating a SurfaceControlViewHost needs to done on the handler thread.
+            mHandler.post(() -> {
+                final boolean traced = SdkSandboxTrace.beginSection(
+                        "SandboxedSdkHolder#setView", requestId);
+                try {
+                    SurfaceControlViewHost host = new SurfaceControlViewHost(windowContext,
+                            mDisplayManager.getDisplay(displayId), token);
+                    int width = params.getInt(SdkSandboxServiceImpl.WIDTH_KEY,
+                            DEFAULT_SURFACE_PACKAGE_SIZE);
+                    int height = params.getInt(SdkSandboxServiceImpl.HEIGHT_KEY,
+                            DEFAULT_SURFACE_PACKAGE_SIZE);
+                    host.setView(view, width, height);
+                    SurfaceControlViewHost.SurfacePackage surfacePackage =
+                            host.getSurfacePackage();
+                    int surfacePackageId = allocateSurfacePackageId(host, width, height);
+                    // The params are sent back to the app, which has no use for the request id.
+                    params.remove(SdkSandboxTrace.REQUEST_ID_KEY);
+                    mCallback.onSurfacePackageReady(surfacePackage, surfacePackageId, params);
+                    mSurfacePackageLatency.record(
+                            SystemClock.elapsedRealtime() - requestTimeMillis);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Could not send onSurfacePackageReady", e);
+                } catch (Throwable e) {
+                    sendSurfacePackageError("Error thrown while getting surface package: " + e);
+                } finally {
+                    SdkSandboxTrace.endSection(traced);
+                }
+                if (mPreInflateViews > 0) {
+                    preInflateViews(displayId);
+                }
+            });
+        } catch (Throwable e) {
+            sendSurfacePackageError("Error thrown while getting surface package: " + e);
+        }
+    }
+
+    private static class SdkCallback {
+        final long mThreadTimeMs;
+        final SdkWatchdog.Watch mWatch;
+
+        SdkCallback(long threadTimeMs, SdkWatchdog.Watch watch) {
+            mThreadTimeMs = threadTimeMs;
+            mWatch = watch;
+        }
+    }
+
+    /**
+     * A live surface package, which listens to its view being drawn or resized. Listeners only
+     * record the time, as they run on every frame.
+     */
+    private static class SurfacePackageRecord
+            implements View.OnLayoutChangeListener, ViewTreeObserver.OnDrawListener {
+        final SurfaceControlViewHost mHost;
+        final long mBytes;
+        // Set once allocated, before the listeners are added.
+        int mId;
+        volatile long mLastUsedMs = SystemClock.uptimeMillis();
+
+        SurfacePackageRecord(SurfaceControlViewHost host, long bytes) {
+            mHost = host;
+            mBytes = bytes;
+        }
+
+        @Override
+        public void onDraw() {
+            mLastUsedMs = SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                int oldLeft, int oldTop, int oldRight, int oldBottom) {
+            mLastUsedMs = SystemClock.uptimeMillis();
         }
     }
 
@@ -142,34 +607,79 @@ class SandboxedSdkHolder {
 
         @Override
         public void onSurfacePackageRequested(IBinder token, int displayId, Bundle params) {
+            final long requestTimeMillis = SystemClock.elapsedRealtime();
+            final boolean traced = SdkSandboxTrace.beginSection(
+                    "SandboxedSdkHolder#onSurfacePackageRequested",
+                    SdkSandboxTrace.getRequestId(params));
             try {
-                Context displayContext = mContext.createDisplayContext(
-                        mDisplayManager.getDisplay(displayId));
-                // TODO(b/209009304): Support other window contexts?
-                Context windowContext = displayContext.createWindowContext(
-                        WindowManager.LayoutParams.TYPE_APPLICATION_PANEL, null);
-                final View view = mSdk.getView(windowContext, params);
-                // Creating a SurfaceControlViewHost needs to done on the handler thread.
-                mHandler.post(() -> {
-                    try {
-                        SurfaceControlViewHost host = new SurfaceControlViewHost(windowContext,
-                                mDisplayManager.getDisplay(displayId), token);
-                        int width = params.getInt(SdkSandboxServiceImpl.WIDTH_KEY, 500);
-                        int height = params.getInt(SdkSandboxServiceImpl.HEIGHT_KEY, 500);
-                        host.setView(view, width, height);
-                        SurfaceControlViewHost.SurfacePackage surfacePackage =
-                                host.getSurfacePackage();
-                        int surfacePackageId = allocateSurfacePackageId(surfacePackage);
-                        mCallback.onSurfacePackageReady(surfacePackage, surfacePackageId, params);
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Could not send onSurfacePackageReady", e);
-                    } catch (Throwable e) {
-                        sendSurfacePackageError("Error thrown while getting surface package: " + e);
-                    }
-                });
+                if (mUsage.throttle()) {
+                    sendSurfacePackageError("Sdk exceeded its quota of "
+                            + mUsage.getCallbackTimeQuotaMs() + " ms in callbacks per minute");
+                    return;
+                }
+                if (mLooperThread != null) {
+                    // The view is inflated on the looper of the sdk, the same one that hosts it.
+                    mHandler.post(() -> requestSurfacePackage(token, displayId, params,
+                            requestTimeMillis));
+                } else {
+                    requestSurfacePackage(token, displayId, params, requestTimeMillis);
+                }
+            } finally {
+                SdkSandboxTrace.endSection(traced);
+            }
+        }
+
+        @Override
+        public void onSurfacePackageReleased(int surfacePackageId) {
+            releaseSurfacePackage(surfacePackageId);
+        }
+
+        @Override
+        public void onDataReceived(Bundle data) {
+            // Oneway calls on this binder are delivered in order, one at a time, so the sdk sees
+            // data in the order the app sent it.
+            if (mUsage.throttle()) {
+                Log.w(TAG, "Dropping data sent to sdk over its quota");
+                return;
+            }
+            final SdkCallback sdkCallback = startSdkCallback("onExtraDataReceived");
+            try {
+                mSdk.onExtraDataReceived(data);
             } catch (Throwable e) {
-                sendSurfacePackageError("Error thrown while getting surface package: " + e);
+                Log.e(TAG, "Error thrown while delivering data to sdk", e);
+            } finally {
+                finishSdkCallback(sdkCallback);
             }
         }
+
+        @Override
+        public void onChannelRequested(IBinder appEndpoint) {
+            final ISdkChannel peer = ISdkChannel.Stub.asInterface(appEndpoint);
+            SdkChannel.Listener listener = null;
+            if (!mUsage.throttle()) {
+                final SdkCallback sdkCallback = startSdkCallback("onChannelRequested");
+                try {
+                    listener = mSdk.onChannelRequested();
+                } catch (Throwable e) {
+                    Log.e(TAG, "Error thrown while opening channel to sdk", e);
+                } finally {
+                    finishSdkCallback(sdkCallback);
+                }
+            }
+            if (listener == null) {
+                try {
+                    peer.onClosed();
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Could not reject channel", e);
+                }
+                return;
+            }
+            new SdkChannel(mSdkExecutor, listener).connect(peer);
+        }
+
+        @Override
+        public void onResourceUsageRequested() {
+            sendResourceUsage();
+        }
     }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdksandbox;
+
+import android.content.pm.ApplicationInfo;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+
+import dalvik.system.DexClassLoader;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Objects;
+
+/**
+ * Cache of the class loaders created for loaded SDKs.
+ *
+ * <p>Loading an SDK again, or loading several SDKs declared by the same package, reuses the
+ * class loader instead of opening and verifying the same dex files again. Class loaders are
+ * keyed by the apk path and its modification time, so an updated SDK package gets a new class
+ * loader. Each SDK held by the sandbox holds a reference on its class loader.
+ */
+class SdkClassLoaderCache {
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private long mCreated = 0;
+    @GuardedBy("mLock")
+    private long mReused = 0;
+
+    /**
+     * Returns the class loader of the SDK package described by {@code appInfo} and takes a
+     * reference on it, which must be returned with {@link #release}.
+     */
+    ClassLoader acquire(ApplicationInfo appInfo, ClassLoader parent) {
+        final String key = appInfo.sourceDir + "@" + new File(appInfo.sourceDir).lastModified();
+        synchronized (mLock) {
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                mReused++;
+            } else {
+                evictOtherVersionsLocked(appInfo.packageName);
+                entry = new Entry(appInfo.packageName,
+                        new DexClassLoader(appInfo.sourceDir, null, null, parent));
+                mEntries.put(key, entry);
+                mCreated++;
+            }
+            entry.mRefCount++;
+            return entry.mClassLoader;
+        }
+    }
+
+    /** Returns a reference taken with {@link #acquire}. */
+    void release(ClassLoader classLoader) {
+        synchronized (mLock) {
+            for (int i = 0; i < mEntries.size(); i++) {
+                final Entry entry = mEntries.valueAt(i);
+                if (entry.mClassLoader != classLoader) {
+                    continue;
+                }
+                entry.mRefCount--;
+                if (entry.mRefCount == 0 && entry.mStale) {
+                    mEntries.removeAt(i);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the class loaders of previous versions of {@code packageName}. Ones still in use
+     * are dropped once their last reference is released.
+     */
+    @GuardedBy("mLock")
+    private void evictOtherVersionsLocked(String packageName) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            final Entry entry = mEntries.valueAt(i);
+            if (!Objects.equals(entry.mPackageName, packageName)) {
+                continue;
+            }
+            if (entry.mRefCount == 0) {
+                mEntries.removeAt(i);
+            } else {
+                entry.mStale = true;
+            }
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.printf("class loaders: %d, created: %d, reused: %d", mEntries.size(), mCreated,
+                    mReused);
+            writer.println();
+            for (int i = 0; i < mEntries.size(); i++) {
+                final Entry entry = mEntries.valueAt(i);
+                writer.printf("  %s refs: %d%s", mEntries.keyAt(i), entry.mRefCount,
+                        entry.mStale ? " (stale)" : "");
+                writer.println();
+            }
+        }
+    }
+
+    private static class Entry {
+        final String mPackageName;
+        final ClassLoader mClassLoader;
+        int mRefCount = 0;
+        // Package was updated, drop once no longer referenced.
+        boolean mStale = false;
+
+        Entry(String packageName, ClassLoader classLoader) {
+            mPackageName = packageName;
+            mClassLoader = classLoader;
+        }
+    }
+}
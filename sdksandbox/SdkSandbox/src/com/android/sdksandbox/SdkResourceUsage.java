@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdksandbox;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * Resources used by an sdk loaded in the sandbox, and its quota of time spent in callbacks.
+ *
+ * <p>Time spent in callbacks is the cpu time of the calling thread while in the sdk, so that it
+ * does not count time the thread was waiting. Sdks going over their quota within a window are
+ * throttled until the window ends.
+ */
+class SdkResourceUsage {
+
+    private static final long WINDOW_MS = 60_000;
+
+    // Time the sdk may spend in callbacks per window; 0 for no quota.
+    private final long mCallbackTimeQuotaMs;
+
+    @GuardedBy("this")
+    private long mCallbacks = 0;
+    @GuardedBy("this")
+    private long mCallbackTimeMs = 0;
+    @GuardedBy("this")
+    private long mWindowStartMs = 0;
+    @GuardedBy("this")
+    private long mWindowCallbackTimeMs = 0;
+    @GuardedBy("this")
+    private long mThrottledCalls = 0;
+    @GuardedBy("this")
+    private long mThrottledWindows = 0;
+    @GuardedBy("this")
+    private long mInitHeapBytes = 0;
+    @GuardedBy("this")
+    private long mStalls = 0;
+
+    SdkResourceUsage(long callbackTimeQuotaMs) {
+        mCallbackTimeQuotaMs = callbackTimeQuotaMs;
+    }
+
+    /** Returns the thread time to pass to {@link #onCallbackFinished} once the sdk returns. */
+    long onCallbackStarted() {
+        return SystemClock.currentThreadTimeMillis();
+    }
+
+    /**
+     * Accounts for a callback into the sdk that started at {@code threadTimeMs}.
+     *
+     * @return whether the sdk just went over its quota for the current window.
+     */
+    boolean onCallbackFinished(long threadTimeMs) {
+        final long elapsedMs = SystemClock.currentThreadTimeMillis() - threadTimeMs;
+        synchronized (this) {
+            mCallbacks++;
+            mCallbackTimeMs += elapsedMs;
+            maybeStartWindowLocked();
+            final boolean wasThrottled = isThrottledLocked();
+            mWindowCallbackTimeMs += elapsedMs;
+            if (!wasThrottled && isThrottledLocked()) {
+                mThrottledWindows++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether calls into the sdk should be rejected because it went over its quota,
+     * counting the call as throttled if so.
+     */
+    synchronized boolean throttle() {
+        maybeStartWindowLocked();
+        if (!isThrottledLocked()) {
+            return false;
+        }
+        mThrottledCalls++;
+        return true;
+    }
+
+    /** Records a callback that ran for longer than the watchdog threshold. */
+    synchronized void onStall() {
+        mStalls++;
+    }
+
+    /** Records the growth of the heap while the sdk initialized. */
+    synchronized void setInitHeapBytes(long initHeapBytes) {
+        mInitHeapBytes = Math.max(0, initHeapBytes);
+    }
+
+    long getCallbackTimeQuotaMs() {
+        return mCallbackTimeQuotaMs;
+    }
+
+    /** Writes the usage into {@code usage}, with the keys of the manager callback. */
+    synchronized void writeTo(Bundle usage) {
+        usage.putLong(ISdkSandboxToSdkSandboxManagerCallback.USAGE_CALLBACKS_KEY, mCallbacks);
+        usage.putLong(ISdkSandboxToSdkSandboxManagerCallback.USAGE_CALLBACK_TIME_MS_KEY,
+                mCallbackTimeMs);
+        usage.putLong(ISdkSandboxToSdkSandboxManagerCallback.USAGE_THROTTLED_CALLS_KEY,
+                mThrottledCalls);
+        usage.putLong(ISdkSandboxToSdkSandboxManagerCallback.USAGE_THROTTLED_WINDOWS_KEY,
+                mThrottledWindows);
+        usage.putLong(ISdkSandboxToSdkSandboxManagerCallback.USAGE_INIT_HEAP_BYTES_KEY,
+                mInitHeapBytes);
+        usage.putLong(ISdkSandboxToSdkSandboxManagerCallback.USAGE_STALLS_KEY, mStalls);
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.printf("Callbacks: %d, time in callbacks: %d ms, quota: %d ms per %d ms",
+                mCallbacks, mCallbackTimeMs, mCallbackTimeQuotaMs, WINDOW_MS);
+        writer.println();
+        writer.printf("Throttled calls: %d, throttled windows: %d, heap growth on init: %d bytes",
+                mThrottledCalls, mThrottledWindows, mInitHeapBytes);
+        writer.println();
+        writer.printf("Stalls: %d", mStalls);
+        writer.println();
+    }
+
+    @GuardedBy("this")
+    private void maybeStartWindowLocked() {
+        final long nowMs = SystemClock.elapsedRealtime();
+        if (mWindowStartMs == 0 || nowMs - mWindowStartMs >= WINDOW_MS) {
+            mWindowStartMs = nowMs;
+            mWindowCallbackTimeMs = 0;
+        }
+    }
+
+    @GuardedBy("this")
+    private boolean isThrottledLocked() {
+        return mCallbackTimeQuotaMs > 0 && mWindowCallbackTimeMs > mCallbackTimeQuotaMs;
+    }
+}
@@ -19,7 +19,9 @@ package com.android.sdksandbox;
 import android.annotation.NonNull;
 import android.annotation.RequiresPermission;
 import android.app.Service;
+import android.app.sdksandbox.LatencyHistogram;
 import android.app.sdksandbox.SandboxedSdkContext;
+import android.app.sdksandbox.SdkSandboxTrace;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
@@ -28,6 +30,7 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Log;
@@ -35,11 +38,11 @@ import android.util.Log;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
-import dalvik.system.DexClassLoader;
-
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
@@ -53,9 +56,28 @@ public class SdkSandboxServiceImpl extends Service {
     public static final String SDK_PROVIDER_KEY = "sdk-provider-class";
     public static final String WIDTH_KEY = "width";
     public static final String HEIGHT_KEY = "height";
+    // Runs the sdk initialization on a background thread of its own instead of the main thread.
+    public static final String INIT_IN_BACKGROUND_KEY = "init-in-background";
+    // Number of views the sdk inflates ahead of surface package requests. Opting in means the
+    // views of the sdk do not depend on the request params, and released views may be reused.
+    public static final String PRE_INFLATE_VIEWS_KEY = "pre-inflate-views";
+    // Display the views are pre-inflated for as soon as the sdk is initialized. Without it, views
+    // are pre-inflated from the first surface package request on, for the display it asked for.
+    public static final String PRE_INFLATE_DISPLAY_ID_KEY = "pre-inflate-display-id";
+    // Inflates and hosts the views of the sdk on a looper thread of its own instead of the main
+    // thread shared by all sdks.
+    public static final String DEDICATED_LOOPER_KEY = "dedicated-looper";
+    // Reported back on successful load: time the sdk took to initialize, in milliseconds.
+    public static final String INIT_DURATION_MILLIS_KEY =
+            ISdkSandboxToSdkSandboxManagerCallback.INIT_DURATION_MILLIS_KEY;
 
     @GuardedBy("mHeldSdk")
     private final Map<IBinder, SandboxedSdkHolder> mHeldSdk = new ArrayMap<>();
+    private final SdkClassLoaderCache mClassLoaderCache = new SdkClassLoaderCache();
+    private final LatencyHistogram mClassLoaderLatency = new LatencyHistogram("classLoader");
+    private final LatencyHistogram mLoadSdkLatency = new LatencyHistogram("loadSdk");
+    private final SdkWatchdog mWatchdog =
+            new SdkWatchdog(SdkWatchdog.DEFAULT_STALL_THRESHOLD_MS);
     private Injector mInjector;
     private ISdkSandboxService.Stub mBinder;
 
@@ -110,6 +132,55 @@ public class SdkSandboxServiceImpl extends Service {
         }
     }
 
+    /**
+     * Loads several SDKs. The result for each SDK is sent to the callback at the same index.
+     */
+    public void loadSdks(
+            List<IBinder> sdkTokens, List<ApplicationInfo> applicationInfos,
+            List<String> sdkProviderClassNames, Bundle params,
+            List<ISdkSandboxToSdkSandboxManagerCallback> callbacks) {
+        enforceCallerIsSystemServer();
+        final long token = Binder.clearCallingIdentity();
+        try {
+            // Each sdk gets params of its own, as sdks may modify them.
+            for (int i = 0; i < sdkTokens.size(); i++) {
+                loadSdkInternal(sdkTokens.get(i), applicationInfos.get(i),
+                        sdkProviderClassNames.get(i), new Bundle(params), callbacks.get(i));
+            }
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    /**
+     * Unloads SDK, so that a newer version of it can be loaded with the same token.
+     */
+    public void unloadSdk(IBinder sdkToken) {
+        enforceCallerIsSystemServer();
+        final SandboxedSdkHolder sandboxedSdkHolder;
+        synchronized (mHeldSdk) {
+            sandboxedSdkHolder = mHeldSdk.remove(sdkToken);
+        }
+        if (sandboxedSdkHolder == null) {
+            return;
+        }
+        sandboxedSdkHolder.unload();
+        // Lets the class loader of the old version go once no other sdk uses it.
+        mClassLoaderCache.release(sandboxedSdkHolder.getClassLoader());
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        final ArrayList<SandboxedSdkHolder> holders;
+        synchronized (mHeldSdk) {
+            holders = new ArrayList<>(mHeldSdk.values());
+        }
+        for (int i = 0; i < holders.size(); i++) {
+            holders.get(i).onTrimMemory(level);
+        }
+    }
+
     @Override
     @RequiresPermission(android.Manifest.permission.DUMP)
     protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
@@ -128,6 +199,10 @@ public class SdkSandboxServiceImpl extends Service {
                 }
             }
         }
+        writer.println("mClassLoaderCache:");
+        mClassLoaderCache.dump(writer);
+        mClassLoaderLatency.dump(writer);
+        mLoadSdkLatency.dump(writer);
     }
 
     private void enforceCallerIsSystemServer() {
@@ -143,6 +218,23 @@ public class SdkSandboxServiceImpl extends Service {
             @NonNull String sdkProviderClassName,
             @NonNull Bundle params,
             @NonNull ISdkSandboxToSdkSandboxManagerCallback callback) {
+        final long startTimeMillis = SystemClock.elapsedRealtime();
+        final boolean traced = SdkSandboxTrace.beginSection(
+                "SdkSandboxServiceImpl#loadSdk", SdkSandboxTrace.getRequestId(params));
+        try {
+            loadSdkTraced(sdkToken, applicationInfo, sdkProviderClassName, params, callback);
+        } finally {
+            SdkSandboxTrace.endSection(traced);
+        }
+        // Time until the sdk is handed over to its holder; initializing it may take longer.
+        mLoadSdkLatency.record(SystemClock.elapsedRealtime() - startTimeMillis);
+    }
+
+    private void loadSdkTraced(@NonNull IBinder sdkToken,
+            @NonNull ApplicationInfo applicationInfo,
+            @NonNull String sdkProviderClassName,
+            @NonNull Bundle params,
+            @NonNull ISdkSandboxToSdkSandboxManagerCallback callback) {
         if (params.containsKey(SDK_PROVIDER_KEY)) {
             sdkProviderClassName = params.getString(SDK_PROVIDER_KEY);
         }
@@ -156,8 +248,9 @@ public class SdkSandboxServiceImpl extends Service {
             }
         }
 
+        ClassLoader loader = null;
         try {
-            ClassLoader loader = getClassLoader(applicationInfo);
+            loader = getClassLoader(applicationInfo);
             Class<?> clz = Class.forName(SandboxedSdkHolder.class.getName(), true, loader);
             SandboxedSdkHolder sandboxedSdkHolder =
                     (SandboxedSdkHolder) clz.getDeclaredConstructor().newInstance();
@@ -169,10 +262,13 @@ public class SdkSandboxServiceImpl extends Service {
                     callback,
                     sdkProviderClassName,
                     loader,
-                    sandboxedSdkContext);
+                    sandboxedSdkContext,
+                    mWatchdog);
             synchronized (mHeldSdk) {
                 mHeldSdk.put(sdkToken, sandboxedSdkHolder);
             }
+            // The class loader reference is now held by the mHeldSdk entry.
+            loader = null;
         } catch (ClassNotFoundException | NoSuchMethodException e) {
             sendLoadError(callback,
                     ISdkSandboxToSdkSandboxManagerCallback.LOAD_SDK_NOT_FOUND,
@@ -182,6 +278,10 @@ public class SdkSandboxServiceImpl extends Service {
                     ISdkSandboxToSdkSandboxManagerCallback
                             .LOAD_SDK_INSTANTIATION_ERROR,
                     "Failed to instantiate " + SandboxedSdkHolder.class.getName() + ": " + e);
+        } finally {
+            if (loader != null) {
+                mClassLoaderCache.release(loader);
+            }
         }
     }
 
@@ -195,7 +295,15 @@ public class SdkSandboxServiceImpl extends Service {
     }
 
     private ClassLoader getClassLoader(ApplicationInfo appInfo) {
-        return new DexClassLoader(appInfo.sourceDir, null, null, getClass().getClassLoader());
+        final long startTimeMillis = SystemClock.elapsedRealtime();
+        final boolean traced = SdkSandboxTrace.beginSection("SdkSandboxServiceImpl#getClassLoader",
+                SdkSandboxTrace.NO_REQUEST_ID);
+        try {
+            return mClassLoaderCache.acquire(appInfo, getClass().getClassLoader());
+        } finally {
+            SdkSandboxTrace.endSection(traced);
+            mClassLoaderLatency.record(SystemClock.elapsedRealtime() - startTimeMillis);
+        }
     }
 
     final class SdkSandboxServiceDelegate extends ISdkSandboxService.Stub {
@@ -219,5 +327,42 @@ public class SdkSandboxServiceImpl extends Service {
             SdkSandboxServiceImpl.this.loadSdk(
                     sdkToken, applicationInfo, sdkProviderClassName, params, callback);
         }
+
+        @Override
+        public void loadSdks(
+                @NonNull List<IBinder> sdkTokens,
+                @NonNull List<ApplicationInfo> applicationInfos,
+                @NonNull List<String> sdkProviderClassNames,
+                @NonNull Bundle params,
+                @NonNull List<ISdkSandboxToSdkSandboxManagerCallback> callbacks) {
+            Objects.requireNonNull(sdkTokens, "sdkTokens should not be null");
+            Objects.requireNonNull(applicationInfos, "applicationInfos should not be null");
+            Objects.requireNonNull(sdkProviderClassNames,
+                    "sdkProviderClassNames should not be null");
+            Objects.requireNonNull(params, "params should not be null");
+            Objects.requireNonNull(callbacks, "callbacks should not be null");
+            final int size = sdkTokens.size();
+            if (applicationInfos.size() != size || sdkProviderClassNames.size() != size
+                    || callbacks.size() != size) {
+                throw new IllegalArgumentException("All lists must have the same size");
+            }
+            for (int i = 0; i < size; i++) {
+                Objects.requireNonNull(sdkTokens.get(i), "sdkToken should not be null");
+                Objects.requireNonNull(applicationInfos.get(i),
+                        "applicationInfo should not be null");
+                Objects.requireNonNull(callbacks.get(i), "callback should not be null");
+                if (TextUtils.isEmpty(sdkProviderClassNames.get(i))) {
+                    throw new IllegalArgumentException("sdkProviderClassName must not be empty");
+                }
+            }
+            SdkSandboxServiceImpl.this.loadSdks(
+                    sdkTokens, applicationInfos, sdkProviderClassNames, params, callbacks);
+        }
+
+        @Override
+        public void unloadSdk(@NonNull IBinder sdkToken) {
+            Objects.requireNonNull(sdkToken, "sdkToken should not be null");
+            SdkSandboxServiceImpl.this.unloadSdk(sdkToken);
+        }
     }
 }
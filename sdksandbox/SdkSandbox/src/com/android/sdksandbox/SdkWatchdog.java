@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdksandbox;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Detects callbacks into sdks that run for longer than a threshold, and attributes the stall to
+ * the sdk. A single watchdog thread is shared by all the sdks of the sandbox.
+ */
+class SdkWatchdog {
+
+    private static final String TAG = "SdkSandbox";
+
+    static final long DEFAULT_STALL_THRESHOLD_MS = 1_000;
+
+    private final long mStallThresholdMs;
+    private final Handler mHandler;
+
+    SdkWatchdog(long stallThresholdMs) {
+        mStallThresholdMs = stallThresholdMs;
+        final HandlerThread thread = new HandlerThread("SdkWatchdog");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Starts watching a callback of {@code sdkName} running on the current thread. The returned
+     * watch is passed to {@link #stop} once the callback returns.
+     */
+    Watch start(String sdkName, String callbackName, SdkResourceUsage usage) {
+        final Watch watch = new Watch(sdkName, callbackName, Thread.currentThread(), usage);
+        mHandler.postDelayed(watch, mStallThresholdMs);
+        return watch;
+    }
+
+    void stop(Watch watch) {
+        mHandler.removeCallbacks(watch);
+    }
+
+    /** A callback being watched; runs once the callback is late. */
+    final class Watch implements Runnable {
+        private final String mSdkName;
+        private final String mCallbackName;
+        private final Thread mThread;
+        private final SdkResourceUsage mUsage;
+
+        private Watch(String sdkName, String callbackName, Thread thread,
+                SdkResourceUsage usage) {
+            mSdkName = sdkName;
+            mCallbackName = callbackName;
+            mThread = thread;
+            mUsage = usage;
+        }
+
+        @Override
+        public void run() {
+            mUsage.onStall();
+            // Where the sdk is stuck, rather than where the watchdog noticed it.
+            final Throwable stack = new Throwable("Stack of " + mThread.getName());
+            stack.setStackTrace(mThread.getStackTrace());
+            Log.w(TAG, "Sdk " + mSdkName + " has been running " + mCallbackName + " on thread "
+                    + mThread.getName() + " for more than " + mStallThresholdMs + " ms", stack);
+        }
+    }
+}
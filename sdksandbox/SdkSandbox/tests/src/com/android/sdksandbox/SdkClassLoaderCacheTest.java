@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdksandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@RunWith(JUnit4.class)
+public class SdkClassLoaderCacheTest {
+
+    private SdkClassLoaderCache mCache;
+    private ApplicationInfo mApplicationInfo;
+
+    @Before
+    public void setup() throws Exception {
+        Context context = InstrumentationRegistry.getContext();
+        mCache = new SdkClassLoaderCache();
+        mApplicationInfo = context.getPackageManager().getApplicationInfo(
+                "com.android.testprovider", 0);
+    }
+
+    @Test
+    public void testAcquireReusesClassLoader() {
+        ClassLoader first = mCache.acquire(mApplicationInfo, getClass().getClassLoader());
+        ClassLoader second = mCache.acquire(mApplicationInfo, getClass().getClassLoader());
+        assertThat(second).isSameInstanceAs(first);
+        assertThat(dump()).contains("class loaders: 1, created: 1, reused: 1");
+    }
+
+    @Test
+    public void testReleasedClassLoaderIsReusedOnReload() {
+        ClassLoader first = mCache.acquire(mApplicationInfo, getClass().getClassLoader());
+        mCache.release(first);
+        ClassLoader second = mCache.acquire(mApplicationInfo, getClass().getClassLoader());
+        assertThat(second).isSameInstanceAs(first);
+    }
+
+    @Test
+    public void testUpdatedPackageGetsNewClassLoader() {
+        ClassLoader first = mCache.acquire(mApplicationInfo, getClass().getClassLoader());
+        mCache.release(first);
+
+        ApplicationInfo updated = new ApplicationInfo(mApplicationInfo);
+        updated.sourceDir = mApplicationInfo.sourceDir + ".updated";
+        ClassLoader second = mCache.acquire(updated, getClass().getClassLoader());
+        assertThat(second).isNotSameInstanceAs(first);
+        // Unused class loader of the previous version is evicted
+        assertThat(dump()).contains("class loaders: 1, created: 2, reused: 0");
+    }
+
+    private String dump() {
+        StringWriter stringWriter = new StringWriter();
+        mCache.dump(new PrintWriter(stringWriter));
+        return stringWriter.toString();
+    }
+}
@@ -18,6 +18,7 @@ package com.android.sdksandbox;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.os.Binder;
@@ -38,6 +39,7 @@ import org.junit.runners.JUnit4;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -116,6 +118,36 @@ public class SdkSandboxTest {
         assertThat(mRemoteCode2.mSuccessful).isTrue();
     }
 
+    @Test
+    public void testLoadingWithBackgroundInit() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        RemoteCode mRemoteCode = new RemoteCode(latch);
+        Bundle params = new Bundle();
+        params.putBoolean(SdkSandboxServiceImpl.INIT_IN_BACKGROUND_KEY, true);
+        mService.loadSdk(new Binder(), mApplicationInfo, CODE_PROVIDER_CLASS, params,
+                mRemoteCode);
+        assertThat(latch.await(1, TimeUnit.MINUTES)).isTrue();
+        assertThat(mRemoteCode.mSuccessful).isTrue();
+        assertThat(mRemoteCode.mLoadParams.containsKey(
+                SdkSandboxServiceImpl.INIT_DURATION_MILLIS_KEY)).isTrue();
+    }
+
+    @Test
+    public void testLoadingBatch() throws Exception {
+        CountDownLatch latch1 = new CountDownLatch(1);
+        RemoteCode mRemoteCode1 = new RemoteCode(latch1);
+        CountDownLatch latch2 = new CountDownLatch(1);
+        RemoteCode mRemoteCode2 = new RemoteCode(latch2);
+        mService.loadSdks(Arrays.asList(new Binder(), new Binder()),
+                Arrays.asList(mApplicationInfo, mApplicationInfo),
+                Arrays.asList(CODE_PROVIDER_CLASS, "does.not.exist.Provider"),
+                new Bundle(), Arrays.asList(mRemoteCode1, mRemoteCode2));
+        assertThat(latch1.await(1, TimeUnit.MINUTES)).isTrue();
+        assertThat(mRemoteCode1.mSuccessful).isTrue();
+        assertThat(latch2.await(1, TimeUnit.MINUTES)).isTrue();
+        assertThat(mRemoteCode2.mSuccessful).isFalse();
+    }
+
     @Test
     public void testRequestSurfacePackage() throws Exception {
         CountDownLatch latch = new CountDownLatch(1);
@@ -131,6 +163,116 @@ public class SdkSandboxTest {
         assertThat(mRemoteCode.mSurfacePackage).isNotNull();
     }
 
+    @Test
+    public void testRequestSurfacePackageWithPreInflatedViews() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        RemoteCode mRemoteCode = new RemoteCode(latch);
+        Bundle params = new Bundle();
+        params.putInt(SdkSandboxServiceImpl.PRE_INFLATE_VIEWS_KEY, 2);
+        params.putInt(SdkSandboxServiceImpl.PRE_INFLATE_DISPLAY_ID_KEY, mContext.getDisplayId());
+        mService.loadSdk(new Binder(), mApplicationInfo, CODE_PROVIDER_CLASS, params,
+                mRemoteCode);
+        assertThat(latch.await(1, TimeUnit.MINUTES)).isTrue();
+        for (int i = 0; i < 3; i++) {
+            CountDownLatch surfaceLatch = new CountDownLatch(1);
+            mRemoteCode.setLatch(surfaceLatch);
+            mRemoteCode.mSurfacePackage = null;
+            mRemoteCode.getCallback().onSurfacePackageRequested(new Binder(),
+                    mContext.getDisplayId(), new Bundle());
+            assertThat(surfaceLatch.await(1, TimeUnit.MINUTES)).isTrue();
+            assertThat(mRemoteCode.mSurfacePackage).isNotNull();
+        }
+    }
+
+    @Test
+    public void testRequestSurfacePackageWithDedicatedLooper() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        RemoteCode mRemoteCode = new RemoteCode(latch);
+        Bundle params = new Bundle();
+        params.putBoolean(SdkSandboxServiceImpl.DEDICATED_LOOPER_KEY, true);
+        mService.loadSdk(new Binder(), mApplicationInfo, CODE_PROVIDER_CLASS, params,
+                mRemoteCode);
+        assertThat(latch.await(1, TimeUnit.MINUTES)).isTrue();
+        assertThat(mRemoteCode.mSuccessful).isTrue();
+
+        CountDownLatch surfaceLatch = new CountDownLatch(1);
+        mRemoteCode.setLatch(surfaceLatch);
+        mRemoteCode.getCallback().onSurfacePackageRequested(new Binder(),
+                mContext.getDisplayId(), new Bundle());
+        assertThat(surfaceLatch.await(1, TimeUnit.MINUTES)).isTrue();
+        assertThat(mRemoteCode.mSurfacePackage).isNotNull();
+    }
+
+    @Test
+    public void testTrimMemoryDropsPreInflatedViews() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        RemoteCode mRemoteCode = new RemoteCode(latch);
+        Bundle params = new Bundle();
+        params.putInt(SdkSandboxServiceImpl.PRE_INFLATE_VIEWS_KEY, 2);
+        mService.loadSdk(new Binder(), mApplicationInfo, CODE_PROVIDER_CLASS, params,
+                mRemoteCode);
+        assertThat(latch.await(1, TimeUnit.MINUTES)).isTrue();
+
+        mService.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+
+        // Views are inflated on demand again.
+        CountDownLatch surfaceLatch = new CountDownLatch(1);
+        mRemoteCode.setLatch(surfaceLatch);
+        mRemoteCode.getCallback().onSurfacePackageRequested(new Binder(),
+                mContext.getDisplayId(), new Bundle());
+        assertThat(surfaceLatch.await(1, TimeUnit.MINUTES)).isTrue();
+        assertThat(mRemoteCode.mSurfacePackage).isNotNull();
+    }
+
+    @Test
+    public void testResourceUsageWithSurfacePackagesQuota() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        RemoteCode mRemoteCode = new RemoteCode(latch);
+        Bundle params = new Bundle();
+        params.putInt(ISdkSandboxToSdkSandboxManagerCallback.QUOTA_SURFACE_PACKAGES_KEY, 1);
+        mService.loadSdk(new Binder(), mApplicationInfo, CODE_PROVIDER_CLASS, params,
+                mRemoteCode);
+        assertThat(latch.await(1, TimeUnit.MINUTES)).isTrue();
+        for (int i = 0; i < 2; i++) {
+            CountDownLatch surfaceLatch = new CountDownLatch(1);
+            mRemoteCode.setLatch(surfaceLatch);
+            mRemoteCode.getCallback().onSurfacePackageRequested(new Binder(),
+                    mContext.getDisplayId(), new Bundle());
+            assertThat(surfaceLatch.await(1, TimeUnit.MINUTES)).isTrue();
+        }
+
+        CountDownLatch usageLatch = new CountDownLatch(1);
+        mRemoteCode.setLatch(usageLatch);
+        mRemoteCode.getCallback().onResourceUsageRequested();
+        assertThat(usageLatch.await(1, TimeUnit.MINUTES)).isTrue();
+        // The least recently used surface package was released to stay within the quota.
+        assertThat(mRemoteCode.mResourceUsage.getInt(
+                ISdkSandboxToSdkSandboxManagerCallback.USAGE_SURFACE_PACKAGES_KEY)).isEqualTo(1);
+        assertThat(mRemoteCode.mResourceUsage.getInt(ISdkSandboxToSdkSandboxManagerCallback
+                .USAGE_EVICTED_SURFACE_PACKAGES_KEY)).isEqualTo(1);
+        assertThat(mRemoteCode.mResourceUsage.getLong(
+                ISdkSandboxToSdkSandboxManagerCallback.USAGE_CALLBACKS_KEY)).isAtLeast(3);
+    }
+
+    @Test
+    public void testReleaseSurfacePackage() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        RemoteCode mRemoteCode = new RemoteCode(latch);
+        mService.loadSdk(new Binder(), mApplicationInfo, CODE_PROVIDER_CLASS,
+                new Bundle(), mRemoteCode);
+        assertThat(latch.await(1, TimeUnit.MINUTES)).isTrue();
+        CountDownLatch surfaceLatch = new CountDownLatch(1);
+        mRemoteCode.setLatch(surfaceLatch);
+        mRemoteCode.getCallback().onSurfacePackageRequested(new Binder(),
+                mContext.getDisplayId(), new Bundle());
+        assertThat(surfaceLatch.await(1, TimeUnit.MINUTES)).isTrue();
+        assertThat(mRemoteCode.mSurfacePackageId).isNotEqualTo(0);
+
+        // Releasing twice, or an unknown id, is a no-op.
+        mRemoteCode.getCallback().onSurfacePackageReleased(mRemoteCode.mSurfacePackageId);
+        mRemoteCode.getCallback().onSurfacePackageReleased(mRemoteCode.mSurfacePackageId);
+    }
+
     @Test
     public void testSurfacePackageError() throws Exception {
         CountDownLatch latch = new CountDownLatch(1);
@@ -160,6 +302,9 @@ public class SdkSandboxTest {
 
         private CountDownLatch mLatch;
         private SurfaceControlViewHost.SurfacePackage mSurfacePackage;
+        private int mSurfacePackageId;
+        private Bundle mLoadParams;
+        private Bundle mResourceUsage;
         boolean mSuccessful = false;
         int mErrorCode = -1;
 
@@ -172,9 +317,10 @@ public class SdkSandboxTest {
         @Override
         public void onLoadSdkSuccess(
                 Bundle params, ISdkSandboxManagerToSdkSandboxCallback callback)  {
-            mLatch.countDown();
             mCallback = callback;
+            mLoadParams = params;
             mSuccessful = true;
+            mLatch.countDown();
         }
 
         @Override
@@ -187,10 +333,11 @@ public class SdkSandboxTest {
         @Override
         public void onSurfacePackageReady(
                 SurfaceControlViewHost.SurfacePackage surfacePackage,
-                int displayId,
+                int surfacePackageId,
                 Bundle params) {
-            mLatch.countDown();
             mSurfacePackage = surfacePackage;
+            mSurfacePackageId = surfacePackageId;
+            mLatch.countDown();
         }
 
         @Override
@@ -200,6 +347,12 @@ public class SdkSandboxTest {
             mSuccessful = false;
         }
 
+        @Override
+        public void onResourceUsage(Bundle usage) {
+            mResourceUsage = usage;
+            mLatch.countDown();
+        }
+
         private void setLatch(CountDownLatch latch) {
             mLatch = latch;
         }
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdksandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SdkWatchdogTest {
+
+    private static final long STALL_THRESHOLD_MS = 50;
+
+    private final SdkWatchdog mWatchdog = new SdkWatchdog(STALL_THRESHOLD_MS);
+
+    @Test
+    public void testSlowCallbackIsAttributedToSdk() throws Exception {
+        SdkResourceUsage slowSdk = new SdkResourceUsage(0);
+        SdkResourceUsage fastSdk = new SdkResourceUsage(0);
+
+        SdkWatchdog.Watch fastWatch = mWatchdog.start("fast", "getView", fastSdk);
+        mWatchdog.stop(fastWatch);
+        SdkWatchdog.Watch slowWatch = mWatchdog.start("slow", "getView", slowSdk);
+        SystemClock.sleep(STALL_THRESHOLD_MS * 10);
+        mWatchdog.stop(slowWatch);
+
+        assertThat(getStalls(slowSdk)).isEqualTo(1);
+        assertThat(getStalls(fastSdk)).isEqualTo(0);
+    }
+
+    private static long getStalls(SdkResourceUsage usage) {
+        Bundle bundle = new Bundle();
+        usage.writeTo(bundle);
+        return bundle.getLong(ISdkSandboxToSdkSandboxManagerCallback.USAGE_STALLS_KEY);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.sdksandbox;
+
+import android.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of the latency of an operation, with fixed buckets whose bounds double. Used by both
+ * system_server and the sdk sandbox, so that the latencies they dump compare.
+ *
+ * <p>Recording neither locks nor allocates, so that every operation can be recorded. Percentiles
+ * are estimated as the upper bound of the bucket they fall in. Thread safe.
+ *
+ * @hide
+ */
+public final class LatencyHistogram {
+
+    // Upper bounds of the buckets, inclusive; the last bucket has no upper bound.
+    private static final long[] BUCKET_BOUNDS_MS = {
+        1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1_024, 2_048, 4_096, 8_192, 16_384, 32_768
+    };
+
+    private final String mName;
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+    private final AtomicLong mTotalMs = new AtomicLong();
+    private final AtomicLong mMaxMs = new AtomicLong();
+
+    public LatencyHistogram(@NonNull String name) {
+        mName = name;
+    }
+
+    @NonNull
+    public String getName() {
+        return mName;
+    }
+
+    public void record(long latencyMs) {
+        latencyMs = Math.max(0, latencyMs);
+        mCounts.incrementAndGet(getBucket(latencyMs));
+        mTotalMs.addAndGet(latencyMs);
+        long maxMs = mMaxMs.get();
+        while (latencyMs > maxMs && !mMaxMs.compareAndSet(maxMs, latencyMs)) {
+            maxMs = mMaxMs.get();
+        }
+    }
+
+    /**
+     * Clears the histogram. Latencies recorded concurrently may be partially cleared, which is
+     * fine for statistics.
+     */
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalMs.set(0);
+        mMaxMs.set(0);
+    }
+
+    /** Returns an estimate of the {@code percentile}th percentile, 0 if nothing was recorded. */
+    public long getPercentileMs(int percentile) {
+        return getPercentileMs(getCounts(), percentile);
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        final long[] counts = getCounts();
+        final long count = sum(counts);
+        writer.printf("%s: count: %d, avg: %d ms, p50: %d ms, p95: %d ms, p99: %d ms, "
+                + "max: %d ms", mName, count, count == 0 ? 0 : mTotalMs.get() / count,
+                getPercentileMs(counts, 50), getPercentileMs(counts, 95),
+                getPercentileMs(counts, 99), mMaxMs.get());
+        writer.println();
+    }
+
+    /**
+     * Dumps the histogram on a single line, for tools: the name, count, total and max, then the
+     * count of each bucket prefixed with its upper bound.
+     */
+    public void dumpRaw(@NonNull PrintWriter writer) {
+        final long[] counts = getCounts();
+        writer.print(mName);
+        writer.print(',');
+        writer.print(sum(counts));
+        writer.print(',');
+        writer.print(mTotalMs.get());
+        writer.print(',');
+        writer.print(mMaxMs.get());
+        for (int i = 0; i < counts.length; i++) {
+            writer.print(',');
+            writer.print(i < BUCKET_BOUNDS_MS.length ? Long.toString(BUCKET_BOUNDS_MS[i]) : "inf");
+            writer.print(':');
+            writer.print(counts[i]);
+        }
+        writer.println();
+    }
+
+    private long getPercentileMs(long[] counts, int percentile) {
+        final long count = sum(counts);
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(percentile / 100.0 * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                // The max is a tighter bound for the last buckets.
+                return i < BUCKET_BOUNDS_MS.length
+                        ? Math.min(BUCKET_BOUNDS_MS[i], mMaxMs.get()) : mMaxMs.get();
+            }
+        }
+        return mMaxMs.get();
+    }
+
+    private long[] getCounts() {
+        final long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return counts;
+    }
+
+    private static int getBucket(long latencyMs) {
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            if (latencyMs <= BUCKET_BOUNDS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MS.length;
+    }
+
+    private static long sum(long[] counts) {
+        long sum = 0;
+        for (long count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+}
@@ -48,6 +48,27 @@ public abstract class SandboxedSdkProvider {
      */
     public abstract void onExtraDataReceived(@NonNull Bundle extraData);
 
+    /**
+     * Called when the app opens a {@link SdkChannel} to this sdk. Returns the listener for the
+     * channel, or {@code null} to reject it, which is the default.
+     *
+     * @hide
+     */
+    @Nullable
+    public SdkChannel.Listener onChannelRequested() {
+        return null;
+    }
+
+    /**
+     * Called when the sdk sandbox process should reduce its memory usage, with a level of
+     * {@link android.content.ComponentCallbacks2#onTrimMemory}. Sdks should drop what they can
+     * rebuild later, such as caches. Does nothing by default.
+     *
+     * @hide
+     */
+    public void onTrimMemory(int level) {
+    }
+
     /**
      * Callback for {@link #initSdk}.
      */
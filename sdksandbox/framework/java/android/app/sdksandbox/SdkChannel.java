@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.sdksandbox;
+
+import android.annotation.NonNull;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * An ordered stream of {@link Bundle} messages between an app and an sdk loaded into its sdk
+ * sandbox.
+ *
+ * <p>The channel is brokered once by the system; afterwards messages go directly between the
+ * app and the sandbox, without passing through system_server. Messages are sent in batches, and
+ * the number of messages the peer has not processed yet is bounded: once the limit is reached,
+ * messages queue up locally and {@link #send(Bundle)} eventually starts failing, instead of the
+ * sender filling up the binder buffer of a slow receiver.
+ *
+ * @hide
+ */
+public final class SdkChannel {
+
+    private static final String TAG = "SdkSandboxManager";
+
+    /** Maximum number of messages sent in a single transaction. */
+    private static final int MAX_BATCH_SIZE = 32;
+    /** Maximum number of messages sent to the peer that it has not processed yet. */
+    private static final int MAX_IN_FLIGHT = 256;
+    /** Maximum number of messages queued locally while the peer is behind. */
+    private static final int MAX_QUEUED = 1024;
+
+    /** Receives the events of a {@link SdkChannel}. */
+    public interface Listener {
+        /** Called once the other side is connected; messages can be sent before that. */
+        void onOpened(@NonNull SdkChannel channel);
+
+        /** Called for every message sent by the other side, in order. */
+        void onMessage(@NonNull Bundle message);
+
+        /** Called when the channel is closed by the other side or the other side died. */
+        void onClosed();
+    }
+
+    private final Object mLock = new Object();
+    private final Executor mExecutor;
+    private final Listener mListener;
+    private final Endpoint mEndpoint = new Endpoint();
+    private final IBinder.DeathRecipient mPeerDeathRecipient = () -> closeLocally(true);
+
+    // Guarded by mLock.
+    private ISdkChannel mPeer;
+    private final ArrayDeque<Bundle> mQueue = new ArrayDeque<>();
+    private int mInFlight = 0;
+    private boolean mFlushScheduled = false;
+    private boolean mClosed = false;
+    // Calls to the listener not made yet, in order, and whether one is running on mExecutor.
+    private final ArrayDeque<Runnable> mListenerCalls = new ArrayDeque<>();
+    private boolean mListenerCallScheduled = false;
+
+    /**
+     * Creates a channel whose {@code listener} is called on {@code executor}. The listener is
+     * called one event at a time and in order, even if the executor runs tasks in parallel.
+     *
+     * @hide
+     */
+    public SdkChannel(@NonNull Executor executor, @NonNull Listener listener) {
+        mExecutor = executor;
+        mListener = listener;
+    }
+
+    /**
+     * Queues {@code message} to be sent to the other side.
+     *
+     * @return {@code false} if the channel is closed or too many messages are queued already.
+     */
+    public boolean send(@NonNull Bundle message) {
+        synchronized (mLock) {
+            if (mClosed || mQueue.size() >= MAX_QUEUED) {
+                return false;
+            }
+            mQueue.add(message);
+            if (mQueue.size() >= MAX_BATCH_SIZE) {
+                flushLocked();
+            } else if (!mFlushScheduled) {
+                // Let messages sent in a burst accumulate, then send them together.
+                mFlushScheduled = true;
+                mExecutor.execute(this::flush);
+            }
+            return true;
+        }
+    }
+
+    /** Closes the channel on both sides. Queued messages are dropped. */
+    public void close() {
+        final ISdkChannel peer;
+        synchronized (mLock) {
+            peer = mPeer;
+        }
+        closeLocally(false);
+        if (peer != null) {
+            try {
+                peer.onClosed();
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to close channel", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the binder the other side sends its messages to.
+     *
+     * @hide
+     */
+    @NonNull
+    public ISdkChannel getEndpoint() {
+        return mEndpoint;
+    }
+
+    /**
+     * Connects this channel to {@code peer}, which was created by the other side, and tells the
+     * peer about it.
+     *
+     * @hide
+     */
+    public void connect(@NonNull ISdkChannel peer) {
+        if (attachPeer(peer)) {
+            try {
+                peer.onOpened(mEndpoint);
+            } catch (RemoteException e) {
+                closeLocally(true);
+            }
+        }
+    }
+
+    private boolean attachPeer(ISdkChannel peer) {
+        synchronized (mLock) {
+            if (mClosed || mPeer != null) {
+                return false;
+            }
+            try {
+                peer.asBinder().linkToDeath(mPeerDeathRecipient, 0);
+            } catch (RemoteException e) {
+                mClosed = true;
+                return false;
+            }
+            mPeer = peer;
+            flushLocked();
+        }
+        callListener(() -> mListener.onOpened(this));
+        return true;
+    }
+
+    private void flush() {
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            flushLocked();
+        }
+    }
+
+    private void flushLocked() {
+        // Calls to the peer are oneway, so sending under the lock does not block on the peer,
+        // and keeps batches in order.
+        while (!mClosed && mPeer != null && !mQueue.isEmpty() && mInFlight < MAX_IN_FLIGHT) {
+            final int batchSize = Math.min(mQueue.size(),
+                    Math.min(MAX_BATCH_SIZE, MAX_IN_FLIGHT - mInFlight));
+            final List<Bundle> batch = new ArrayList<>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                batch.add(mQueue.poll());
+            }
+            mInFlight += batchSize;
+            try {
+                mPeer.onMessages(batch);
+            } catch (RemoteException e) {
+                // The batch is lost, so the channel cannot keep its order: close it and tell the
+                // listener, as when the peer dies.
+                Log.w(TAG, "Failed to send messages", e);
+                closeLocally(true);
+                return;
+            }
+        }
+    }
+
+    private void closeLocally(boolean notifyListener) {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mQueue.clear();
+            if (mPeer != null) {
+                mPeer.asBinder().unlinkToDeath(mPeerDeathRecipient, 0);
+            }
+        }
+        if (notifyListener) {
+            callListener(mListener::onClosed);
+        }
+    }
+
+    /** Queues a call to the listener, to run on mExecutor after the calls queued before it. */
+    private void callListener(Runnable call) {
+        synchronized (mLock) {
+            mListenerCalls.add(call);
+            if (mListenerCallScheduled) {
+                return;
+            }
+            mListenerCallScheduled = true;
+        }
+        mExecutor.execute(this::runNextListenerCall);
+    }
+
+    /**
+     * Runs one queued call to the listener, then schedules the next one, so that a busy channel
+     * does not hold on to a thread of a shared executor.
+     */
+    private void runNextListenerCall() {
+        final Runnable call;
+        synchronized (mLock) {
+            call = mListenerCalls.poll();
+        }
+        try {
+            call.run();
+        } finally {
+            scheduleNextListenerCall();
+        }
+    }
+
+    private void scheduleNextListenerCall() {
+        synchronized (mLock) {
+            if (mListenerCalls.isEmpty()) {
+                mListenerCallScheduled = false;
+                return;
+            }
+        }
+        mExecutor.execute(this::runNextListenerCall);
+    }
+
+    private class Endpoint extends ISdkChannel.Stub {
+        @Override
+        public void onOpened(ISdkChannel peer) {
+            attachPeer(peer);
+        }
+
+        @Override
+        public void onMessages(List<Bundle> messages) {
+            callListener(() -> {
+                final ISdkChannel peer;
+                synchronized (mLock) {
+                    if (mClosed || mPeer == null) {
+                        return;
+                    }
+                    peer = mPeer;
+                }
+                for (int i = 0; i < messages.size(); i++) {
+                    mListener.onMessage(messages.get(i));
+                }
+                // Acknowledge once processed, so a slow listener slows the sender down.
+                try {
+                    peer.onAck(messages.size());
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Failed to acknowledge messages", e);
+                }
+            });
+        }
+
+        @Override
+        public void onAck(int count) {
+            synchronized (mLock) {
+                // The peer cannot acknowledge more messages than it was sent.
+                mInFlight -= Math.max(0, Math.min(count, mInFlight));
+                flushLocked();
+            }
+        }
+
+        @Override
+        public void onClosed() {
+            closeLocally(true);
+        }
+    }
+}
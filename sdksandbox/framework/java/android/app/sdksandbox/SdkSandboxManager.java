@@ -20,14 +20,18 @@ import static android.app.sdksandbox.SdkSandboxManager.SDK_SANDBOX_SERVICE;
 
 import android.annotation.IntDef;
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.annotation.SystemService;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SharedMemory;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Provides APIs to load {@link android.content.pm.SharedLibraryInfo#TYPE_SDK_PACKAGE SDKs}
@@ -107,10 +111,38 @@ public final class SdkSandboxManager {
      * @hide
      */
     public void loadSdk(String name, Bundle params, IRemoteSdkCallback callback) {
+        final boolean traced = SdkSandboxTrace.beginSection(
+                "SdkSandboxManager#loadSdk", SdkSandboxTrace.NO_REQUEST_ID);
         try {
             mService.loadSdk(mContext.getPackageName(), name, params, callback);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
+        } finally {
+            SdkSandboxTrace.endSection(traced);
+        }
+    }
+
+    /**
+     * Fetches and loads several sdks into the sdk sandbox with a single call into the system.
+     *
+     * <p>The result of loading {@code names.get(i)} is delivered to {@code callbacks.get(i)}, so
+     * both lists must have the same size.
+     *
+     * @hide
+     */
+    public void loadSdks(@NonNull List<String> names, @NonNull Bundle params,
+            @NonNull List<IRemoteSdkCallback> callbacks) {
+        if (names.size() != callbacks.size()) {
+            throw new IllegalArgumentException("Expected one callback per sdk");
+        }
+        final boolean traced = SdkSandboxTrace.beginSection(
+                "SdkSandboxManager#loadSdks", SdkSandboxTrace.NO_REQUEST_ID);
+        try {
+            mService.loadSdks(mContext.getPackageName(), names, params, callbacks);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        } finally {
+            SdkSandboxTrace.endSection(traced);
         }
     }
 
@@ -121,24 +153,94 @@ public final class SdkSandboxManager {
      */
     public void requestSurfacePackage(IBinder sdkToken, IBinder hostToken, int displayId,
             Bundle params) {
+        final boolean traced = SdkSandboxTrace.beginSection(
+                "SdkSandboxManager#requestSurfacePackage", SdkSandboxTrace.NO_REQUEST_ID);
         try {
             mService.requestSurfacePackage(sdkToken, hostToken, displayId, params);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
+        } finally {
+            SdkSandboxTrace.endSection(traced);
+        }
+    }
+
+    /**
+     * Releases a surface package previously delivered by the remote sdk, so that the sandbox can
+     * free the surface backing it.
+     *
+     * @hide
+     */
+    public void releaseSurfacePackage(IBinder sdkToken, int surfacePackageId) {
+        try {
+            mService.releaseSurfacePackage(sdkToken, surfacePackageId);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
+    /**
+     * Key of the {@link SharedMemory} payload in the bundle passed to
+     * {@link SandboxedSdkProvider#onExtraDataReceived(Bundle)}.
+     *
+     * @hide
+     */
+    public static final String EXTRA_SHARED_MEMORY = "android.app.sdksandbox.extra.SHARED_MEMORY";
+
+    /**
+     * Sends a bundle to the remote sdk, which receives it in
+     * {@link SandboxedSdkProvider#onExtraDataReceived(Bundle)}.
+     *
+     * <p>The bundle is copied into a binder transaction and is therefore subject to its size
+     * limit. Use {@link #sendData(IBinder, Bundle, SharedMemory)} for large payloads.
+     *
+     * @hide
+     */
+    public void sendData(IBinder sdkToken, Bundle params) {
+        try {
+            mService.sendData(sdkToken, params);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
         }
     }
 
     /**
-     * Sends a bundle to supplemental process.
+     * Sends a bundle together with a shared memory payload to the remote sdk.
+     *
+     * <p>Only the file descriptor of {@code payload} crosses process boundaries, so its size is
+     * not limited by binder and the bytes are never copied. The sdk finds the payload under
+     * {@link #EXTRA_SHARED_MEMORY} and should map it with {@link SharedMemory#mapReadOnly()}.
+     * The caller can close {@code payload} once this returns. {@code params} may be null if the
+     * payload is all there is to send.
+     *
+     * @hide
+     */
+    public void sendData(@NonNull IBinder sdkToken, @Nullable Bundle params,
+            @NonNull SharedMemory payload) {
+        final Bundle data = params == null ? new Bundle() : new Bundle(params);
+        data.putParcelable(EXTRA_SHARED_MEMORY, payload);
+        sendData(sdkToken, data);
+    }
+
+    /**
+     * Opens a {@link SdkChannel} to the remote sdk. {@code listener} is called on
+     * {@code executor} once the sdk accepts the channel, or with
+     * {@link SdkChannel.Listener#onClosed()} if it rejects it.
+     *
+     * <p>Unlike {@link #sendData(IBinder, Bundle)}, messages sent over the channel go directly
+     * to the sdk sandbox, which makes it suited to frequent events.
      *
      * @hide
      */
-    public void sendData(int id, Bundle params) {
+    @NonNull
+    public SdkChannel openChannel(@NonNull IBinder sdkToken, @NonNull Executor executor,
+            @NonNull SdkChannel.Listener listener) {
+        final SdkChannel channel = new SdkChannel(executor, listener);
         try {
-            mService.sendData(id, params);
+            mService.openChannel(sdkToken, channel.getEndpoint());
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
+        return channel;
     }
 
     /**
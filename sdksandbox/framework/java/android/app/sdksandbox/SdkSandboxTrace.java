@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.sdksandbox;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Bundle;
+import android.os.Trace;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trace sections that follow a request from the app through system_server into the sdk sandbox.
+ *
+ * <p>Sections are only emitted while tracing is enabled. A request is given an id when tracing
+ * is enabled or when it is sampled; the id is passed along in the params of the request, so that
+ * the sections of each hop can be matched, and their latency recorded, without paying for it on
+ * every request.
+ *
+ * @hide
+ */
+public final class SdkSandboxTrace {
+
+    /** Key of the request id in the params of a request. */
+    public static final String REQUEST_ID_KEY = "sdk-sandbox-request-id";
+    /** Id of requests that were not sampled. */
+    public static final int NO_REQUEST_ID = 0;
+
+    private static final AtomicInteger sNextRequestId = new AtomicInteger();
+
+    private SdkSandboxTrace() {}
+
+    /**
+     * Returns an id for a new request if it is sampled, {@link #NO_REQUEST_ID} otherwise. All
+     * requests are sampled while tracing is enabled, and one in {@code sampleRate} otherwise.
+     */
+    public static int newRequestId(int sampleRate) {
+        if (!Trace.isEnabled()
+                && (sampleRate <= 0 || ThreadLocalRandom.current().nextInt(sampleRate) != 0)) {
+            return NO_REQUEST_ID;
+        }
+        int requestId;
+        do {
+            requestId = sNextRequestId.incrementAndGet();
+        } while (requestId == NO_REQUEST_ID);
+        return requestId;
+    }
+
+    /** Returns the id of the request {@code params} belong to. */
+    public static int getRequestId(@Nullable Bundle params) {
+        return params == null ? NO_REQUEST_ID : params.getInt(REQUEST_ID_KEY, NO_REQUEST_ID);
+    }
+
+    /**
+     * Returns {@code params} along with {@code requestId}. The params are copied rather than
+     * modified, and only if the request is sampled; null params are taken as empty then.
+     */
+    @Nullable
+    public static Bundle withRequestId(@Nullable Bundle params, int requestId) {
+        if (requestId == NO_REQUEST_ID) {
+            return params;
+        }
+        final Bundle result = params == null ? new Bundle() : new Bundle(params);
+        result.putInt(REQUEST_ID_KEY, requestId);
+        return result;
+    }
+
+    /**
+     * Begins a section of the current thread, tagged with {@code requestId} if the request is
+     * sampled. Must be followed by {@link #endSection} on the same thread, with the result.
+     *
+     * @return whether a section was begun, false if tracing was disabled.
+     */
+    public static boolean beginSection(@NonNull String sectionName, int requestId) {
+        if (!Trace.isEnabled()) {
+            return false;
+        }
+        Trace.beginSection(
+                requestId == NO_REQUEST_ID ? sectionName : sectionName + " #" + requestId);
+        return true;
+    }
+
+    /**
+     * Ends the last section begun on the current thread, if {@code sectionBegun}, as returned by
+     * {@link #beginSection}. Tracing may have been enabled in between, and ending a section that
+     * was not begun would end one of the caller's.
+     */
+    public static void endSection(boolean sectionBegun) {
+        if (sectionBegun) {
+            Trace.endSection();
+        }
+    }
+}
@@ -0,0 +1,754 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.sdksandbox;
+
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Verifies that the code of sdks does not use apis that are disallowed in the sdk sandbox.
+ *
+ * <p>The dex files of an apk are read from a memory mapping of the apk rather than extracted,
+ * and streamed, inflated on the fly if they are compressed, so that only their type and method
+ * ids are held in memory. The dex files of all the apks are scanned in parallel, and their type
+ * and method references are matched against {@link #DISALLOWED_APIS}.
+ */
+@ThreadSafe
+class SdkCodeVerifier {
+
+    static final int RESULT_ALLOWED = 0;
+    static final int RESULT_DISALLOWED_API = 1;
+    static final int RESULT_INVALID_APK = 2;
+    static final int RESULT_TIMED_OUT = 3;
+
+    /**
+     * Version of the scan, to bump with any change that may give another result for the same
+     * apk, so that results cached by previous versions are dropped.
+     */
+    static final int VERIFIER_VERSION = 2;
+
+    /**
+     * Apis sdks must not use: type descriptors, or type descriptors and method names separated
+     * by "->". Sdks may not load code that is not part of their package, nor start processes.
+     */
+    @VisibleForTesting
+    static final String[] DISALLOWED_APIS = {
+        "Ldalvik/system/DexClassLoader;",
+        "Ldalvik/system/InMemoryDexClassLoader;",
+        "Ldalvik/system/PathClassLoader;",
+        "Ldalvik/system/DelegateLastClassLoader;",
+        "Ljava/lang/ProcessBuilder;",
+        "Ljava/lang/Runtime;->exec",
+    };
+
+    private static final int MAX_THREADS = 4;
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private static final int ZIP_EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP_EOCD_SIZE = 22;
+    private static final int ZIP_CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int ZIP_CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+    private static final int ZIP_LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP_METHOD_STORED = 0;
+    private static final int ZIP_METHOD_DEFLATED = 8;
+
+    private static final byte[] DEX_MAGIC = {'d', 'e', 'x', '\n'};
+    private static final int DEX_HEADER_SIZE = 0x70;
+    // Bounds on the size a compressed dex file claims, which bounds how much of it is inflated:
+    // well above the size of real dex files, and the ratio deflate achieves on dex code.
+    private static final int MAX_DEX_SIZE = 128 * 1024 * 1024;
+    private static final int MAX_DEX_COMPRESSION_RATIO = 100;
+    // Compressed and inflated bytes handled at once when streaming a compressed dex file.
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+    // Type and method indexes are 16 bits wide in dex code.
+    private static final int MAX_IDS = 0x10000;
+    private static final int DEX_STRING_IDS_SIZE_OFFSET = 0x38;
+    private static final int DEX_TYPE_IDS_SIZE_OFFSET = 0x40;
+    private static final int DEX_METHOD_IDS_SIZE_OFFSET = 0x58;
+    // Items scanned between checks of whether the scan was cancelled.
+    private static final int ITEMS_PER_INTERRUPT_CHECK = 4096;
+
+    // The rules each string matches are kept as bits of an int, so there are at most 32.
+    private static final Rule[] RULES = new Rule[DISALLOWED_APIS.length];
+    // Lengths of the type and method names of the rules, as only strings of those lengths are
+    // read.
+    private static final BitSet RULE_LENGTHS = new BitSet();
+    private static final int MAX_RULE_LENGTH;
+
+    static {
+        for (int i = 0; i < DISALLOWED_APIS.length; i++) {
+            RULES[i] = new Rule(DISALLOWED_APIS[i]);
+            RULE_LENGTHS.set(RULES[i].mType.length);
+            if (RULES[i].mMethod != null) {
+                RULE_LENGTHS.set(RULES[i].mMethod.length);
+            }
+        }
+        MAX_RULE_LENGTH = RULE_LENGTHS.length() - 1;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+
+    SdkCodeVerifier() {
+        final int threads =
+                Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        mExecutor = new ThreadPoolExecutor(threads, threads, THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "SdkCodeVerifier"));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Verifies the code of {@code apks}, giving up on those not verified within
+     * {@code timeoutMs}, and returns the result of each apk in the same order.
+     */
+    List<Result> verify(List<File> apks, long timeoutMs) {
+        final long deadlineMs = SystemClock.elapsedRealtime() + timeoutMs;
+        final Result[] results = new Result[apks.size()];
+        final ArrayList<List<Future<String>>> scans = new ArrayList<>(apks.size());
+        for (int i = 0; i < apks.size(); i++) {
+            final ArrayList<Future<String>> apkScans = new ArrayList<>();
+            scans.add(apkScans);
+            final List<DexEntry> dexEntries;
+            try {
+                dexEntries = findDexEntries(apks.get(i));
+            } catch (IOException | RuntimeException e) {
+                // Whatever the apk holds, it must not throw out of system_server's verification.
+                results[i] = new Result(RESULT_INVALID_APK, e.getMessage());
+                continue;
+            }
+            for (int j = 0; j < dexEntries.size(); j++) {
+                final DexEntry dexEntry = dexEntries.get(j);
+                apkScans.add(mExecutor.submit(() -> scan(dexEntry)));
+            }
+        }
+
+        for (int i = 0; i < apks.size(); i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            results[i] = new Result(RESULT_ALLOWED, null);
+            final List<Future<String>> apkScans = scans.get(i);
+            for (int j = 0; j < apkScans.size(); j++) {
+                try {
+                    final String api = apkScans.get(j).get(
+                            Math.max(0, deadlineMs - SystemClock.elapsedRealtime()),
+                            TimeUnit.MILLISECONDS);
+                    if (api != null) {
+                        results[i] = new Result(RESULT_DISALLOWED_API, api);
+                        break;
+                    }
+                } catch (ExecutionException e) {
+                    results[i] = new Result(RESULT_INVALID_APK, e.getCause().getMessage());
+                    break;
+                } catch (TimeoutException e) {
+                    results[i] = new Result(RESULT_TIMED_OUT, null);
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    results[i] = new Result(RESULT_TIMED_OUT, null);
+                    break;
+                }
+            }
+            // The rest of the apk does not change its result.
+            cancel(apkScans);
+        }
+        return Arrays.asList(results);
+    }
+
+    @Nullable
+    private static String scan(DexEntry dexEntry) throws IOException {
+        try {
+            return findDisallowedApi(dexEntry::open, dexEntry.getDexSize());
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException(dexEntry.mName + " is malformed", e);
+        }
+    }
+
+    /** Returns the first of {@link #DISALLOWED_APIS} referenced by {@code dex}, if any. */
+    @VisibleForTesting
+    @Nullable
+    static String findDisallowedApi(ByteBuffer dex) throws IOException {
+        return findDisallowedApi(() -> new ByteBufferInputStream(dex.duplicate()), dex.limit());
+    }
+
+    /**
+     * Returns the first of {@link #DISALLOWED_APIS} referenced by the dex file of {@code size}
+     * bytes opened by {@code opener}, if any.
+     *
+     * <p>The dex file is streamed twice rather than held in memory: first for its type and
+     * method ids, then for the string data of those ids only. Both are read in file order, which
+     * the dex format guarantees.
+     */
+    @Nullable
+    private static String findDisallowedApi(DexOpener opener, long size) throws IOException {
+        final Section strings;
+        final Section types;
+        final Section methods;
+        final int[] typeDescriptors;
+        final int[] methodTypes;
+        final int[] methodNames;
+        try (InputStream in = opener.open()) {
+            final DexReader dex = new DexReader(in, size);
+            final ByteBuffer header = dex.readHeader();
+            strings = new Section(header, DEX_STRING_IDS_SIZE_OFFSET, 4, size);
+            types = new Section(header, DEX_TYPE_IDS_SIZE_OFFSET, 4, size);
+            methods = new Section(header, DEX_METHOD_IDS_SIZE_OFFSET, 8, size);
+            if (types.mSize > MAX_IDS || methods.mSize > MAX_IDS) {
+                throw new IOException("Too many dex ids");
+            }
+
+            typeDescriptors = new int[types.mSize];
+            if (types.mSize > 0) {
+                dex.skipTo(types.mOffset);
+            }
+            for (int i = 0; i < types.mSize; i++) {
+                typeDescriptors[i] = strings.checkIndex(dex.readInt());
+            }
+            methodTypes = new int[methods.mSize];
+            methodNames = new int[methods.mSize];
+            if (methods.mSize > 0) {
+                dex.skipTo(methods.mOffset);
+            }
+            for (int i = 0; i < methods.mSize; i++) {
+                methodTypes[i] = dex.readUnsignedShort();
+                dex.readUnsignedShort(); // proto_idx
+                methodNames[i] = strings.checkIndex(dex.readInt());
+            }
+        }
+
+        // The rules matched by the strings referenced by the ids, as bits by string index. Few
+        // strings match any rule.
+        final SparseIntArray typeMatches = new SparseIntArray();
+        final SparseIntArray methodMatches = new SparseIntArray();
+        try (InputStream in = opener.open()) {
+            final DexReader dex = new DexReader(in, size);
+            final BitSet stringIndexes = new BitSet();
+            for (int descriptor : typeDescriptors) {
+                stringIndexes.set(descriptor);
+            }
+            for (int name : methodNames) {
+                stringIndexes.set(name);
+            }
+            final long[] stringOffsets = new long[stringIndexes.cardinality()];
+            for (int i = stringIndexes.nextSetBit(0), j = 0; i >= 0;
+                    i = stringIndexes.nextSetBit(i + 1), j++) {
+                dex.skipTo(strings.getItemOffset(i));
+                stringOffsets[j] = (dex.readInt() & 0xffffffffL) << 32 | i;
+            }
+            // Usually already sorted, as string data is laid out in the order of the ids.
+            Arrays.sort(stringOffsets);
+            final byte[] string = new byte[MAX_RULE_LENGTH + 1];
+            long lastOffset = -1;
+            int lastIndex = -1;
+            for (int i = 0; i < stringOffsets.length; i++) {
+                checkInterrupted(i);
+                final long offset = stringOffsets[i] >>> 32;
+                final int index = (int) stringOffsets[i];
+                if (offset == lastOffset) {
+                    // Strings may share their data.
+                    putMatches(typeMatches, index, typeMatches.get(lastIndex));
+                    putMatches(methodMatches, index, methodMatches.get(lastIndex));
+                    continue;
+                }
+                dex.skipTo(offset);
+                // Length in utf-16 code units, which is the length in bytes for ascii.
+                final int length = dex.readUleb128();
+                if (length <= MAX_RULE_LENGTH && RULE_LENGTHS.get(length)) {
+                    dex.readFully(string, length + 1);
+                    int typeRules = 0;
+                    int methodRules = 0;
+                    for (int j = 0; j < RULES.length; j++) {
+                        if (stringEquals(string, length, RULES[j].mType)) {
+                            typeRules |= 1 << j;
+                        }
+                        if (RULES[j].mMethod != null
+                                && stringEquals(string, length, RULES[j].mMethod)) {
+                            methodRules |= 1 << j;
+                        }
+                    }
+                    putMatches(typeMatches, index, typeRules);
+                    putMatches(methodMatches, index, methodRules);
+                }
+                lastOffset = offset;
+                lastIndex = index;
+            }
+        }
+        if (typeMatches.size() == 0) {
+            return null;
+        }
+
+        // The type of the methods of each method rule, if referenced.
+        final int[] ruleTypes = new int[RULES.length];
+        Arrays.fill(ruleTypes, -1);
+        boolean hasRuleType = false;
+        for (int i = 0; i < typeDescriptors.length; i++) {
+            checkInterrupted(i);
+            final int matches = typeMatches.get(typeDescriptors[i]);
+            for (int j = 0; j < RULES.length; j++) {
+                if ((matches & 1 << j) == 0) {
+                    continue;
+                }
+                if (RULES[j].mMethod == null) {
+                    return RULES[j].mApi;
+                }
+                ruleTypes[j] = i;
+                hasRuleType = true;
+            }
+        }
+        if (!hasRuleType) {
+            return null;
+        }
+
+        for (int i = 0; i < methodTypes.length; i++) {
+            checkInterrupted(i);
+            final int matches = methodMatches.get(methodNames[i]);
+            for (int j = 0; j < RULES.length; j++) {
+                if (ruleTypes[j] == methodTypes[i] && (matches & 1 << j) != 0) {
+                    return RULES[j].mApi;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void putMatches(SparseIntArray matches, int index, int rules) {
+        if (rules != 0) {
+            matches.put(index, rules);
+        }
+    }
+
+    /**
+     * Whether the string of {@code length} read into {@code string}, followed by its terminator,
+     * is {@code expected}, in ascii.
+     */
+    private static boolean stringEquals(byte[] string, int length, byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (string[i] != expected[i]) {
+                return false;
+            }
+        }
+        return string[length] == 0;
+    }
+
+    private static void checkInterrupted(int item) throws InterruptedIOException {
+        if (item % ITEMS_PER_INTERRUPT_CHECK == 0 && Thread.interrupted()) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void cancel(List<Future<String>> scans) {
+        for (int i = 0; i < scans.size(); i++) {
+            scans.get(i).cancel(/*mayInterruptIfRunning=*/ true);
+        }
+    }
+
+    /** Returns the top level dex files of {@code apk}, without reading them. */
+    private static List<DexEntry> findDexEntries(File apk) throws IOException {
+        final ByteBuffer zip;
+        try (FileChannel channel = FileChannel.open(apk.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(apk + " is too large");
+            }
+            zip = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        zip.order(ByteOrder.LITTLE_ENDIAN);
+
+        final int endOfCentralDirectory = findEndOfCentralDirectory(zip);
+        final int entries = zip.getShort(endOfCentralDirectory + 10) & 0xffff;
+        int offset = zip.getInt(endOfCentralDirectory + 16);
+        final ArrayList<DexEntry> dexEntries = new ArrayList<>();
+        for (int i = 0; i < entries; i++) {
+            if (offset < 0 || offset > zip.limit() - ZIP_CENTRAL_DIRECTORY_HEADER_SIZE
+                    || zip.getInt(offset) != ZIP_CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new IOException(apk + " has an invalid central directory");
+            }
+            final int method = zip.getShort(offset + 10) & 0xffff;
+            final int compressedSize = zip.getInt(offset + 20);
+            final int size = zip.getInt(offset + 24);
+            final int nameLength = zip.getShort(offset + 28) & 0xffff;
+            final int extraLength = zip.getShort(offset + 30) & 0xffff;
+            final int commentLength = zip.getShort(offset + 32) & 0xffff;
+            final int localHeaderOffset = zip.getInt(offset + 42);
+            if ((long) offset + ZIP_CENTRAL_DIRECTORY_HEADER_SIZE + nameLength > zip.limit()) {
+                throw new IOException(apk + " has an invalid central directory");
+            }
+            final byte[] nameBytes = new byte[nameLength];
+            final ByteBuffer nameBuffer = zip.duplicate();
+            nameBuffer.position(offset + ZIP_CENTRAL_DIRECTORY_HEADER_SIZE);
+            nameBuffer.get(nameBytes);
+            final String name = new String(nameBytes, StandardCharsets.UTF_8);
+            offset += ZIP_CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength
+                    + commentLength;
+
+            if (!name.startsWith("classes") || !name.endsWith(".dex") || name.contains("/")) {
+                continue;
+            }
+            if (localHeaderOffset < 0 || localHeaderOffset > zip.limit() - ZIP_LOCAL_HEADER_SIZE
+                    || zip.getInt(localHeaderOffset) != ZIP_LOCAL_HEADER_SIGNATURE) {
+                throw new IOException(name + " has an invalid local header");
+            }
+            final int dataOffset = localHeaderOffset + ZIP_LOCAL_HEADER_SIZE
+                    + (zip.getShort(localHeaderOffset + 26) & 0xffff)
+                    + (zip.getShort(localHeaderOffset + 28) & 0xffff);
+            if (compressedSize < 0 || size < 0
+                    || (long) dataOffset + compressedSize > zip.limit()) {
+                throw new IOException(name + " is truncated");
+            }
+            if (method != ZIP_METHOD_STORED && (size > MAX_DEX_SIZE
+                    || (long) size > (long) compressedSize * MAX_DEX_COMPRESSION_RATIO)) {
+                throw new IOException(name + " is too large: " + size + " bytes, "
+                        + compressedSize + " compressed");
+            }
+            dexEntries.add(new DexEntry(zip, name, method, dataOffset, compressedSize, size));
+        }
+        return dexEntries;
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer zip) throws IOException {
+        // The end of central directory record ends with a comment of at most 64KiB.
+        final int last = zip.limit() - ZIP_EOCD_SIZE;
+        for (int i = last; i >= 0 && i >= last - 0xffff; i--) {
+            if (zip.getInt(i) == ZIP_EOCD_SIGNATURE) {
+                return i;
+            }
+        }
+        throw new IOException("Not a zip file");
+    }
+
+    /** Result of the verification of an apk. */
+    static final class Result {
+        final int mCode;
+        // The disallowed api used, or why the apk is invalid.
+        @Nullable final String mDetail;
+
+        Result(int code, @Nullable String detail) {
+            mCode = code;
+            mDetail = detail;
+        }
+
+        @Override
+        public String toString() {
+            final String code;
+            switch (mCode) {
+                case RESULT_ALLOWED:
+                    code = "allowed";
+                    break;
+                case RESULT_DISALLOWED_API:
+                    code = "disallowed api";
+                    break;
+                case RESULT_INVALID_APK:
+                    code = "invalid apk";
+                    break;
+                default:
+                    code = "timed out";
+                    break;
+            }
+            return mDetail == null ? code : code + ": " + mDetail;
+        }
+    }
+
+    /** Opens a dex file from its start. */
+    private interface DexOpener {
+        InputStream open() throws IOException;
+    }
+
+    /** A dex file in the memory mapping of an apk. */
+    private static final class DexEntry {
+        final ByteBuffer mZip;
+        final String mName;
+        final int mMethod;
+        final int mDataOffset;
+        final int mCompressedSize;
+        final int mSize;
+
+        DexEntry(ByteBuffer zip, String name, int method, int dataOffset, int compressedSize,
+                int size) {
+            mZip = zip;
+            mName = name;
+            mMethod = method;
+            mDataOffset = dataOffset;
+            mCompressedSize = compressedSize;
+            mSize = size;
+        }
+
+        long getDexSize() {
+            return mMethod == ZIP_METHOD_STORED ? mCompressedSize : mSize;
+        }
+
+        /** Opens the dex file, inflated on the fly if it is compressed. */
+        InputStream open() throws IOException {
+            final ByteBuffer data = mZip.duplicate();
+            data.limit(mDataOffset + mCompressedSize);
+            data.position(mDataOffset);
+            final InputStream in = new ByteBufferInputStream(data.slice());
+            if (mMethod == ZIP_METHOD_STORED) {
+                return in;
+            }
+            if (mMethod != ZIP_METHOD_DEFLATED) {
+                throw new IOException(mName + " uses unsupported compression " + mMethod);
+            }
+            final Inflater inflater = new Inflater(/*nowrap=*/ true);
+            return new InflaterInputStream(in, inflater, INFLATE_BUFFER_SIZE) {
+                private final byte[] mSkipBuffer = new byte[INFLATE_BUFFER_SIZE];
+
+                @Override
+                public long skip(long n) throws IOException {
+                    // Inflates in larger steps than the default skip.
+                    final int count = read(mSkipBuffer, 0, (int) Math.min(n, mSkipBuffer.length));
+                    return Math.max(0, count);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    // Not ended by close, as it was not created by the stream.
+                    inflater.end();
+                }
+            };
+        }
+    }
+
+    /** An input stream over the remaining bytes of a buffer. */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + count);
+            return count;
+        }
+    }
+
+    /**
+     * Reads a dex file of a known size forward only, in little endian. Reads past that size fail,
+     * so that a dex file inflating to more than it claims is not read further.
+     */
+    private static final class DexReader {
+        private static final int BUFFER_SIZE = 8192;
+
+        private final InputStream mIn;
+        private final long mSize;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mBufferPosition = 0;
+        private int mBufferLimit = 0;
+        // Offset in the dex file of the next byte read.
+        private long mPosition = 0;
+
+        DexReader(InputStream in, long size) {
+            mIn = in;
+            mSize = size;
+        }
+
+        /** Reads the header of the dex file, which must be the first read. */
+        ByteBuffer readHeader() throws IOException {
+            if (mSize < DEX_HEADER_SIZE) {
+                throw new IOException("Not a dex file");
+            }
+            final byte[] header = new byte[DEX_HEADER_SIZE];
+            readFully(header, DEX_HEADER_SIZE);
+            for (int i = 0; i < DEX_MAGIC.length; i++) {
+                if (header[i] != DEX_MAGIC[i]) {
+                    throw new IOException("Not a dex file");
+                }
+            }
+            return ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        int readUnsignedByte() throws IOException {
+            if (mBufferPosition == mBufferLimit) {
+                fill();
+            }
+            mPosition++;
+            return mBuffer[mBufferPosition++] & 0xff;
+        }
+
+        int readUnsignedShort() throws IOException {
+            return readUnsignedByte() | readUnsignedByte() << 8;
+        }
+
+        int readInt() throws IOException {
+            if (mBufferLimit - mBufferPosition < 4) {
+                return readUnsignedShort() | readUnsignedShort() << 16;
+            }
+            final int value = (mBuffer[mBufferPosition] & 0xff)
+                    | (mBuffer[mBufferPosition + 1] & 0xff) << 8
+                    | (mBuffer[mBufferPosition + 2] & 0xff) << 16
+                    | (mBuffer[mBufferPosition + 3] & 0xff) << 24;
+            mBufferPosition += 4;
+            mPosition += 4;
+            return value;
+        }
+
+        int readUleb128() throws IOException {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readUnsignedByte();
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0 && shift < 35);
+            return value;
+        }
+
+        void readFully(byte[] bytes, int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                if (mBufferPosition == mBufferLimit) {
+                    fill();
+                }
+                final int count = Math.min(length - read, mBufferLimit - mBufferPosition);
+                System.arraycopy(mBuffer, mBufferPosition, bytes, read, count);
+                mBufferPosition += count;
+                mPosition += count;
+                read += count;
+            }
+        }
+
+        /** Skips to {@code offset}, which must not be before what was read already. */
+        void skipTo(long offset) throws IOException {
+            if (offset < mPosition) {
+                throw new IOException("Unsupported dex layout at " + offset);
+            }
+            if (offset > mSize) {
+                throw new IOException("Invalid dex offset " + offset);
+            }
+            final int buffered = (int) Math.min(offset - mPosition, mBufferLimit - mBufferPosition);
+            mBufferPosition += buffered;
+            mPosition += buffered;
+            while (mPosition < offset) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+                final long count = mIn.skip(offset - mPosition);
+                if (count <= 0) {
+                    throw new EOFException("Dex file is truncated");
+                }
+                mPosition += count;
+            }
+        }
+
+        private void fill() throws IOException {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+            if (mPosition >= mSize) {
+                throw new IOException("Dex file read past its size of " + mSize);
+            }
+            final int count = mIn.read(mBuffer, 0, (int) Math.min(BUFFER_SIZE, mSize - mPosition));
+            if (count <= 0) {
+                throw new EOFException("Dex file is truncated");
+            }
+            mBufferPosition = 0;
+            mBufferLimit = count;
+        }
+    }
+
+    /** A section of ids of a dex file, whose size and offset are in the dex header. */
+    private static final class Section {
+        final int mSize;
+        final int mOffset;
+        final int mItemSize;
+
+        Section(ByteBuffer header, int headerOffset, int itemSize, long dexSize)
+                throws IOException {
+            mSize = header.getInt(headerOffset);
+            mOffset = header.getInt(headerOffset + 4);
+            mItemSize = itemSize;
+            if (mSize < 0 || (mSize > 0 && mOffset < DEX_HEADER_SIZE)
+                    || (long) mOffset + (long) mSize * itemSize > dexSize) {
+                throw new IOException("Invalid dex section at " + headerOffset);
+            }
+        }
+
+        long getItemOffset(int index) {
+            return mOffset + (long) index * mItemSize;
+        }
+
+        int checkIndex(int index) throws IOException {
+            if (index < 0 || index >= mSize) {
+                throw new IOException("Invalid dex index " + index);
+            }
+            return index;
+        }
+    }
+
+    private static final class Rule {
+        final String mApi;
+        final byte[] mType;
+        @Nullable final byte[] mMethod;
+
+        Rule(String api) {
+            mApi = api;
+            final int index = api.indexOf("->");
+            mType = (index < 0 ? api : api.substring(0, index)).getBytes(StandardCharsets.UTF_8);
+            mMethod = index < 0 ? null : api.substring(index + 2).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.sdksandbox;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Queue of the apps whose sdk data needs to be reconciled.
+ *
+ * <p>Reconciles requested again for an app before it was reconciled are coalesced into a single
+ * one. Requests are batched per user: a user's pending reconciles are processed together, one
+ * after the other, while the reconciles of different users proceed in parallel.
+ */
+@ThreadSafe
+class SdkDataReconcileQueue {
+
+    /** Reconciles the sdk data of an app. */
+    interface Reconciler {
+        void reconcile(String packageName, int uid, boolean forInstrumentation);
+    }
+
+    private static final String TAG = "SdkSandboxManager";
+
+    // Lets the requests of a burst of broadcasts, e.g. added then replaced, coalesce.
+    private static final long BATCH_DELAY_MS = 200;
+    private static final int MAX_THREADS = 4;
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private final Reconciler mReconciler;
+    private final Handler mHandler;
+    private final Executor mExecutor;
+
+    private final Object mLock = new Object();
+    // Pending reconciles by user, then by package name.
+    @GuardedBy("mLock")
+    private final SparseArray<ArrayMap<String, Request>> mPending = new SparseArray<>();
+    // Users whose pending reconciles are scheduled or being processed.
+    @GuardedBy("mLock")
+    private final SparseBooleanArray mScheduledUsers = new SparseBooleanArray();
+    @GuardedBy("mLock")
+    private int mDepth = 0;
+    @GuardedBy("mLock")
+    private int mMaxDepth = 0;
+    @GuardedBy("mLock")
+    private long mRequests = 0;
+    @GuardedBy("mLock")
+    private long mCoalesced = 0;
+    @GuardedBy("mLock")
+    private long mBatches = 0;
+    @GuardedBy("mLock")
+    private long mProcessed = 0;
+    @GuardedBy("mLock")
+    private long mLagTotalMs = 0;
+    @GuardedBy("mLock")
+    private long mLagMaxMs = 0;
+
+    SdkDataReconcileQueue(Reconciler reconciler, Handler handler) {
+        mReconciler = reconciler;
+        mHandler = handler;
+        // Reconciling is mostly waiting for installd, so a few threads are enough to keep the
+        // users apart without competing with the rest of boot.
+        final int threads =
+                Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() / 2));
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "SdkDataReconcile"));
+        executor.allowCoreThreadTimeOut(true);
+        mExecutor = executor;
+    }
+
+    /** Queues a reconcile of the sdk data of {@code packageName}, installed for {@code uid}. */
+    void enqueue(String packageName, int uid, boolean forInstrumentation) {
+        final int userId = UserHandle.getUserHandleForUid(uid).getIdentifier();
+        synchronized (mLock) {
+            mRequests++;
+            ArrayMap<String, Request> requests = mPending.get(userId);
+            if (requests == null) {
+                requests = new ArrayMap<>();
+                mPending.put(userId, requests);
+            }
+            final Request pending = requests.get(packageName);
+            if (pending != null) {
+                pending.mUid = uid;
+                pending.mForInstrumentation |= forInstrumentation;
+                mCoalesced++;
+                return;
+            }
+            requests.put(packageName,
+                    new Request(uid, forInstrumentation, SystemClock.elapsedRealtime()));
+            mDepth++;
+            mMaxDepth = Math.max(mMaxDepth, mDepth);
+            if (!mScheduledUsers.get(userId)) {
+                mScheduledUsers.put(userId, true);
+                mHandler.postDelayed(
+                        () -> mExecutor.execute(() -> processUser(userId)), BATCH_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Drops the pending reconcile of {@code packageName}, for when its sdk data is reconciled
+     * right away instead.
+     */
+    void remove(String packageName, int uid) {
+        final int userId = UserHandle.getUserHandleForUid(uid).getIdentifier();
+        synchronized (mLock) {
+            final ArrayMap<String, Request> requests = mPending.get(userId);
+            if (requests != null && requests.remove(packageName) != null) {
+                mDepth--;
+            }
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.printf("depth: %d, max depth: %d, requests: %d, coalesced: %d", mDepth,
+                    mMaxDepth, mRequests, mCoalesced);
+            writer.println();
+            writer.printf("batches: %d, reconciles: %d, avg lag: %d ms, max lag: %d ms",
+                    mBatches, mProcessed, mProcessed == 0 ? 0 : mLagTotalMs / mProcessed,
+                    mLagMaxMs);
+            writer.println();
+        }
+    }
+
+    private void processUser(int userId) {
+        while (true) {
+            final ArrayMap<String, Request> batch;
+            synchronized (mLock) {
+                batch = mPending.get(userId);
+                mPending.remove(userId);
+                if (batch == null || batch.isEmpty()) {
+                    mScheduledUsers.delete(userId);
+                    return;
+                }
+                mDepth -= batch.size();
+                mBatches++;
+                final long nowMs = SystemClock.elapsedRealtime();
+                for (int i = 0; i < batch.size(); i++) {
+                    final long lagMs = nowMs - batch.valueAt(i).mEnqueuedAtMs;
+                    mProcessed++;
+                    mLagTotalMs += lagMs;
+                    mLagMaxMs = Math.max(mLagMaxMs, lagMs);
+                }
+            }
+            // Requests made meanwhile are processed with the next batch.
+            for (int i = 0; i < batch.size(); i++) {
+                final Request request = batch.valueAt(i);
+                try {
+                    mReconciler.reconcile(
+                            batch.keyAt(i), request.mUid, request.mForInstrumentation);
+                } catch (RuntimeException e) {
+                    // The other apps are still reconciled, and the user is still rescheduled.
+                    Log.w(TAG, "Failed to reconcile sdk data of " + batch.keyAt(i), e);
+                }
+            }
+        }
+    }
+
+    private static class Request {
+        int mUid;
+        boolean mForInstrumentation;
+        final long mEnqueuedAtMs;
+
+        Request(int uid, boolean forInstrumentation, long enqueuedAtMs) {
+            mUid = uid;
+            mForInstrumentation = forInstrumentation;
+            mEnqueuedAtMs = enqueuedAtMs;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.sdksandbox;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Base64;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.pm.PackageManagerLocal;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reconciles the sdk data directories of apps, {@code misc_{ce,de}/<user>/sdksandbox/<package>},
+ * with the sdks the apps use.
+ *
+ * <p>The directory of an sdk is named after the sdk with a random suffix, and installd deletes
+ * the directories it is not asked for. The directories on disk are scanned so that the suffix of
+ * an sdk is kept once chosen, and installd is only called when directories need to be created
+ * or deleted.
+ */
+class SdkDataReconciler {
+
+    private static final String TAG = "SdkSandboxManager";
+
+    static final String SHARED_DIR_NAME = "shared";
+    private static final char SUFFIX_SEPARATOR = '@';
+
+    private final PackageManagerLocal mPackageManagerLocal;
+    // Root of the data of the internal volume, usually /data.
+    private final File mDataDir;
+    private final SecureRandom mRandom = new SecureRandom();
+    // Reconciles of an app are serialized, so that concurrent ones do not pick different
+    // directories for a new sdk, while different apps are reconciled in parallel. The locks are
+    // kept by user and package only while in use.
+    @GuardedBy("mPackageLocks")
+    private final ArrayMap<String, PackageLock> mPackageLocks = new ArrayMap<>();
+
+    @GuardedBy("this")
+    private long mReconciles = 0;
+    @GuardedBy("this")
+    private long mInstalldCalls = 0;
+
+    SdkDataReconciler(PackageManagerLocal packageManagerLocal, File dataDir) {
+        mPackageManagerLocal = packageManagerLocal;
+        mDataDir = dataDir;
+    }
+
+    /**
+     * Makes the sdk data directory of {@code packageName} hold one directory per sdk of
+     * {@code sdkNames}, plus the shared one, calling into installd only if they are not all
+     * there already or if there are others.
+     *
+     * @param flags the {@code PackageManagerLocal.FLAG_STORAGE_*} storages to reconcile.
+     * @return whether the sdk data directory is up to date, false if installd failed.
+     */
+    boolean reconcile(String packageName, int userId, int appId, List<String> sdkNames, int flags) {
+        final PackageLock lock = acquirePackageLock(userId, packageName);
+        try {
+            synchronized (lock) {
+                return reconcileLocked(packageName, userId, appId, sdkNames, flags);
+            }
+        } finally {
+            releasePackageLock(lock);
+        }
+    }
+
+    /** Reconciles the sdk data of {@code packageName}, with the lock of the package held. */
+    private boolean reconcileLocked(
+            String packageName, int userId, int appId, List<String> sdkNames, int flags) {
+        final Diff diff = computeDiff(packageName, userId, sdkNames,
+                (flags & PackageManagerLocal.FLAG_STORAGE_CE) != 0);
+        synchronized (this) {
+            mReconciles++;
+            if (diff.isEmpty()) {
+                return true;
+            }
+            mInstalldCalls++;
+        }
+        Log.d(TAG, "Reconciling sdk data of " + packageName + ", creating " + diff.mToCreate
+                + ", deleting " + diff.mToDelete);
+        try {
+            //TODO(b/224719352): Pass actual seinfo from here
+            mPackageManagerLocal.reconcileSdkData(/*volumeUuid=*/null, packageName,
+                    diff.mSubDirNames, userId, appId, /*previousAppId=*/-1,
+                    /*seInfo=*/"default", flags);
+            return true;
+        } catch (Exception e) {
+            // We will retry when sdk gets loaded
+            Log.w(TAG, "Failed to reconcileSdkData for " + packageName + " subDirNames: "
+                    + String.join(", ", diff.mSubDirNames) + " error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Returns the sub directories the sdk data directory of {@code packageName} should have,
+     * reusing the per-sdk directories on disk, and how they differ from those on disk.
+     */
+    @VisibleForTesting(visibility = VisibleForTesting.Visibility.PRIVATE)
+    @NonNull
+    Diff computeDiff(String packageName, int userId, List<String> sdkNames, boolean includeCe) {
+        // Sub directories of the package in each storage, null if it could not be listed.
+        final ArrayList<String[]> dirsOnDisk = new ArrayList<>(2);
+        dirsOnDisk.add(listSubDirs(getPackageDir("misc_de", userId, packageName)));
+        if (includeCe) {
+            dirsOnDisk.add(listSubDirs(getPackageDir("misc_ce", userId, packageName)));
+        }
+
+        // The directory of each sdk is the one on disk if there is one.
+        final ArrayMap<String, String> sdkDirNames = new ArrayMap<>(sdkNames.size());
+        for (int i = 0; i < dirsOnDisk.size(); i++) {
+            final String[] dirNames = dirsOnDisk.get(i);
+            if (dirNames == null) {
+                continue;
+            }
+            for (String dirName : dirNames) {
+                final String sdkName = getSdkName(dirName);
+                if (sdkName != null && sdkNames.contains(sdkName)
+                        && !sdkDirNames.containsKey(sdkName)) {
+                    sdkDirNames.put(sdkName, dirName);
+                }
+            }
+        }
+        final ArrayList<String> subDirNames = new ArrayList<>(sdkNames.size() + 1);
+        subDirNames.add(SHARED_DIR_NAME);
+        for (int i = 0; i < sdkNames.size(); i++) {
+            final String sdkName = sdkNames.get(i);
+            final String dirName = sdkDirNames.get(sdkName);
+            subDirNames.add(dirName != null ? dirName : sdkName + SUFFIX_SEPARATOR + newSuffix());
+        }
+
+        final ArraySet<String> toCreate = new ArraySet<>();
+        final ArraySet<String> toDelete = new ArraySet<>();
+        for (int i = 0; i < dirsOnDisk.size(); i++) {
+            final String[] dirNames = dirsOnDisk.get(i);
+            final List<String> onDisk =
+                    dirNames == null ? new ArrayList<>() : Arrays.asList(dirNames);
+            for (int j = 0; j < subDirNames.size(); j++) {
+                if (!onDisk.contains(subDirNames.get(j))) {
+                    toCreate.add(subDirNames.get(j));
+                }
+            }
+            for (int j = 0; j < onDisk.size(); j++) {
+                if (!subDirNames.contains(onDisk.get(j))) {
+                    toDelete.add(onDisk.get(j));
+                }
+            }
+        }
+        return new Diff(subDirNames, toCreate, toDelete);
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.printf("reconciles: %d, installd calls: %d", mReconciles, mInstalldCalls);
+        writer.println();
+    }
+
+    private PackageLock acquirePackageLock(int userId, String packageName) {
+        final String key = userId + "/" + packageName;
+        synchronized (mPackageLocks) {
+            PackageLock lock = mPackageLocks.get(key);
+            if (lock == null) {
+                lock = new PackageLock(key);
+                mPackageLocks.put(key, lock);
+            }
+            lock.mHolders++;
+            return lock;
+        }
+    }
+
+    private void releasePackageLock(PackageLock lock) {
+        synchronized (mPackageLocks) {
+            if (--lock.mHolders == 0) {
+                mPackageLocks.remove(lock.mKey);
+            }
+        }
+    }
+
+    private File getPackageDir(String storage, int userId, String packageName) {
+        return new File(mDataDir, storage + "/" + userId + "/sdksandbox/" + packageName);
+    }
+
+    @Nullable
+    private static String[] listSubDirs(File dir) {
+        final String[] names = dir.list();
+        if (names != null) {
+            // Picks the same directory of an sdk every time if there are several.
+            Arrays.sort(names);
+        }
+        return names;
+    }
+
+    @Nullable
+    private static String getSdkName(String dirName) {
+        final int index = dirName.lastIndexOf(SUFFIX_SEPARATOR);
+        return index <= 0 ? null : dirName.substring(0, index);
+    }
+
+    private String newSuffix() {
+        final byte[] bytes = new byte[16];
+        mRandom.nextBytes(bytes);
+        return Base64.encodeToString(bytes, Base64.URL_SAFE | Base64.NO_WRAP);
+    }
+
+    /** Lock of the sdk data of a package, with the number of threads holding or waiting on it. */
+    private static final class PackageLock {
+        final String mKey;
+        @GuardedBy("mPackageLocks")
+        int mHolders = 0;
+
+        PackageLock(String key) {
+            mKey = key;
+        }
+    }
+
+    /** Sub directories of an app's sdk data directory, and what differs from those on disk. */
+    static final class Diff {
+        final List<String> mSubDirNames;
+        final ArraySet<String> mToCreate;
+        final ArraySet<String> mToDelete;
+
+        Diff(List<String> subDirNames, ArraySet<String> toCreate, ArraySet<String> toDelete) {
+            mSubDirNames = subDirNames;
+            mToCreate = toCreate;
+            mToDelete = toDelete;
+        }
+
+        boolean isEmpty() {
+            return mToCreate.isEmpty() && mToDelete.isEmpty();
+        }
+    }
+}
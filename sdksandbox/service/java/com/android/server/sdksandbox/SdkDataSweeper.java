@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.sdksandbox;
+
+import android.annotation.Nullable;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.SharedLibraryInfo;
+import android.os.UserManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.pm.PackageManagerLocal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Reconciles the sdk data of all the apps of a user that use sdks, so that apps whose package
+ * broadcasts were missed have their sdk data before they start.
+ *
+ * <p>The fingerprint of each app reconciled is persisted per user along with the storages it was
+ * reconciled in, and apps whose fingerprint did not change since, with no storage added, are
+ * skipped by later sweeps. Apps are reconciled by a few threads in parallel,
+ * at a bounded rate so that a sweep at boot does not starve the rest of the system.
+ */
+@ThreadSafe
+class SdkDataSweeper {
+
+    private static final String TAG = "SdkSandboxManager";
+
+    /** Reconciles the sdk data of an app. */
+    interface Reconciler {
+        /**
+         * Returns whether the sdk data of the app is up to date in {@code storageFlags}, the
+         * {@code PackageManagerLocal.FLAG_STORAGE_*} storages to reconcile.
+         */
+        boolean reconcile(String packageName, int uid, List<String> sdkNames, int storageFlags);
+    }
+
+    static final String FINGERPRINTS_FILE_NAME = "sdk_data_fingerprints";
+
+    private static final int SWEEP_THREAD_POOL_SIZE = 2;
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+    // At most 50 apps reconciled per second.
+    private static final long MIN_RECONCILE_INTERVAL_MS = 20;
+
+    private final Context mContext;
+    private final Reconciler mReconciler;
+    // Root of the data of the internal volume, usually /data.
+    private final File mDataDir;
+    // Runs the sweeps, one at a time.
+    private final Executor mSweepExecutor;
+    // Reconciles the apps of a sweep.
+    private final Executor mReconcileExecutor;
+
+    @GuardedBy("this")
+    private long mSweeps = 0;
+    @GuardedBy("this")
+    private long mAppsSkipped = 0;
+    @GuardedBy("this")
+    private long mAppsReconciled = 0;
+    @GuardedBy("this")
+    private long mAppsFailed = 0;
+    @GuardedBy("this")
+    private long mLastSweepDurationMs = 0;
+
+    SdkDataSweeper(Context context, Reconciler reconciler, File dataDir) {
+        mContext = context;
+        mReconciler = reconciler;
+        mDataDir = dataDir;
+        mSweepExecutor = newExecutor(1, "SdkDataSweep");
+        mReconcileExecutor = newExecutor(SWEEP_THREAD_POOL_SIZE, "SdkDataSweepReconcile");
+    }
+
+    /** Sweeps the apps of {@code userHandle} in the background. */
+    void sweep(UserHandle userHandle) {
+        mSweepExecutor.execute(() -> {
+            final List<App> apps = getAppsUsingSdks(userHandle);
+            if (apps == null) {
+                return;
+            }
+            // CE storage is only available once the user is unlocked.
+            final int storageFlags =
+                    mContext.getSystemService(UserManager.class).isUserUnlocked(userHandle)
+                            ? PackageManagerLocal.FLAG_STORAGE_CE
+                                    | PackageManagerLocal.FLAG_STORAGE_DE
+                            : PackageManagerLocal.FLAG_STORAGE_DE;
+            sweep(userHandle.getIdentifier(), storageFlags, apps);
+        });
+    }
+
+    /**
+     * Reconciles in {@code storageFlags} those of {@code apps} whose fingerprint or storages
+     * changed since the last sweep of {@code userId}, and returns how many were reconciled.
+     */
+    @VisibleForTesting(visibility = VisibleForTesting.Visibility.PRIVATE)
+    int sweep(int userId, int storageFlags, List<App> apps) {
+        final long startMs = SystemClock.elapsedRealtime();
+        final AtomicFile file = getFingerprintsFile(userId);
+        final ArrayMap<String, String> lastFingerprints = readFingerprints(file);
+        // Only the apps installed now are kept.
+        final ArrayMap<String, String> fingerprints = new ArrayMap<>(apps.size());
+        final ArrayList<App> toReconcile = new ArrayList<>();
+        for (int i = 0; i < apps.size(); i++) {
+            final App app = apps.get(i);
+            final String fingerprint = app.getFingerprint(storageFlags);
+            if (fingerprint.equals(lastFingerprints.get(app.mPackageName))) {
+                fingerprints.put(app.mPackageName, fingerprint);
+            } else {
+                toReconcile.add(app);
+            }
+        }
+
+        final CountDownLatch done = new CountDownLatch(toReconcile.size());
+        final AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < toReconcile.size(); i++) {
+            final App app = toReconcile.get(i);
+            if (i > 0) {
+                SystemClock.sleep(MIN_RECONCILE_INTERVAL_MS);
+            }
+            mReconcileExecutor.execute(() -> {
+                try {
+                    if (mReconciler.reconcile(
+                            app.mPackageName, app.mUid, app.mSdkNames, storageFlags)) {
+                        synchronized (fingerprints) {
+                            fingerprints.put(app.mPackageName, app.getFingerprint(storageFlags));
+                        }
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed to reconcile sdk data of " + app.mPackageName, e);
+                    failed.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+
+        if (!fingerprints.equals(lastFingerprints)) {
+            writeFingerprints(file, fingerprints);
+        }
+        final long durationMs = SystemClock.elapsedRealtime() - startMs;
+        synchronized (this) {
+            mSweeps++;
+            mAppsSkipped += apps.size() - toReconcile.size();
+            mAppsReconciled += toReconcile.size() - failed.get();
+            mAppsFailed += failed.get();
+            mLastSweepDurationMs = durationMs;
+        }
+        Log.d(TAG, "Swept sdk data of user " + userId + " in " + durationMs + " ms, reconciled "
+                + toReconcile.size() + " of " + apps.size() + " apps using sdks");
+        return toReconcile.size();
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.printf("sweeps: %d, apps skipped: %d, apps reconciled: %d, apps failed: %d, "
+                + "last sweep: %d ms", mSweeps, mAppsSkipped, mAppsReconciled, mAppsFailed,
+                mLastSweepDurationMs);
+        writer.println();
+    }
+
+    @Nullable
+    private List<App> getAppsUsingSdks(UserHandle userHandle) {
+        final PackageManager pm = mContext.createContextAsUser(userHandle, 0).getPackageManager();
+        final List<PackageInfo> packages;
+        try {
+            packages = pm.getInstalledPackages(
+                    PackageManager.PackageInfoFlags.of(PackageManager.GET_SHARED_LIBRARY_FILES));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to list the packages of user " + userHandle, e);
+            return null;
+        }
+        final ArrayList<App> apps = new ArrayList<>();
+        for (int i = 0; i < packages.size(); i++) {
+            final App app = App.from(packages.get(i));
+            if (app != null) {
+                apps.add(app);
+            }
+        }
+        return apps;
+    }
+
+    private AtomicFile getFingerprintsFile(int userId) {
+        return new AtomicFile(new File(mDataDir,
+                "system_de/" + userId + "/sdksandbox/" + FINGERPRINTS_FILE_NAME));
+    }
+
+    /** Reads the fingerprints of a user, written one app per line as its name then fingerprint. */
+    private static ArrayMap<String, String> readFingerprints(AtomicFile file) {
+        final ArrayMap<String, String> fingerprints = new ArrayMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(file.openRead(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int index = line.indexOf(' ');
+                if (index > 0) {
+                    fingerprints.put(line.substring(0, index), line.substring(index + 1));
+                }
+            }
+        } catch (FileNotFoundException ignored) {
+            // Never swept.
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file.getBaseFile(), e);
+            fingerprints.clear();
+        }
+        return fingerprints;
+    }
+
+    private static void writeFingerprints(AtomicFile file, ArrayMap<String, String> fingerprints) {
+        final File dir = file.getBaseFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + dir);
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            final StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < fingerprints.size(); i++) {
+                builder.append(fingerprints.keyAt(i)).append(' ')
+                        .append(fingerprints.valueAt(i)).append('\n');
+            }
+            out.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file.getBaseFile(), e);
+            file.failWrite(out);
+        }
+    }
+
+    private static Executor newExecutor(int threads, String name) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** An app using sdks, and the fingerprint of what its sdk data depends on. */
+    static final class App {
+        final String mPackageName;
+        final int mUid;
+        final List<String> mSdkNames;
+        final String mFingerprint;
+
+        App(String packageName, int uid, List<String> sdkNames, long lastUpdateTime) {
+            mPackageName = packageName;
+            mUid = uid;
+            mSdkNames = sdkNames;
+            // Reinstalling the app or changing its sdks changes the fingerprint.
+            mFingerprint = uid + "," + lastUpdateTime + "," + String.join(",", sdkNames);
+        }
+
+        /**
+         * Returns the fingerprint of the app once reconciled in {@code storageFlags}, so that
+         * an app reconciled before its user was unlocked is reconciled again in CE storage.
+         */
+        String getFingerprint(int storageFlags) {
+            return storageFlags + ";" + mFingerprint;
+        }
+
+        @Nullable
+        static App from(PackageInfo packageInfo) {
+            final ApplicationInfo appInfo = packageInfo.applicationInfo;
+            if (appInfo == null || appInfo.getSharedLibraryInfos() == null) {
+                return null;
+            }
+            final List<SharedLibraryInfo> sharedLibraries = appInfo.getSharedLibraryInfos();
+            final ArrayList<String> sdkNames = new ArrayList<>();
+            for (int i = 0; i < sharedLibraries.size(); i++) {
+                if (sharedLibraries.get(i).getType() == SharedLibraryInfo.TYPE_SDK_PACKAGE) {
+                    sdkNames.add(sharedLibraries.get(i).getName());
+                }
+            }
+            return sdkNames.isEmpty() ? null : new App(packageInfo.packageName, appInfo.uid,
+                    sdkNames, packageInfo.lastUpdateTime);
+        }
+    }
+}
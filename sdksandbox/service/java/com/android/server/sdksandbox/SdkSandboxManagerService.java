@@ -19,11 +19,15 @@ package com.android.server.sdksandbox;
 import static android.app.sdksandbox.SdkSandboxManager.SDK_SANDBOX_SERVICE;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.annotation.RequiresPermission;
 import android.app.ActivityManager;
 import android.app.sdksandbox.IRemoteSdkCallback;
+import android.app.sdksandbox.ISdkChannel;
 import android.app.sdksandbox.ISdkSandboxManager;
+import android.app.sdksandbox.LatencyHistogram;
 import android.app.sdksandbox.SdkSandboxManager;
+import android.app.sdksandbox.SdkSandboxTrace;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -35,19 +39,21 @@ import android.content.pm.PackageManager;
 import android.content.pm.SharedLibraryInfo;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
-import android.util.Base64;
 import android.util.Log;
-import android.util.Pair;
+import android.util.SparseArray;
 import android.view.SurfaceControlViewHost;
 import android.webkit.WebViewUpdateService;
 
@@ -62,12 +68,18 @@ import com.android.server.pm.PackageManagerLocal;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
-import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -81,40 +93,90 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
     private static final String TAG = "SdkSandboxManager";
     private static final String PROPERTY_SDK_PROVIDER_CLASS_NAME =
             "android.sdksandbox.PROPERTY_SDK_PROVIDER_CLASS_NAME";
+    // Number of threads resolving and dispatching SDK loads in parallel.
+    private static final int LOAD_SDK_THREAD_POOL_SIZE = 4;
+    private static final long LOAD_SDK_THREAD_KEEP_ALIVE_SECONDS = 30;
+    // A sandbox that stayed up this long is considered healthy again, and its crash count is
+    // reset.
+    private static final long SANDBOX_STABLE_AFTER_MS = 5 * 60_000;
+    // Surface package requests of an sdk whose latency is tracked while they are in flight.
+    private static final int MAX_SURFACE_PACKAGE_REQUESTS_TRACKED = 16;
+    // Time dump waits for the sdks to report their resource usage.
+    private static final long RESOURCE_USAGE_DUMP_TIMEOUT_MS = 1_000;
+
+    // Arguments of dump: only print the latency histograms, one line each, for tools; and
+    // clear the histograms once dumped.
+    private static final String DUMP_ARG_HISTOGRAMS = "--histograms";
+    private static final String DUMP_ARG_RESET = "--reset";
 
     private final Context mContext;
     private final SdkTokenManager mSdkTokenManager = new SdkTokenManager();
+    private final SdkProviderInfoCache mSdkProviderInfoCache = new SdkProviderInfoCache();
+    private final SdkDataReconciler mSdkDataReconciler;
+    private final SdkDataReconcileQueue mSdkDataReconcileQueue;
+    private final SdkDataSweeper mSdkDataSweeper;
 
     private final ActivityManager mActivityManager;
+    // Whether idle sandboxes are released by default, computed once as it cannot change.
+    private final boolean mIsLowRamDevice;
     private final Handler mHandler;
-    private final PackageManagerLocal mPackageManagerLocal;
 
     private final SdkSandboxServiceProvider mServiceProvider;
 
-    private final Object mLock = new Object();
-
-    // For communication between app<-ManagerService->RemoteCode for each codeToken
-    // TODO(b/208824602): Remove from this map when an app dies.
-    @GuardedBy("mLock")
-    private final ArrayMap<IBinder, AppAndRemoteSdkLink> mAppAndRemoteSdkLinks = new ArrayMap<>();
-    // TODO: Following 2 should be keyed by (packageName, uid) pair
-    @GuardedBy("mLock")
-    private final ArrayMap<Integer, HashSet<Integer>> mAppLoadedSdkUids = new ArrayMap<>();
-    @GuardedBy("mLock")
-    private final ArraySet<Integer> mRunningInstrumentations = new ArraySet<>();
+    // Resolves SDK providers and dispatches loads off the binder thread, so that several loads
+    // and the sandbox binding can make progress at the same time.
+    private final Executor mLoadSdkExecutor;
+
+    // For communication between app<-ManagerService->RemoteCode for each codeToken. Links of
+    // an app are found through the tokens of its uid in mSdkTokenManager.
+    private final ConcurrentHashMap<IBinder, AppAndRemoteSdkLink> mAppAndRemoteSdkLinks =
+            new ConcurrentHashMap<>();
+    // State of each app uid that uses the sdk sandbox, locked per app so that calls of different
+    // apps do not contend with each other. Removed once the app has no sdk and no sandbox left.
+    private final ConcurrentHashMap<Integer, AppState> mAppStates = new ConcurrentHashMap<>();
+    // Reverse index of AppState#mLoadedSdkUids: the app uids that loaded each sdk uid.
+    @GuardedBy("mSdkUidToAppUids")
+    private final SparseArray<ArraySet<Integer>> mSdkUidToAppUids = new SparseArray<>();
+    // Links unloaded because their sdk is being updated, by sdk uid. They are loaded again once
+    // the new version of the sdk is installed.
+    @GuardedBy("mSdksPendingReload")
+    private final SparseArray<ArrayList<AppAndRemoteSdkLink>> mSdksPendingReload =
+            new SparseArray<>();
+    // Sandboxes bound speculatively and not used by any load yet, across all apps. Locked after
+    // the state of an app.
+    @GuardedBy("mPrewarmedSandboxes")
+    private final ArraySet<SandboxServiceConnection> mPrewarmedSandboxes = new ArraySet<>();
 
     private final SdkSandboxManagerLocal mLocalManager;
 
+    private final PrewarmStats mPrewarmStats = new PrewarmStats();
+    private final RecoveryStats mRecoveryStats = new RecoveryStats();
+    private final TraceStats mTraceStats = new TraceStats();
+    private final LatencyStats mLatencyStats = new LatencyStats();
+
 
     SdkSandboxManagerService(Context context, SdkSandboxServiceProvider provider) {
         mContext = context;
         mServiceProvider = provider;
         mActivityManager = mContext.getSystemService(ActivityManager.class);
+        mIsLowRamDevice = mActivityManager.isLowRamDevice();
         // Start the handler thread.
         HandlerThread handlerThread = new HandlerThread("SdkSandboxManagerServiceHandler");
         handlerThread.start();
         mHandler = new Handler(handlerThread.getLooper());
-        mPackageManagerLocal = LocalManagerRegistry.getManager(PackageManagerLocal.class);
+        final ThreadPoolExecutor loadSdkExecutor = new ThreadPoolExecutor(
+                LOAD_SDK_THREAD_POOL_SIZE, LOAD_SDK_THREAD_POOL_SIZE,
+                LOAD_SDK_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "SdkSandboxManagerServiceLoadSdk"));
+        loadSdkExecutor.allowCoreThreadTimeOut(true);
+        mLoadSdkExecutor = loadSdkExecutor;
+        mSdkDataReconciler = new SdkDataReconciler(
+                LocalManagerRegistry.getManager(PackageManagerLocal.class),
+                Environment.getDataDirectory());
+        mSdkDataReconcileQueue = new SdkDataReconcileQueue(this::reconcileSdkData, mHandler);
+        mSdkDataSweeper = new SdkDataSweeper(
+                mContext, this::reconcileSdkData, Environment.getDataDirectory());
         registerBroadcastReceivers();
 
         mLocalManager = new LocalImpl();
@@ -132,6 +194,8 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
                 if (sdkUid == -1) {
                     return;
                 }
+                mSdkProviderInfoCache.invalidate(
+                        sdkUid, intent.getData().getSchemeSpecificPart());
                 final boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
                 if (replacing) {
                     mHandler.post(() -> onSdkUpdating(sdkUid));
@@ -151,10 +215,12 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
             public void onReceive(Context context, Intent intent) {
                 final String packageName = intent.getData().getSchemeSpecificPart();
                 final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                mSdkProviderInfoCache.invalidate(uid, packageName);
+                mHandler.post(() -> reloadUpdatedSdk(uid));
                 // TODO(b/223386213): We could miss broadcast or app might be started before we
                 // handle broadcast.
-                mHandler.post(
-                        () -> reconcileSdkData(packageName, uid, /* forInstrumentation= */ false));
+                mSdkDataReconcileQueue.enqueue(
+                        packageName, uid, /* forInstrumentation= */ false);
             }
         };
         mContext.registerReceiver(packageAddedIntentReceiver, packageAddedIntentFilter,
@@ -162,17 +228,17 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
     }
 
     private void onSdkUpdating(int sdkUid) {
-        final ArrayList<Integer> appUids = new ArrayList<>();
-        synchronized (mLock) {
-            for (Map.Entry<Integer, HashSet<Integer>> appEntry :
-                    mAppLoadedSdkUids.entrySet()) {
-                final int appUid = appEntry.getKey();
-                final HashSet<Integer> loadedCodeUids = appEntry.getValue();
-
-                if (loadedCodeUids.contains(sdkUid)) {
-                    appUids.add(appUid);
-                }
+        final ArrayList<Integer> appUids;
+        synchronized (mSdkUidToAppUids) {
+            final ArraySet<Integer> users = mSdkUidToAppUids.get(sdkUid);
+            if (users == null) {
+                return;
             }
+            appUids = new ArrayList<>(users);
+        }
+        if (SdkSandboxSettings.isSdkHotSwapEnabled()) {
+            unloadUpdatingSdk(sdkUid, appUids);
+            return;
         }
         for (Integer appUid : appUids) {
             Log.i(TAG, "Killing app " + appUid + " containing code " + sdkUid);
@@ -180,6 +246,111 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
         }
     }
 
+    /**
+     * Unloads the sdk {@code sdkUid} from the sandboxes of {@code appUids} while it is being
+     * updated. The apps keep running, and get {@link IRemoteSdkCallback#onSdkReloaded} once the
+     * new version is loaded in place of the old one.
+     */
+    private void unloadUpdatingSdk(int sdkUid, List<Integer> appUids) {
+        final ArrayList<AppAndRemoteSdkLink> unloaded = new ArrayList<>();
+        for (int i = 0; i < appUids.size(); i++) {
+            final int appUid = appUids.get(i);
+            final AppState appState = getAppState(appUid);
+            final ISdkSandboxService service;
+            synchronized (appState) {
+                service = appState.mSandboxConnection == null
+                        ? null : appState.mSandboxConnection.mService;
+            }
+            if (service == null) {
+                continue;
+            }
+            final List<IBinder> sdkTokens = mSdkTokenManager.getSdkTokensForUid(appUid);
+            for (int j = 0; j < sdkTokens.size(); j++) {
+                final AppAndRemoteSdkLink link = mAppAndRemoteSdkLinks.get(sdkTokens.get(j));
+                if (link == null || link.mSdkUid != sdkUid) {
+                    continue;
+                }
+                Log.i(TAG, "Unloading sdk " + link.mSdkName + " of app " + appUid
+                        + " for update");
+                link.onUnloaded();
+                try {
+                    service.unloadSdk(link.mSdkToken);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Failed to unload sdk " + link.mSdkName, e);
+                }
+                unloaded.add(link);
+            }
+        }
+        if (unloaded.isEmpty()) {
+            return;
+        }
+        synchronized (mSdksPendingReload) {
+            final ArrayList<AppAndRemoteSdkLink> pending = mSdksPendingReload.get(sdkUid);
+            if (pending == null) {
+                mSdksPendingReload.put(sdkUid, unloaded);
+            } else {
+                pending.addAll(unloaded);
+            }
+        }
+    }
+
+    /** Loads the new version of the sdk {@code sdkUid} where it was unloaded for the update. */
+    private void reloadUpdatedSdk(int sdkUid) {
+        final ArrayList<AppAndRemoteSdkLink> links;
+        synchronized (mSdksPendingReload) {
+            links = mSdksPendingReload.get(sdkUid);
+            if (links == null) {
+                return;
+            }
+            mSdksPendingReload.remove(sdkUid);
+        }
+        for (int i = 0; i < links.size(); i++) {
+            final AppAndRemoteSdkLink link = links.get(i);
+            if (mAppAndRemoteSdkLinks.get(link.mSdkToken) != link) {
+                // The app died in the meantime.
+                continue;
+            }
+            Log.i(TAG, "Reloading updated sdk " + link.mSdkName + " of app " + link.mAppUid);
+            reloadSdk(link);
+        }
+    }
+
+    @GuardedBy("mSdksPendingReload")
+    private boolean isPendingReloadLocked(AppAndRemoteSdkLink link) {
+        final ArrayList<AppAndRemoteSdkLink> links = mSdksPendingReload.get(link.mSdkUid);
+        return links != null && links.contains(link);
+    }
+
+    /**
+     * Marks the sdks of {@code appUid} whose load reached its sandbox as unloaded, and adds their
+     * links to {@code links}, to load them again into a new sandbox later. The {@link AppState}
+     * of the app must be locked.
+     */
+    private void unloadSdksOfAppLocked(int appUid, ArrayList<AppAndRemoteSdkLink> links) {
+        final List<IBinder> sdkTokens = mSdkTokenManager.getSdkTokensForUid(appUid);
+        synchronized (mSdksPendingReload) {
+            for (int i = 0; i < sdkTokens.size(); i++) {
+                final AppAndRemoteSdkLink link = mAppAndRemoteSdkLinks.get(sdkTokens.get(i));
+                // Only links whose load reached the sandbox; the others are still queued.
+                // Links of updating sdks are loaded again by reloadUpdatedSdk.
+                if (link == null || link.mSdkUid == Process.INVALID_UID
+                        || links.contains(link) || isPendingReloadLocked(link)) {
+                    continue;
+                }
+                link.onUnloaded();
+                links.add(link);
+            }
+        }
+    }
+
+    /** Loads the sdk of {@code link} again, with the params it was first loaded with. */
+    private void reloadSdk(AppAndRemoteSdkLink link) {
+        final int requestId = newRequestId();
+        mLoadSdkExecutor.execute(() -> resolveAndLoadSdks(link.mAppUid, link.mAppPackageName,
+                Collections.singletonList(link.mSdkName), link.mParams,
+                Collections.singletonList(link), requestId));
+    }
+
     /**
      * Returns list of sdks {@code packageName} uses
      */
@@ -204,14 +375,6 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
         }
     }
 
-    // Returns a random string.
-    private static String getRandomString() {
-        SecureRandom random = new SecureRandom();
-        byte[] bytes = new byte[16];
-        random.nextBytes(bytes);
-        return Base64.encodeToString(bytes, Base64.URL_SAFE | Base64.NO_WRAP);
-    }
-
     private void reconcileSdkData(String packageName, int uid, boolean forInstrumentation) {
         final List<SharedLibraryInfo> sdksUsed = getSdksUsed(packageName);
         if (sdksUsed.isEmpty()) {
@@ -226,95 +389,186 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
                 return;
             }
         }
-        final List<String> subDirNames = new ArrayList<>();
-        subDirNames.add("shared");
+        final List<String> sdkNames = new ArrayList<>(sdksUsed.size());
         for (int i = 0; i < sdksUsed.size(); i++) {
-            final SharedLibraryInfo sdk = sdksUsed.get(i);
-            //TODO(b/223386213): We need to scan the sdk package directory so that we don't create
-            //multiple subdirectories for the same sdk, due to passing different random suffix.
-            subDirNames.add(sdk.getName() + "@" + getRandomString());
+            sdkNames.add(sdksUsed.get(i).getName());
         }
+        reconcileSdkData(packageName, uid, sdkNames);
+    }
+
+    private boolean reconcileSdkData(String packageName, int uid, List<String> sdkNames) {
         final UserHandle userHandle = UserHandle.getUserHandleForUid(uid);
-        final int userId = userHandle.getIdentifier();
-        final int appId = UserHandle.getAppId(uid);
         final int flags = mContext.getSystemService(UserManager.class).isUserUnlocked(userHandle)
                 ? PackageManagerLocal.FLAG_STORAGE_CE | PackageManagerLocal.FLAG_STORAGE_DE
                 : PackageManagerLocal.FLAG_STORAGE_DE;
+        return reconcileSdkData(packageName, uid, sdkNames, flags);
+    }
 
-        try {
-            //TODO(b/224719352): Pass actual seinfo from here
-            mPackageManagerLocal.reconcileSdkData(/*volumeUuid=*/null, packageName, subDirNames,
-                    userId, appId, /*previousAppId=*/-1, /*seInfo=*/"default", flags);
-        } catch (Exception e) {
-            // We will retry when sdk gets loaded
-            Log.w(TAG, "Failed to reconcileSdkData for " + packageName + " subDirNames: "
-                    + String.join(", ", subDirNames) + " error: " + e.getMessage());
-        }
+    private boolean reconcileSdkData(
+            String packageName, int uid, List<String> sdkNames, int storageFlags) {
+        final UserHandle userHandle = UserHandle.getUserHandleForUid(uid);
+        return mSdkDataReconciler.reconcile(packageName, userHandle.getIdentifier(),
+                UserHandle.getAppId(uid), sdkNames, storageFlags);
     }
 
     @Override
     public void loadSdk(String callingPackage, String name, Bundle params,
             IRemoteSdkCallback callback) {
-        final int callingUid = Binder.getCallingUid();
-        synchronized (mLock) {
-            if (mRunningInstrumentations.contains(callingUid)) {
-                throw new SecurityException(
-                        "Currently running instrumentation of this sdk sandbox process");
+        loadSdks(callingPackage, Collections.singletonList(name), params,
+                Collections.singletonList(callback));
+    }
+
+    @Override
+    public void loadSdks(String callingPackage, List<String> names, Bundle params,
+            List<IRemoteSdkCallback> callbacks) {
+        if (names.size() != callbacks.size()) {
+            throw new IllegalArgumentException("Expected one callback per sdk, got "
+                    + callbacks.size() + " callbacks for " + names.size() + " sdks");
+        }
+        final int requestId = newRequestId();
+        final boolean traced = SdkSandboxTrace.beginSection(
+                "SdkSandboxManagerService#loadSdk", requestId);
+        try {
+            final int callingUid = Binder.getCallingUid();
+            final AppState appState = getAppState(callingUid);
+            synchronized (appState) {
+                if (appState.mRunningInstrumentation) {
+                    throw new SecurityException(
+                            "Currently running instrumentation of this sdk sandbox process");
+                }
+            }
+            final long enforceStartMs = TraceStats.start(requestId);
+            enforceCallingPackage(callingPackage, callingUid);
+            mTraceStats.record(TraceStats.HOP_ENFORCE_CALLING_PACKAGE, enforceStartMs);
+            final long token = Binder.clearCallingIdentity();
+            try {
+                loadSdksWithClearIdentity(
+                        callingUid, callingPackage, names, params, callbacks, requestId);
+            } finally {
+                Binder.restoreCallingIdentity(token);
             }
+        } finally {
+            SdkSandboxTrace.endSection(traced);
         }
-        enforceCallingPackage(callingPackage, callingUid);
+    }
+
+    /**
+     * Returns an id for a new request if it is sampled, see {@link SdkSandboxTrace}. The sample
+     * rate is read with the identity of system_server, whatever the caller.
+     */
+    private static int newRequestId() {
         final long token = Binder.clearCallingIdentity();
         try {
-            loadSdkWithClearIdentity(callingUid, callingPackage, name, params, callback);
+            return SdkSandboxTrace.newRequestId(SdkSandboxSettings.getTraceSampleRate());
         } finally {
             Binder.restoreCallingIdentity(token);
         }
     }
 
-    private void loadSdkWithClearIdentity(int callingUid, String callingPackage, String name,
-            Bundle params, IRemoteSdkCallback callback) {
-        // Step 1: create unique identity for the {callingUid, name} pair
-        final IBinder sdkToken = mSdkTokenManager.createOrGetSdkToken(callingUid, name);
-
-        // Ensure we are not already loading sdk for this sdkToken. That's determined by
-        // checking if we already have an AppAndRemoteCodeLink for the sdkToken.
-        final AppAndRemoteSdkLink link = new AppAndRemoteSdkLink(sdkToken, callback);
-        synchronized (mLock) {
+    private void loadSdksWithClearIdentity(int callingUid, String callingPackage,
+            List<String> names, Bundle params, List<IRemoteSdkCallback> callbacks,
+            int requestId) {
+        final ArrayList<String> sdkNames = new ArrayList<>(names.size());
+        final ArrayList<AppAndRemoteSdkLink> links = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            final String name = names.get(i);
+            final IRemoteSdkCallback callback = callbacks.get(i);
+
+            // Step 1: create unique identity for the {callingUid, name} pair
+            final IBinder sdkToken = mSdkTokenManager.createOrGetSdkToken(callingUid, name);
+
+            // Ensure we are not already loading sdk for this sdkToken. That's determined by
+            // checking if we already have an AppAndRemoteCodeLink for the sdkToken.
+            final AppAndRemoteSdkLink link = new AppAndRemoteSdkLink(
+                    sdkToken, callback, callingUid, callingPackage, name, params);
             if (mAppAndRemoteSdkLinks.putIfAbsent(sdkToken, link) != null) {
                 link.sendLoadSdkErrorToApp(SdkSandboxManager.LOAD_SDK_SDK_ALREADY_LOADED,
                         name + " is being loaded or has been loaded already");
+                continue;
+            }
+
+            // Register a death recipient to clean up sdkToken and unbind its service after app
+            // dies.
+            try {
+                callback.asBinder().linkToDeath(() -> {
+                    onAppDeath(sdkToken, callingUid);
+                }, 0);
+            } catch (RemoteException re) {
+                // App has already died, cleanup sdk token and link, and unbind its service
+                onAppDeath(sdkToken, callingUid);
                 return;
             }
+            sdkNames.add(name);
+            links.add(link);
         }
-        // Step 2: fetch the installed code in device
-        SdkProviderInfo sdkProviderInfo = createSdkProviderInfo(name, callingUid);
-
-        String errorMsg = "";
-        if (sdkProviderInfo == null) {
-            errorMsg = name + " not found for loading";
-        } else if (TextUtils.isEmpty(sdkProviderInfo.getSdkProviderClassName())) {
-            errorMsg = name + " did not set " + PROPERTY_SDK_PROVIDER_CLASS_NAME;
+        if (links.isEmpty()) {
+            return;
         }
 
-        if (!TextUtils.isEmpty(errorMsg)) {
-            Log.w(TAG, errorMsg);
-            link.sendLoadSdkErrorToApp(SdkSandboxManager.LOAD_SDK_SDK_NOT_FOUND, errorMsg);
-            return;
+        // Step 2: start binding to the sdk sandbox. The bind is shared by all loads of the app
+        // and proceeds while the SDK providers are being resolved below.
+        final int firstLoad;
+        final AppState appState = getAppState(callingUid);
+        synchronized (appState) {
+            final SandboxServiceConnection existing = appState.mSandboxConnection;
+            if (existing == null) {
+                firstLoad = PrewarmStats.FIRST_LOAD_COLD;
+            } else if (existing.mPrewarmed) {
+                firstLoad = PrewarmStats.FIRST_LOAD_WARM;
+            } else {
+                firstLoad = PrewarmStats.NOT_FIRST_LOAD;
+            }
+            getOrBindSandboxLocked(appState, callingPackage).setPrewarmedLocked(false);
+            appState.mLastSdkActivityMs = SystemClock.elapsedRealtime();
+        }
+        if (firstLoad != PrewarmStats.NOT_FIRST_LOAD) {
+            final long loadRequestedAtMs = SystemClock.elapsedRealtime();
+            for (int i = 0; i < links.size(); i++) {
+                links.get(i).setFirstLoad(firstLoad, loadRequestedAtMs);
+            }
         }
 
-        // TODO(b/204991850): ensure requested code is included in the AndroidManifest.xml
-        invokeSdkSandboxServiceToLoadSdk(callingUid, callingPackage, sdkToken, sdkProviderInfo,
-                params, link);
+        // Step 3: fetch the installed code in device and dispatch it to the sandbox once bound
+        mLoadSdkExecutor.execute(() -> resolveAndLoadSdks(
+                callingUid, callingPackage, sdkNames, params, links, requestId));
+    }
 
-        // Register a death recipient to clean up sdkToken and unbind its service after app dies.
+    private void resolveAndLoadSdks(int callingUid, String callingPackage, List<String> names,
+            Bundle params, List<AppAndRemoteSdkLink> links, int requestId) {
+        final long resolveStartMs = TraceStats.start(requestId);
+        final Map<String, SdkProviderInfo> sdkProviderInfos;
+        final boolean traced = SdkSandboxTrace.beginSection(
+                "SdkSandboxManagerService#resolveSdks", requestId);
         try {
-            callback.asBinder().linkToDeath(() -> {
-                onAppDeath(sdkToken, callingUid);
-            }, 0);
-        } catch (RemoteException re) {
-            // App has already died, cleanup sdk token and link, and unbind its service
-            onAppDeath(sdkToken, callingUid);
+            sdkProviderInfos = createSdkProviderInfos(names, callingUid);
+        } finally {
+            SdkSandboxTrace.endSection(traced);
         }
+        mTraceStats.record(TraceStats.HOP_RESOLVE_SDKS, resolveStartMs);
+
+        final PendingLoad pendingLoad = new PendingLoad(callingUid, params, requestId);
+        for (int i = 0; i < names.size(); i++) {
+            final String name = names.get(i);
+            final AppAndRemoteSdkLink link = links.get(i);
+            final SdkProviderInfo sdkProviderInfo = sdkProviderInfos.get(name);
+
+            String errorMsg = "";
+            if (sdkProviderInfo == null) {
+                errorMsg = name + " not found for loading";
+            } else if (TextUtils.isEmpty(sdkProviderInfo.getSdkProviderClassName())) {
+                errorMsg = name + " did not set " + PROPERTY_SDK_PROVIDER_CLASS_NAME;
+            }
+
+            if (!TextUtils.isEmpty(errorMsg)) {
+                Log.w(TAG, errorMsg);
+                link.sendLoadSdkErrorToApp(SdkSandboxManager.LOAD_SDK_SDK_NOT_FOUND, errorMsg);
+                continue;
+            }
+            pendingLoad.add(link, sdkProviderInfo);
+        }
+
+        // TODO(b/204991850): ensure requested code is included in the AndroidManifest.xml
+        invokeSdkSandboxServiceToLoadSdk(callingUid, callingPackage, pendingLoad);
     }
 
     private void enforceCallingPackage(String callingPackage, int callingUid) {
@@ -333,13 +587,32 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
 
     private void onAppDeath(IBinder sdkToken, int appUid) {
         cleanUp(sdkToken);
+        // All the sdks of the app are gone with it, not just the one whose callback died first.
+        final List<IBinder> sdkTokens = mSdkTokenManager.destroyAllForUid(appUid);
+        for (int i = 0; i < sdkTokens.size(); i++) {
+            mAppAndRemoteSdkLinks.remove(sdkTokens.get(i));
+        }
         final int sdkSandboxUid = Process.toSdkSandboxUid(appUid);
-        mServiceProvider.unbindService(appUid);
-        synchronized (mLock) {
-            mAppLoadedSdkUids.remove(appUid);
+        unbindSandbox(appUid);
+        final AppState appState = getAppState(appUid);
+        final ArrayList<Integer> loadedSdkUids;
+        synchronized (appState) {
+            loadedSdkUids = new ArrayList<>(appState.mLoadedSdkUids);
+            appState.mLoadedSdkUids.clear();
+            appState.mIdleReleasedLinks.clear();
+        }
+        synchronized (mSdkUidToAppUids) {
+            for (int i = 0; i < loadedSdkUids.size(); i++) {
+                final int sdkUid = loadedSdkUids.get(i);
+                final ArraySet<Integer> users = mSdkUidToAppUids.get(sdkUid);
+                if (users != null && users.remove(appUid) && users.isEmpty()) {
+                    mSdkUidToAppUids.remove(sdkUid);
+                }
+            }
         }
         Log.i(TAG, "Killing sdk sandbox process " + sdkSandboxUid);
         mActivityManager.killUid(sdkSandboxUid, "App " + appUid + " has died");
+        maybeRemoveAppState(appUid);
     }
 
     @Override
@@ -357,17 +630,75 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
 
     private void requestSurfacePackageWithClearIdentity(IBinder sdkToken,
             IBinder hostToken, int displayId, Bundle params) {
-        synchronized (mLock) {
-            if (!mAppAndRemoteSdkLinks.containsKey(sdkToken)) {
-                throw new SecurityException("sdkToken is invalid");
-            }
-            final AppAndRemoteSdkLink link = mAppAndRemoteSdkLinks.get(sdkToken);
-            link.requestSurfacePackageToCode(hostToken, displayId, params);
+        final AppAndRemoteSdkLink link = mAppAndRemoteSdkLinks.get(sdkToken);
+        if (link == null) {
+            throw new SecurityException("sdkToken is invalid");
+        }
+        final int requestId = newRequestId();
+        final boolean traced = SdkSandboxTrace.beginSection(
+                "SdkSandboxManagerService#requestSurfacePackage", requestId);
+        try {
+            noteSdkActivity(link);
+            link.requestSurfacePackageToCode(
+                    hostToken, displayId, SdkSandboxTrace.withRequestId(params, requestId));
+        } finally {
+            SdkSandboxTrace.endSection(traced);
+        }
+    }
+
+    @Override
+    public void releaseSurfacePackage(IBinder sdkToken, int surfacePackageId) {
+        final int callingUid = Binder.getCallingUid();
+        final long token = Binder.clearCallingIdentity();
+        try {
+            final AppAndRemoteSdkLink link = getLinkOfCaller(sdkToken, callingUid);
+            noteSdkActivity(link);
+            link.releaseSurfacePackageToCode(surfacePackageId);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    @Override
+    public void sendData(IBinder sdkToken, Bundle params) {
+        final int callingUid = Binder.getCallingUid();
+        final long token = Binder.clearCallingIdentity();
+        try {
+            final AppAndRemoteSdkLink link = getLinkOfCaller(sdkToken, callingUid);
+            noteSdkActivity(link);
+            // params is forwarded without being unparcelled, so that file descriptors of shared
+            // memory payloads are passed along rather than their contents.
+            link.sendDataToCode(params);
+        } finally {
+            Binder.restoreCallingIdentity(token);
         }
     }
 
     @Override
-    public void sendData(int id, Bundle params) {
+    public void openChannel(IBinder sdkToken, ISdkChannel appEndpoint) {
+        final int callingUid = Binder.getCallingUid();
+        final long token = Binder.clearCallingIdentity();
+        try {
+            // The channel bypasses the service once open, so its owner is checked up front.
+            final AppAndRemoteSdkLink link = getLinkOfCaller(sdkToken, callingUid);
+            noteSdkActivity(link);
+            // The service only introduces the two ends, messages then go directly between them.
+            link.openChannelToCode(appEndpoint);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    /** Returns the link of {@code sdkToken}, which must belong to {@code callingUid}. */
+    private AppAndRemoteSdkLink getLinkOfCaller(IBinder sdkToken, int callingUid) {
+        final AppAndRemoteSdkLink link = mAppAndRemoteSdkLinks.get(sdkToken);
+        if (link == null) {
+            throw new SecurityException("sdkToken is invalid");
+        }
+        if (link.mAppUid != callingUid) {
+            throw new SecurityException("sdkToken does not belong to uid " + callingUid);
+        }
+        return link;
     }
 
     @Override
@@ -376,224 +707,1217 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
         mContext.enforceCallingPermission(android.Manifest.permission.DUMP,
                 "Can't dump " + TAG);
 
+        final List<String> argList = args == null ? Collections.emptyList() : Arrays.asList(args);
+        if (argList.contains(DUMP_ARG_HISTOGRAMS)) {
+            mLatencyStats.dumpRaw(writer);
+        } else {
+            dumpState(writer);
+        }
+        if (argList.contains(DUMP_ARG_RESET)) {
+            mLatencyStats.reset();
+        }
+    }
+
+    private void dumpState(PrintWriter writer) {
         // TODO(b/211575098): Use IndentingPrintWriter for better formatting
-        synchronized (mLock) {
-            writer.println("mAppAndRemoteSdkLinks size: " + mAppAndRemoteSdkLinks.size());
+        writer.println("mAppAndRemoteSdkLinks size: " + mAppAndRemoteSdkLinks.size());
+        writer.println("mAppStates size: " + mAppStates.size());
+        synchronized (mSdkUidToAppUids) {
+            writer.println("mSdkUidToAppUids size: " + mSdkUidToAppUids.size());
         }
 
         writer.println("mSdkTokenManager:");
         mSdkTokenManager.dump(writer);
         writer.println();
 
-        writer.println("mServiceProvider:");
-        mServiceProvider.dump(writer);
+        writer.println("mSdkProviderInfoCache:");
+        mSdkProviderInfoCache.dump(writer);
         writer.println();
-    }
 
+        writer.println("mSdkDataReconciler:");
+        mSdkDataReconciler.dump(writer);
+        writer.println();
 
-    private void invokeSdkSandboxServiceToLoadSdk(
-            int callingUid, String callingPackage, IBinder sdkToken, SdkProviderInfo sdkInfo,
-            Bundle params, AppAndRemoteSdkLink link) {
-        // check first if service already bound
-        ISdkSandboxService service = mServiceProvider.getBoundServiceForApp(callingUid);
-        if (service != null) {
-            loadSdkForService(callingUid, sdkToken, sdkInfo, params, link, service);
-            return;
-        }
+        writer.println("mSdkDataReconcileQueue:");
+        mSdkDataReconcileQueue.dump(writer);
+        writer.println();
 
-        mServiceProvider.bindService(
-                callingUid,
-                callingPackage,
-                new ServiceConnection() {
-                    private boolean mIsServiceBound = false;
-
-                    @Override
-                    public void onServiceConnected(ComponentName name, IBinder service) {
-                        final ISdkSandboxService mService =
-                                ISdkSandboxService.Stub.asInterface(service);
-                        Log.i(TAG, "Sdk sandbox has been bound");
-                        mServiceProvider.setBoundServiceForApp(callingUid, mService);
-
-                        // Ensuring the code is not loaded again if connection restarted
-                        if (!mIsServiceBound) {
-                            loadSdkForService(callingUid, sdkToken, sdkInfo, params, link,
-                                    mService);
-                            mIsServiceBound = true;
-                        }
-                    }
+        writer.println("mSdkDataSweeper:");
+        mSdkDataSweeper.dump(writer);
+        writer.println();
 
-                    @Override
-                    public void onServiceDisconnected(ComponentName name) {
-                        // Sdk sandbox crashed or killed, system will start it again.
-                        // TODO(b/204991850): Handle restarts differently
-                        //  (e.g. Exponential backoff retry strategy)
-                        mServiceProvider.setBoundServiceForApp(callingUid, null);
-                    }
+        writer.println("mPrewarmStats:");
+        mPrewarmStats.dump(writer);
+        writer.println();
 
-                    @Override
-                    public void onBindingDied(ComponentName name) {
-                        mServiceProvider.setBoundServiceForApp(callingUid, null);
-                        mServiceProvider.unbindService(callingUid);
-                        mServiceProvider.bindService(callingUid, callingPackage, this);
-                    }
+        writer.println("mRecoveryStats:");
+        mRecoveryStats.dump(writer);
+        writer.println();
 
-                    @Override
-                    public void onNullBinding(ComponentName name) {
-                        link.sendLoadSdkErrorToApp(
-                                SdkSandboxManager.LOAD_SDK_INTERNAL_ERROR,
-                                "Failed to bind the service");
-                    }
-                }
-        );
-    }
+        writer.println("mTraceStats:");
+        mTraceStats.dump(writer);
+        writer.println();
+
+        writer.println("mLatencyStats:");
+        mLatencyStats.dump(writer);
+        writer.println();
+
+        writer.println("mServiceProvider:");
+        mServiceProvider.dump(writer);
+        writer.println();
 
-    private void loadSdkForService(
-            int callingUid, IBinder sdkToken, SdkProviderInfo sdkProviderInfo, Bundle params,
-            AppAndRemoteSdkLink link, ISdkSandboxService service) {
+        // Usage is reported asynchronously: the sdks are asked for it, and those that do not
+        // report in time are printed with the usage they last reported.
+        writer.println("Sdk resource usage:");
+        final ArrayList<CountDownLatch> usageReports = new ArrayList<>();
+        for (AppAndRemoteSdkLink link : mAppAndRemoteSdkLinks.values()) {
+            final CountDownLatch usageReported = link.requestResourceUsageFromCode();
+            if (usageReported != null) {
+                usageReports.add(usageReported);
+            }
+        }
+        final long deadlineMs = SystemClock.elapsedRealtime() + RESOURCE_USAGE_DUMP_TIMEOUT_MS;
         try {
-            service.loadSdk(sdkToken, sdkProviderInfo.getApplicationInfo(),
-                    sdkProviderInfo.getSdkProviderClassName(), params, link);
+            for (int i = 0; i < usageReports.size(); i++) {
+                usageReports.get(i).await(
+                        Math.max(0, deadlineMs - SystemClock.elapsedRealtime()),
+                        TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (AppAndRemoteSdkLink link : mAppAndRemoteSdkLinks.values()) {
+            link.dumpResourceUsage(writer);
+        }
+        writer.println();
+    }
+
 
-            onSdkLoaded(callingUid, sdkProviderInfo.getApplicationInfo().uid);
-        } catch (RemoteException e) {
-            String errorMsg = "Failed to load code";
-            Log.w(TAG, errorMsg, e);
-            link.sendLoadSdkErrorToApp(
-                    SdkSandboxManager.LOAD_SDK_INTERNAL_ERROR, errorMsg);
+    private void invokeSdkSandboxServiceToLoadSdk(
+            int callingUid, String callingPackage, PendingLoad pendingLoad) {
+        final ISdkSandboxService service;
+        final AppState appState = getAppState(callingUid);
+        synchronized (appState) {
+            // The app may have died or the loads may have been cleaned up while the sdk
+            // providers were being resolved.
+            pendingLoad.removeStaleLinks();
+            if (pendingLoad.isEmpty()) {
+                return;
+            }
+            final SandboxServiceConnection connection =
+                    getOrBindSandboxLocked(appState, callingPackage);
+            service = connection.mService;
+            if (service == null) {
+                // Dispatched once the sandbox is bound.
+                connection.mPendingLoads.add(pendingLoad);
+                return;
+            }
         }
+        pendingLoad.dispatch(service);
     }
 
-    private void onSdkLoaded(int appUid, int sdkUid) {
-        synchronized (mLock) {
-            final HashSet<Integer> sdkUids = mAppLoadedSdkUids.get(appUid);
-            if (sdkUids != null) {
-                sdkUids.add(sdkUid);
-            } else {
-                mAppLoadedSdkUids.put(appUid, new HashSet<>(Collections.singletonList(sdkUid)));
+    private AppState getAppState(int appUid) {
+        return mAppStates.computeIfAbsent(appUid, AppState::new);
+    }
+
+    /**
+     * Removes the state of {@code appUid} if the app has no sdk token, no sdk loaded and no
+     * sandbox, so that the states kept do not grow with every app that ever used the sandbox.
+     *
+     * <p>Loads create their sdk token before getting the state of their app, so a load either
+     * keeps the state from being removed or gets a new one. Other users of the state check
+     * {@link AppState#mRemoved} where a stale state would be kept alive.
+     */
+    private void maybeRemoveAppState(int appUid) {
+        final AppState appState = mAppStates.get(appUid);
+        if (appState == null) {
+            return;
+        }
+        synchronized (appState) {
+            if (appState.mSandboxConnection != null || appState.mRunningInstrumentation
+                    || !appState.mLoadedSdkUids.isEmpty()
+                    || !appState.mIdleReleasedLinks.isEmpty()) {
+                return;
             }
+            mSdkTokenManager.runIfNoSdkTokens(appUid, () -> {
+                appState.mRemoved = true;
+                mAppStates.remove(appUid, appState);
+            });
         }
     }
 
     /**
-     * Clean up all internal data structures related to {@code sdkToken}
+     * Returns the sandbox connection of the app, binding the sandbox if there is no bind
+     * established or in flight for the app yet.
+     *
+     * <p>Binding only calls into ActivityManager within system_server, and is done under the
+     * lock of the app so that binds and unbinds of the app stay ordered.
      */
-    private void cleanUp(IBinder sdkToken) {
-        // Destroy the sdkToken first, to free up the {callingUid, name} pair
-        mSdkTokenManager.destroy(sdkToken);
-        // Now clean up rest of the state which is using an obsolete sdkToken
-        synchronized (mLock) {
-            mAppAndRemoteSdkLinks.remove(sdkToken);
+    @GuardedBy("appState")
+    private SandboxServiceConnection getOrBindSandboxLocked(AppState appState,
+            String appPackageName) {
+        SandboxServiceConnection connection = appState.mSandboxConnection;
+        if (connection == null) {
+            connection = new SandboxServiceConnection(appState, appPackageName);
+            appState.mSandboxConnection = connection;
+            connection.bindLocked();
         }
+        return connection;
     }
 
-    private void enforceAllowedToStartOrBindService(Intent intent) {
-        ComponentName component = intent.getComponent();
-        String errorMsg = "SDK sandbox uid may not bind to or start a service: ";
-        if (component == null) {
-            throw new SecurityException(errorMsg + "intent component must be non-null.");
+    @VisibleForTesting(visibility = VisibleForTesting.Visibility.PRIVATE)
+    void onUidImportance(int uid, int importance) {
+        if (!Process.isApplicationUid(uid)) {
+            return;
         }
-        String componentPackageName = component.getPackageName();
-        if (componentPackageName != null) {
-            // TODO(b/225327125): Allowlist AdServices.
-            if (!componentPackageName.equals(
-                    WebViewUpdateService.getCurrentWebViewPackageName())) {
-                throw new SecurityException(errorMsg + "component package name "
-                        + componentPackageName + " is not allowlisted.");
+        final AppState appState = mAppStates.get(uid);
+        if (importance > ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND) {
+            if (appState != null) {
+                mHandler.post(() -> onAppBackgrounded(appState));
             }
-        } else {
-            throw new SecurityException(errorMsg
-                    + "the intent's component package name must be non-null.");
+            return;
+        }
+        // Apps without a state have nothing to do in the foreground but get pre-warmed.
+        if (appState != null || SdkSandboxSettings.isPrewarmEnabled()) {
+            mHandler.post(() -> onAppForegrounded(uid));
         }
     }
 
-    private SdkProviderInfo createSdkProviderInfo(String sharedLibraryName, int callingUid) {
-        try {
-            PackageManager pm = mContext.getPackageManager();
-            String[] packageNames = pm.getPackagesForUid(callingUid);
-            for (int i = 0; i < packageNames.length; i++) {
-                ApplicationInfo info = pm.getApplicationInfo(
-                        packageNames[i], PackageManager.GET_SHARED_LIBRARY_FILES);
-                List<SharedLibraryInfo> sharedLibraries = info.getSharedLibraryInfos();
-                for (int j = 0; j < sharedLibraries.size(); j++) {
-                    SharedLibraryInfo sharedLibrary = sharedLibraries.get(j);
-                    if (sharedLibrary.getType() != SharedLibraryInfo.TYPE_SDK_PACKAGE) {
-                        continue;
-                    }
-
-                    if (!sharedLibraryName.equals(sharedLibrary.getName())) {
-                        continue;
-                    }
-
-                    String sdkProviderClassName = pm.getProperty(PROPERTY_SDK_PROVIDER_CLASS_NAME,
-                            sharedLibrary.getDeclaringPackage().getPackageName()).getString();
-
-                    ApplicationInfo applicationInfo = pm.getPackageInfo(
-                            sharedLibrary.getDeclaringPackage(),
-                            PackageManager.MATCH_STATIC_SHARED_AND_SDK_LIBRARIES).applicationInfo;
-                    return new SdkProviderInfo(applicationInfo, sdkProviderClassName);
-                }
+    private void onAppForegrounded(int appUid) {
+        final AppState appState = mAppStates.get(appUid);
+        if (appState != null) {
+            synchronized (appState) {
+                appState.mBackground = false;
             }
-            return null;
-        } catch (PackageManager.NameNotFoundException ignored) {
-            return null;
+            reloadIdleReleasedSdks(appState);
         }
+        maybePrewarmSandbox(appUid);
+        // The state got for pre-warming is not kept unless the sandbox was pre-warmed.
+        maybeRemoveAppState(appUid);
     }
 
-    @ThreadSafe
-    private static class SdkTokenManager {
-        // Keep track of codeToken for each unique pair of {callingUid, name}
-        @GuardedBy("mSdkTokens")
-        final ArrayMap<Pair<Integer, String>, IBinder> mSdkTokens = new ArrayMap<>();
-        @GuardedBy("mSdkTokens")
-        final ArrayMap<IBinder, Pair<Integer, String>> mReverseSdkTokens = new ArrayMap<>();
+    private void onAppBackgrounded(AppState appState) {
+        synchronized (appState) {
+            appState.mBackground = true;
+        }
+        if (SdkSandboxSettings.isIdleReleaseEnabled(mIsLowRamDevice)) {
+            mHandler.postDelayed(() -> maybeReleaseIdleSandbox(appState),
+                    SdkSandboxSettings.getIdleReleaseTimeoutMs());
+        }
+    }
 
-        /**
-         * For the given {callingUid, name} pair, create unique {@code sdkToken} or
-         * return existing one.
-         */
-        public IBinder createOrGetSdkToken(int callingUid, String name) {
-            final Pair<Integer, String> pair = Pair.create(callingUid, name);
-            synchronized (mSdkTokens) {
-                if (!mSdkTokens.containsKey(pair)) {
-                    final IBinder sdkToken = new Binder();
-                    mSdkTokens.put(pair, sdkToken);
-                    mReverseSdkTokens.put(sdkToken, pair);
-                }
-                return mSdkTokens.get(pair);
-            }
+    private void noteSdkActivity(AppAndRemoteSdkLink link) {
+        final AppState appState = getAppState(link.mAppUid);
+        appState.mLastSdkActivityMs = SystemClock.elapsedRealtime();
+        if (link.mManagerToCodeCallback == null) {
+            // The app is using its sdks again after its sandbox was released.
+            reloadIdleReleasedSdks(appState);
         }
+    }
 
-        public void destroy(IBinder sdkToken) {
-            synchronized (mSdkTokens) {
-                mSdkTokens.remove(mReverseSdkTokens.get(sdkToken));
-                mReverseSdkTokens.remove(sdkToken);
+    /**
+     * Releases the sandbox of a background app that did not use its sdks for a while, killing
+     * the sandbox process. The sdks are loaded again once the app comes back to the foreground
+     * or calls into one of them.
+     */
+    private void maybeReleaseIdleSandbox(AppState appState) {
+        final long timeoutMs = SdkSandboxSettings.getIdleReleaseTimeoutMs();
+        final long idleMs = SystemClock.elapsedRealtime() - appState.mLastSdkActivityMs;
+        synchronized (appState) {
+            final SandboxServiceConnection connection = appState.mSandboxConnection;
+            // Sandboxes being bound or restarted are left alone, pre-warmed ones have a
+            // timeout of their own.
+            if (!appState.mBackground || appState.mRunningInstrumentation || connection == null
+                    || connection.mService == null || connection.mPrewarmed) {
+                return;
             }
+            if (idleMs < timeoutMs) {
+                mHandler.postDelayed(() -> maybeReleaseIdleSandbox(appState),
+                        timeoutMs - idleMs);
+                return;
+            }
+            Log.i(TAG, "Releasing idle sdk sandbox of " + appState.mAppUid);
+            unloadSdksOfAppLocked(appState.mAppUid, appState.mIdleReleasedLinks);
+            unbindSandbox(appState.mAppUid);
         }
+        mPrewarmStats.onIdleSandboxReleased();
+        mActivityManager.killUid(Process.toSdkSandboxUid(appState.mAppUid),
+                "Sdk sandbox of " + appState.mAppUid + " is idle");
+    }
 
-        void dump(PrintWriter writer) {
-            synchronized (mSdkTokens) {
-                if (mSdkTokens.isEmpty()) {
-                    writer.println("mSdkTokens is empty");
-                } else {
-                    writer.print("mSdkTokens size: ");
-                    writer.println(mSdkTokens.size());
-                    for (Pair<Integer, String> pair : mSdkTokens.keySet()) {
-                        writer.printf("callingUid: %s, name: %s", pair.first, pair.second);
-                        writer.println();
-                    }
-                }
+    private void reloadIdleReleasedSdks(AppState appState) {
+        final ArrayList<AppAndRemoteSdkLink> links;
+        synchronized (appState) {
+            if (appState.mIdleReleasedLinks.isEmpty()) {
+                return;
+            }
+            links = new ArrayList<>(appState.mIdleReleasedLinks);
+            appState.mIdleReleasedLinks.clear();
+        }
+        Log.i(TAG, "Reloading " + links.size() + " sdks of " + appState.mAppUid
+                + " into a new sandbox");
+        for (int i = 0; i < links.size(); i++) {
+            final AppAndRemoteSdkLink link = links.get(i);
+            if (mAppAndRemoteSdkLinks.get(link.mSdkToken) == link) {
+                reloadSdk(link);
             }
         }
     }
 
     /**
-     * A callback object to establish a link between the app calling into manager service
-     * and the remote code being loaded in SdkSandbox.
-     *
-     * Overview of communication:
-     * 1. App to ManagerService: App calls into this service via app context
-     * 2. ManagerService to App: {@link AppAndRemoteSdkLink} holds reference to
-     * {@link IRemoteSdkCallback} object which provides call back into the app.
+     * Binds the sandbox of {@code appUid} ahead of its first load if the app depends on SDKs,
+     * so that the app does not pay for the sandbox process start on its critical path.
+     */
+    private void maybePrewarmSandbox(int appUid) {
+        if (!SdkSandboxSettings.isPrewarmEnabled()) {
+            return;
+        }
+        final AppState appState = getAppState(appUid);
+        synchronized (appState) {
+            if (!canPrewarmSandboxLocked(appState)) {
+                return;
+            }
+        }
+
+        String appPackageName = null;
+        final String[] packageNames = mContext.getPackageManager().getPackagesForUid(appUid);
+        for (int i = 0; packageNames != null && i < packageNames.length; i++) {
+            if (!getSdksUsed(packageNames[i]).isEmpty()) {
+                appPackageName = packageNames[i];
+                break;
+            }
+        }
+        if (appPackageName == null) {
+            return;
+        }
+
+        final SandboxServiceConnection connection;
+        synchronized (appState) {
+            if (!canPrewarmSandboxLocked(appState)) {
+                return;
+            }
+            Log.i(TAG, "Pre-warming sdk sandbox for " + appUid);
+            connection = getOrBindSandboxLocked(appState, appPackageName);
+            connection.setPrewarmedLocked(true);
+        }
+        mHandler.postDelayed(() -> releaseUnusedPrewarmedSandbox(appState, connection),
+                SdkSandboxSettings.getPrewarmIdleTimeoutMs());
+    }
+
+    @GuardedBy("appState")
+    private boolean canPrewarmSandboxLocked(AppState appState) {
+        if (appState.mRemoved || appState.mSandboxConnection != null
+                || appState.mRunningInstrumentation) {
+            return false;
+        }
+        // Pre-warming only happens on mHandler, so the count cannot grow until it is done.
+        synchronized (mPrewarmedSandboxes) {
+            return mPrewarmedSandboxes.size() < SdkSandboxSettings.getPrewarmMaxSandboxes();
+        }
+    }
+
+    private void releaseUnusedPrewarmedSandbox(AppState appState,
+            SandboxServiceConnection connection) {
+        synchronized (appState) {
+            if (appState.mSandboxConnection != connection || !connection.mPrewarmed) {
+                return;
+            }
+            Log.i(TAG, "Releasing unused pre-warmed sdk sandbox for " + appState.mAppUid);
+            mPrewarmStats.onPrewarmedSandboxReleased();
+            unbindSandbox(appState.mAppUid);
+        }
+        maybeRemoveAppState(appState.mAppUid);
+    }
+
+    private void unbindSandbox(int appUid) {
+        final AppState appState = getAppState(appUid);
+        synchronized (appState) {
+            if (appState.mSandboxConnection != null) {
+                appState.mSandboxConnection.setPrewarmedLocked(false);
+            }
+            appState.mSandboxConnection = null;
+            mServiceProvider.unbindService(appUid);
+        }
+    }
+
+    /**
+     * Returns the delay before a sandbox that crashed {@code crashesInARow} times in a row is
+     * bound again: exponential in the number of crashes, with half of it random so that
+     * sandboxes that crashed together are not all restarted at the same time.
+     */
+    private static long getRestartDelayMs(int crashesInARow) {
+        final long maxDelayMs = SdkSandboxSettings.getRestartBackoffMaxMs();
+        long delayMs = SdkSandboxSettings.getRestartBackoffBaseMs();
+        for (int i = 1; i < crashesInARow && delayMs < maxDelayMs; i++) {
+            delayMs *= 2;
+        }
+        delayMs = Math.min(delayMs, maxDelayMs);
+        return delayMs / 2 + ThreadLocalRandom.current().nextLong(delayMs / 2 + 1);
+    }
+
+    /**
+     * State of an app uid. Guarded by the {@link AppState} itself; binder calls out of
+     * system_server are never made while holding it.
+     */
+    private static class AppState {
+        final int mAppUid;
+        // Sandbox binding (in-flight or established). Loads that arrive while the sandbox is
+        // being bound wait on it instead of starting another bind.
+        @GuardedBy("this")
+        SandboxServiceConnection mSandboxConnection = null;
+        // TODO: Following 2 should be keyed by (packageName, uid) pair
+        @GuardedBy("this")
+        final ArraySet<Integer> mLoadedSdkUids = new ArraySet<>();
+        @GuardedBy("this")
+        boolean mRunningInstrumentation = false;
+        // Set when the app leaves the foreground, as reported by the uid importance listener.
+        @GuardedBy("this")
+        boolean mBackground = false;
+        // Sdks unloaded when the sandbox was released for being idle, to be loaded again once
+        // the app uses them.
+        @GuardedBy("this")
+        final ArrayList<AppAndRemoteSdkLink> mIdleReleasedLinks = new ArrayList<>();
+        // Last time the app loaded or called into one of its sdks.
+        volatile long mLastSdkActivityMs = 0;
+        // Set once removed from mAppStates, after which a new state is created for the app.
+        @GuardedBy("this")
+        boolean mRemoved = false;
+
+        AppState(int appUid) {
+            mAppUid = appUid;
+        }
+    }
+
+    /**
+     * Connection to the sdk sandbox of an app, shared by all loads of that app. Loads queue up
+     * on it while the sandbox is being bound and are dispatched once it connects.
+     */
+    private class SandboxServiceConnection implements ServiceConnection {
+        private final AppState mAppState;
+        private final int mAppUid;
+        private final String mAppPackageName;
+
+        @GuardedBy("mAppState")
+        private ISdkSandboxService mService = null;
+        @GuardedBy("mAppState")
+        private final ArrayList<PendingLoad> mPendingLoads = new ArrayList<>();
+        // Bound speculatively and not used by any load yet.
+        @GuardedBy("mAppState")
+        private boolean mPrewarmed = false;
+
+        // Crash recovery: sdks that were loaded when the sandbox crashed are loaded again once
+        // it is bound again, after a delay that grows with the number of crashes in a row.
+        @GuardedBy("mAppState")
+        private final ArrayList<AppAndRemoteSdkLink> mLinksToReplay = new ArrayList<>();
+        @GuardedBy("mAppState")
+        private boolean mRestartScheduled = false;
+        @GuardedBy("mAppState")
+        private int mCrashesInARow = 0;
+        @GuardedBy("mAppState")
+        private long mConnectedAtMs = 0;
+        @GuardedBy("mAppState")
+        private long mCrashedAtMs = 0;
+        @GuardedBy("mAppState")
+        private long mBindStartedAtMs = 0;
+
+        SandboxServiceConnection(AppState appState, String appPackageName) {
+            mAppState = appState;
+            mAppUid = appState.mAppUid;
+            mAppPackageName = appPackageName;
+        }
+
+        @GuardedBy("mAppState")
+        void setPrewarmedLocked(boolean prewarmed) {
+            mPrewarmed = prewarmed;
+            synchronized (mPrewarmedSandboxes) {
+                if (prewarmed) {
+                    mPrewarmedSandboxes.add(this);
+                } else {
+                    mPrewarmedSandboxes.remove(this);
+                }
+            }
+        }
+
+        @GuardedBy("mAppState")
+        void bindLocked() {
+            mBindStartedAtMs = SystemClock.elapsedRealtime();
+            // The bind completes on another thread, so it is traced as an async section.
+            Trace.beginAsyncSection("SdkSandbox:bind", mAppUid);
+            mServiceProvider.bindService(mAppUid, mAppPackageName, this);
+        }
+
+        @GuardedBy("mAppState")
+        private void onBindFinishedLocked(boolean bound) {
+            if (mBindStartedAtMs == 0) {
+                return;
+            }
+            Trace.endAsyncSection("SdkSandbox:bind", mAppUid);
+            if (bound) {
+                mLatencyStats.mBind.record(SystemClock.elapsedRealtime() - mBindStartedAtMs);
+            }
+            mBindStartedAtMs = 0;
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            final ISdkSandboxService sandboxService = ISdkSandboxService.Stub.asInterface(service);
+            Log.i(TAG, "Sdk sandbox has been bound");
+            mServiceProvider.setBoundServiceForApp(mAppUid, sandboxService);
+
+            // Pending loads are only dispatched once. Sdks that were loaded when the sandbox
+            // crashed are loaded again from mLinksToReplay.
+            final ArrayList<PendingLoad> pendingLoads;
+            final ArrayList<AppAndRemoteSdkLink> linksToReplay;
+            final long crashedAtMs;
+            synchronized (mAppState) {
+                mService = sandboxService;
+                mConnectedAtMs = SystemClock.elapsedRealtime();
+                onBindFinishedLocked(true);
+                crashedAtMs = mCrashedAtMs;
+                mCrashedAtMs = 0;
+                pendingLoads = new ArrayList<>(mPendingLoads);
+                mPendingLoads.clear();
+                linksToReplay = new ArrayList<>(mLinksToReplay);
+                mLinksToReplay.clear();
+            }
+            for (int i = 0; i < pendingLoads.size(); i++) {
+                pendingLoads.get(i).dispatch(sandboxService);
+            }
+            if (crashedAtMs != 0) {
+                Log.i(TAG, "Sdk sandbox of " + mAppUid + " restarted, reloading "
+                        + linksToReplay.size() + " sdks");
+                mRecoveryStats.onSandboxRecovered(
+                        SystemClock.elapsedRealtime() - crashedAtMs, linksToReplay.size());
+            }
+            for (int i = 0; i < linksToReplay.size(); i++) {
+                final AppAndRemoteSdkLink link = linksToReplay.get(i);
+                if (mAppAndRemoteSdkLinks.get(link.mSdkToken) == link) {
+                    reloadSdk(link);
+                }
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            onSandboxDied();
+        }
+
+        @Override
+        public void onBindingDied(ComponentName name) {
+            onSandboxDied();
+        }
+
+        /**
+         * Unbinds the crashed sandbox and binds it again after a backoff delay, instead of
+         * letting the system restart it right away: a sandbox crashing on every start would
+         * otherwise be restarted in a tight loop. Gives up after too many crashes in a row.
+         */
+        private void onSandboxDied() {
+            mServiceProvider.setBoundServiceForApp(mAppUid, null);
+            final long nowMs = SystemClock.elapsedRealtime();
+            final long restartDelayMs;
+            final ArrayList<PendingLoad> pendingLoadsToFail;
+            final ArrayList<AppAndRemoteSdkLink> linksToFail;
+            synchronized (mAppState) {
+                mService = null;
+                onBindFinishedLocked(false);
+                if (mAppState.mSandboxConnection != this || mRestartScheduled) {
+                    // Unbound in the meantime, or already being restarted.
+                    return;
+                }
+                Log.w(TAG, "Sdk sandbox of " + mAppUid + " died");
+                mRecoveryStats.onSandboxCrashed();
+                if (mConnectedAtMs != 0 && nowMs - mConnectedAtMs >= SANDBOX_STABLE_AFTER_MS) {
+                    mCrashesInARow = 0;
+                }
+                mCrashesInARow++;
+                if (mCrashedAtMs == 0) {
+                    mCrashedAtMs = nowMs;
+                }
+                unloadSdksOfAppLocked(mAppUid, mLinksToReplay);
+                mServiceProvider.unbindService(mAppUid);
+
+                if (mCrashesInARow <= SdkSandboxSettings.getMaxRestarts()) {
+                    mRestartScheduled = true;
+                    restartDelayMs = getRestartDelayMs(mCrashesInARow);
+                    pendingLoadsToFail = null;
+                    linksToFail = null;
+                } else {
+                    Log.e(TAG, "Sdk sandbox of " + mAppUid + " crashed " + mCrashesInARow
+                            + " times in a row, not restarting it");
+                    mRecoveryStats.onCrashLoop();
+                    setPrewarmedLocked(false);
+                    mAppState.mSandboxConnection = null;
+                    restartDelayMs = -1;
+                    pendingLoadsToFail = new ArrayList<>(mPendingLoads);
+                    mPendingLoads.clear();
+                    linksToFail = new ArrayList<>(mLinksToReplay);
+                    mLinksToReplay.clear();
+                }
+            }
+            if (restartDelayMs >= 0) {
+                Log.i(TAG, "Restarting sdk sandbox of " + mAppUid + " in " + restartDelayMs
+                        + " ms");
+                mHandler.postDelayed(this::restart, restartDelayMs);
+                return;
+            }
+            final String errorMsg = "Sdk sandbox crashed repeatedly";
+            for (int i = 0; i < pendingLoadsToFail.size(); i++) {
+                pendingLoadsToFail.get(i).sendLoadSdkErrorToApps(
+                        SdkSandboxManager.LOAD_SDK_INTERNAL_ERROR, errorMsg);
+            }
+            for (int i = 0; i < linksToFail.size(); i++) {
+                linksToFail.get(i).sendLoadSdkErrorToApp(
+                        SdkSandboxManager.LOAD_SDK_INTERNAL_ERROR, errorMsg);
+            }
+        }
+
+        private void restart() {
+            synchronized (mAppState) {
+                mRestartScheduled = false;
+                if (mAppState.mSandboxConnection != this) {
+                    return;
+                }
+                bindLocked();
+            }
+        }
+
+        @Override
+        public void onNullBinding(ComponentName name) {
+            // May be invoked synchronously from within bindService, so the pending loads are
+            // failed on the handler to avoid calling back into the provider under its lock.
+            mHandler.post(() -> {
+                final ArrayList<PendingLoad> pendingLoads;
+                synchronized (mAppState) {
+                    onBindFinishedLocked(false);
+                    if (mAppState.mSandboxConnection == this) {
+                        setPrewarmedLocked(false);
+                        mAppState.mSandboxConnection = null;
+                    }
+                    pendingLoads = new ArrayList<>(mPendingLoads);
+                    mPendingLoads.clear();
+                }
+                for (int i = 0; i < pendingLoads.size(); i++) {
+                    pendingLoads.get(i).sendLoadSdkErrorToApps(
+                            SdkSandboxManager.LOAD_SDK_INTERNAL_ERROR,
+                            "Failed to bind the service");
+                }
+            });
+        }
+    }
+
+    /**
+     * Resolved SDK loads of an app that are dispatched to its sandbox together, in a single
+     * transaction, once the sandbox is bound.
+     */
+    private class PendingLoad {
+        private final int mCallingUid;
+        private final Bundle mParams;
+        private final int mRequestId;
+        private final ArrayList<AppAndRemoteSdkLink> mLinks = new ArrayList<>();
+        private final ArrayList<SdkProviderInfo> mSdkProviderInfos = new ArrayList<>();
+
+        PendingLoad(int callingUid, Bundle params, int requestId) {
+            mCallingUid = callingUid;
+            mParams = params;
+            mRequestId = requestId;
+        }
+
+        void add(AppAndRemoteSdkLink link, SdkProviderInfo sdkProviderInfo) {
+            mLinks.add(link);
+            mSdkProviderInfos.add(sdkProviderInfo);
+        }
+
+        boolean isEmpty() {
+            return mLinks.isEmpty();
+        }
+
+        void removeStaleLinks() {
+            for (int i = mLinks.size() - 1; i >= 0; i--) {
+                final AppAndRemoteSdkLink link = mLinks.get(i);
+                if (mAppAndRemoteSdkLinks.get(link.mSdkToken) != link) {
+                    mLinks.remove(i);
+                    mSdkProviderInfos.remove(i);
+                }
+            }
+        }
+
+        void dispatch(ISdkSandboxService service) {
+            final Bundle params = new Bundle(mParams);
+            params.putLong(
+                    ISdkSandboxToSdkSandboxManagerCallback.QUOTA_CALLBACK_TIME_MS_PER_MINUTE_KEY,
+                    SdkSandboxSettings.getSdkCallbackTimeQuotaMs());
+            params.putInt(ISdkSandboxToSdkSandboxManagerCallback.QUOTA_SURFACE_PACKAGES_KEY,
+                    SdkSandboxSettings.getSdkSurfacePackagesQuota());
+            if (mRequestId != SdkSandboxTrace.NO_REQUEST_ID) {
+                params.putInt(SdkSandboxTrace.REQUEST_ID_KEY, mRequestId);
+            }
+            final long dispatchedAtMs = TraceStats.start(mRequestId);
+            for (int i = 0; i < mLinks.size(); i++) {
+                mLinks.get(i).mDispatchedAtMs = dispatchedAtMs;
+            }
+            try {
+                if (mLinks.size() == 1) {
+                    final SdkProviderInfo sdkProviderInfo = mSdkProviderInfos.get(0);
+                    service.loadSdk(mLinks.get(0).mSdkToken, sdkProviderInfo.getApplicationInfo(),
+                            sdkProviderInfo.getSdkProviderClassName(), params, mLinks.get(0));
+                } else {
+                    final int size = mLinks.size();
+                    final ArrayList<IBinder> sdkTokens = new ArrayList<>(size);
+                    final ArrayList<ApplicationInfo> applicationInfos = new ArrayList<>(size);
+                    final ArrayList<String> sdkProviderClassNames = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        sdkTokens.add(mLinks.get(i).mSdkToken);
+                        applicationInfos.add(mSdkProviderInfos.get(i).getApplicationInfo());
+                        sdkProviderClassNames.add(
+                                mSdkProviderInfos.get(i).getSdkProviderClassName());
+                    }
+                    service.loadSdks(sdkTokens, applicationInfos, sdkProviderClassNames, params,
+                            new ArrayList<ISdkSandboxToSdkSandboxManagerCallback>(mLinks));
+                }
+
+                for (int i = 0; i < mSdkProviderInfos.size(); i++) {
+                    final int sdkUid = mSdkProviderInfos.get(i).getApplicationInfo().uid;
+                    mLinks.get(i).mSdkUid = sdkUid;
+                    onSdkLoaded(mCallingUid, sdkUid);
+                }
+            } catch (RemoteException e) {
+                String errorMsg = "Failed to load code";
+                Log.w(TAG, errorMsg, e);
+                sendLoadSdkErrorToApps(SdkSandboxManager.LOAD_SDK_INTERNAL_ERROR, errorMsg);
+            }
+        }
+
+        void sendLoadSdkErrorToApps(int errorCode, String errorMsg) {
+            for (int i = 0; i < mLinks.size(); i++) {
+                mLinks.get(i).sendLoadSdkErrorToApp(errorCode, errorMsg);
+            }
+        }
+    }
+
+    private void onSdkLoaded(int appUid, int sdkUid) {
+        final AppState appState = getAppState(appUid);
+        synchronized (appState) {
+            appState.mLoadedSdkUids.add(sdkUid);
+        }
+        synchronized (mSdkUidToAppUids) {
+            ArraySet<Integer> users = mSdkUidToAppUids.get(sdkUid);
+            if (users == null) {
+                users = new ArraySet<>();
+                mSdkUidToAppUids.put(sdkUid, users);
+            }
+            users.add(appUid);
+        }
+    }
+
+    /**
+     * Clean up all internal data structures related to {@code sdkToken}
+     */
+    private void cleanUp(IBinder sdkToken) {
+        // Destroy the sdkToken first, to free up the {callingUid, name} pair
+        mSdkTokenManager.destroy(sdkToken);
+        // Now clean up rest of the state which is using an obsolete sdkToken
+        final AppAndRemoteSdkLink link = mAppAndRemoteSdkLinks.remove(sdkToken);
+        if (link != null) {
+            maybeRemoveAppState(link.mAppUid);
+        }
+    }
+
+    private void enforceAllowedToStartOrBindService(Intent intent) {
+        ComponentName component = intent.getComponent();
+        String errorMsg = "SDK sandbox uid may not bind to or start a service: ";
+        if (component == null) {
+            throw new SecurityException(errorMsg + "intent component must be non-null.");
+        }
+        String componentPackageName = component.getPackageName();
+        if (componentPackageName != null) {
+            // TODO(b/225327125): Allowlist AdServices.
+            if (!componentPackageName.equals(
+                    WebViewUpdateService.getCurrentWebViewPackageName())) {
+                throw new SecurityException(errorMsg + "component package name "
+                        + componentPackageName + " is not allowlisted.");
+            }
+        } else {
+            throw new SecurityException(errorMsg
+                    + "the intent's component package name must be non-null.");
+        }
+    }
+
+    /**
+     * Resolves the providers of all {@code sharedLibraryNames} in a single pass over the
+     * packages of {@code callingUid}. SDKs that could not be resolved are absent from the result.
+     *
+     * <p>Providers resolved before are served from {@link #mSdkProviderInfoCache} without
+     * querying the package manager.
+     */
+    private Map<String, SdkProviderInfo> createSdkProviderInfos(
+            List<String> sharedLibraryNames, int callingUid) {
+        final ArrayMap<String, SdkProviderInfo> result = new ArrayMap<>();
+        final ArraySet<String> remaining = new ArraySet<>();
+        // Taken before resolving, so that what is resolved is not cached if a package changed
+        // meanwhile.
+        final long cacheGeneration = mSdkProviderInfoCache.getGeneration();
+        for (int i = 0; i < sharedLibraryNames.size(); i++) {
+            final String name = sharedLibraryNames.get(i);
+            final SdkProviderInfo cached = mSdkProviderInfoCache.get(callingUid, name);
+            if (cached != null) {
+                result.put(name, cached);
+            } else {
+                remaining.add(name);
+            }
+        }
+        if (remaining.isEmpty()) {
+            return result;
+        }
+        PackageManager pm = mContext.getPackageManager();
+        String[] packageNames = pm.getPackagesForUid(callingUid);
+        if (packageNames == null) {
+            return result;
+        }
+        for (int i = 0; i < packageNames.length && !remaining.isEmpty(); i++) {
+            final List<SharedLibraryInfo> sharedLibraries;
+            try {
+                ApplicationInfo info = pm.getApplicationInfo(
+                        packageNames[i], PackageManager.GET_SHARED_LIBRARY_FILES);
+                sharedLibraries = info.getSharedLibraryInfos();
+            } catch (PackageManager.NameNotFoundException ignored) {
+                continue;
+            }
+            for (int j = 0; j < sharedLibraries.size(); j++) {
+                SharedLibraryInfo sharedLibrary = sharedLibraries.get(j);
+                if (sharedLibrary.getType() != SharedLibraryInfo.TYPE_SDK_PACKAGE) {
+                    continue;
+                }
+
+                if (!remaining.remove(sharedLibrary.getName())) {
+                    continue;
+                }
+
+                try {
+                    String sdkProviderClassName = pm.getProperty(PROPERTY_SDK_PROVIDER_CLASS_NAME,
+                            sharedLibrary.getDeclaringPackage().getPackageName()).getString();
+
+                    ApplicationInfo applicationInfo = pm.getPackageInfo(
+                            sharedLibrary.getDeclaringPackage(),
+                            PackageManager.MATCH_STATIC_SHARED_AND_SDK_LIBRARIES).applicationInfo;
+                    final SdkProviderInfo sdkProviderInfo =
+                            new SdkProviderInfo(applicationInfo, sdkProviderClassName);
+                    result.put(sharedLibrary.getName(), sdkProviderInfo);
+                    mSdkProviderInfoCache.put(callingUid, sharedLibrary.getName(),
+                            sdkProviderInfo, cacheGeneration);
+                } catch (PackageManager.NameNotFoundException ignored) {
+                    // Reported as not found for loading
+                }
+            }
+        }
+        return result;
+    }
+
+    @ThreadSafe
+    private static class SdkTokenManager {
+        // Keep track of sdkToken for each unique pair of {callingUid, name}. Each token carries
+        // its own pair, so that it can be destroyed without a reverse lookup.
+        @GuardedBy("mSdkTokens")
+        private final SparseArray<ArrayMap<String, SdkToken>> mSdkTokens = new SparseArray<>();
+
+        /**
+         * For the given {callingUid, name} pair, create unique {@code sdkToken} or
+         * return existing one.
+         */
+        public IBinder createOrGetSdkToken(int callingUid, String name) {
+            synchronized (mSdkTokens) {
+                ArrayMap<String, SdkToken> tokens = mSdkTokens.get(callingUid);
+                if (tokens == null) {
+                    tokens = new ArrayMap<>();
+                    mSdkTokens.put(callingUid, tokens);
+                }
+                SdkToken sdkToken = tokens.get(name);
+                if (sdkToken == null) {
+                    sdkToken = new SdkToken(callingUid, name);
+                    tokens.put(name, sdkToken);
+                }
+                return sdkToken;
+            }
+        }
+
+        public void destroy(IBinder sdkToken) {
+            if (!(sdkToken instanceof SdkToken)) {
+                return;
+            }
+            final SdkToken token = (SdkToken) sdkToken;
+            synchronized (mSdkTokens) {
+                final int index = mSdkTokens.indexOfKey(token.mCallingUid);
+                if (index < 0) {
+                    return;
+                }
+                final ArrayMap<String, SdkToken> tokens = mSdkTokens.valueAt(index);
+                if (tokens.get(token.mName) == token) {
+                    tokens.remove(token.mName);
+                    if (tokens.isEmpty()) {
+                        mSdkTokens.removeAt(index);
+                    }
+                }
+            }
+        }
+
+        /** Returns the tokens of {@code callingUid}. */
+        public List<IBinder> getSdkTokensForUid(int callingUid) {
+            synchronized (mSdkTokens) {
+                final ArrayMap<String, SdkToken> tokens = mSdkTokens.get(callingUid);
+                if (tokens == null) {
+                    return Collections.emptyList();
+                }
+                return new ArrayList<>(tokens.values());
+            }
+        }
+
+        /**
+         * Runs {@code action} if {@code callingUid} has no tokens, without any token being
+         * created for it meanwhile.
+         */
+        public void runIfNoSdkTokens(int callingUid, Runnable action) {
+            synchronized (mSdkTokens) {
+                if (mSdkTokens.get(callingUid) == null) {
+                    action.run();
+                }
+            }
+        }
+
+        /** Destroys all tokens of {@code callingUid} and returns them. */
+        public List<IBinder> destroyAllForUid(int callingUid) {
+            final ArrayMap<String, SdkToken> tokens;
+            synchronized (mSdkTokens) {
+                tokens = mSdkTokens.get(callingUid);
+                if (tokens == null) {
+                    return Collections.emptyList();
+                }
+                mSdkTokens.remove(callingUid);
+            }
+            return new ArrayList<>(tokens.values());
+        }
+
+        void dump(PrintWriter writer) {
+            synchronized (mSdkTokens) {
+                int size = 0;
+                for (int i = 0; i < mSdkTokens.size(); i++) {
+                    size += mSdkTokens.valueAt(i).size();
+                }
+                if (size == 0) {
+                    writer.println("mSdkTokens is empty");
+                } else {
+                    writer.print("mSdkTokens size: ");
+                    writer.println(size);
+                    for (int i = 0; i < mSdkTokens.size(); i++) {
+                        final ArrayMap<String, SdkToken> tokens = mSdkTokens.valueAt(i);
+                        for (int j = 0; j < tokens.size(); j++) {
+                            writer.printf("callingUid: %s, name: %s", mSdkTokens.keyAt(i),
+                                    tokens.keyAt(j));
+                            writer.println();
+                        }
+                    }
+                }
+            }
+        }
+
+        private static final class SdkToken extends Binder {
+            private final int mCallingUid;
+            private final String mName;
+
+            SdkToken(int callingUid, String name) {
+                mCallingUid = callingUid;
+                mName = name;
+            }
+        }
+    }
+
+    /**
+     * Index of resolved {@link SdkProviderInfo}s keyed by {callingUid, sdk name}.
+     *
+     * <p>Filled lazily on load and invalidated from package broadcasts whenever the calling app
+     * or the SDK package changes.
+     */
+    @ThreadSafe
+    private static class SdkProviderInfoCache {
+        @GuardedBy("mCache")
+        private final SparseArray<ArrayMap<String, SdkProviderInfo>> mCache = new SparseArray<>();
+        @GuardedBy("mCache")
+        private long mHits = 0;
+        @GuardedBy("mCache")
+        private long mMisses = 0;
+        // Incremented by every invalidation.
+        @GuardedBy("mCache")
+        private long mGeneration = 0;
+
+        /** Returns the generation to {@link #put} what is resolved from now on with. */
+        long getGeneration() {
+            synchronized (mCache) {
+                return mGeneration;
+            }
+        }
+
+        SdkProviderInfo get(int callingUid, String name) {
+            synchronized (mCache) {
+                final ArrayMap<String, SdkProviderInfo> sdks = mCache.get(callingUid);
+                final SdkProviderInfo sdkProviderInfo = sdks == null ? null : sdks.get(name);
+                if (sdkProviderInfo == null) {
+                    mMisses++;
+                } else {
+                    mHits++;
+                }
+                return sdkProviderInfo;
+            }
+        }
+
+        /**
+         * Keeps {@code sdkProviderInfo}, unless the cache was invalidated since
+         * {@code generation} was taken, as it may have been resolved from packages since changed.
+         */
+        void put(int callingUid, String name, SdkProviderInfo sdkProviderInfo, long generation) {
+            synchronized (mCache) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                ArrayMap<String, SdkProviderInfo> sdks = mCache.get(callingUid);
+                if (sdks == null) {
+                    sdks = new ArrayMap<>();
+                    mCache.put(callingUid, sdks);
+                }
+                sdks.put(name, sdkProviderInfo);
+            }
+        }
+
+        /**
+         * Drops the entries of the app {@code uid}, and the entries of all apps that resolved
+         * to the SDK package {@code packageName} or to an SDK with {@code uid}.
+         */
+        void invalidate(int uid, String packageName) {
+            synchronized (mCache) {
+                mGeneration++;
+                mCache.remove(uid);
+                for (int i = mCache.size() - 1; i >= 0; i--) {
+                    final ArrayMap<String, SdkProviderInfo> sdks = mCache.valueAt(i);
+                    for (int j = sdks.size() - 1; j >= 0; j--) {
+                        final ApplicationInfo info = sdks.valueAt(j).getApplicationInfo();
+                        if (info.uid == uid || TextUtils.equals(info.packageName, packageName)) {
+                            sdks.removeAt(j);
+                        }
+                    }
+                    if (sdks.isEmpty()) {
+                        mCache.removeAt(i);
+                    }
+                }
+            }
+        }
+
+        void dump(PrintWriter writer) {
+            synchronized (mCache) {
+                int size = 0;
+                for (int i = 0; i < mCache.size(); i++) {
+                    size += mCache.valueAt(i).size();
+                }
+                writer.printf("size: %d, hits: %d, misses: %d", size, mHits, mMisses);
+                writer.println();
+            }
+        }
+    }
+
+    /** Time-to-first-load of sandboxes that were pre-warmed and of those that were not. */
+    @ThreadSafe
+    private static class PrewarmStats {
+        static final int NOT_FIRST_LOAD = 0;
+        static final int FIRST_LOAD_COLD = 1;
+        static final int FIRST_LOAD_WARM = 2;
+
+        @GuardedBy("this")
+        private long mColdLoads = 0;
+        @GuardedBy("this")
+        private long mColdLoadTotalMs = 0;
+        @GuardedBy("this")
+        private long mWarmLoads = 0;
+        @GuardedBy("this")
+        private long mWarmLoadTotalMs = 0;
+        @GuardedBy("this")
+        private long mReleasedUnused = 0;
+        @GuardedBy("this")
+        private long mReleasedIdle = 0;
+
+        synchronized void onFirstLoadFinished(int firstLoad, long elapsedMs) {
+            if (firstLoad == FIRST_LOAD_WARM) {
+                mWarmLoads++;
+                mWarmLoadTotalMs += elapsedMs;
+            } else {
+                mColdLoads++;
+                mColdLoadTotalMs += elapsedMs;
+            }
+        }
+
+        synchronized void onPrewarmedSandboxReleased() {
+            mReleasedUnused++;
+        }
+
+        synchronized void onIdleSandboxReleased() {
+            mReleasedIdle++;
+        }
+
+        synchronized void dump(PrintWriter writer) {
+            writer.printf("cold first loads: %d, avg time to first load: %d ms", mColdLoads,
+                    mColdLoads == 0 ? 0 : mColdLoadTotalMs / mColdLoads);
+            writer.println();
+            writer.printf("warm first loads: %d, avg time to first load: %d ms", mWarmLoads,
+                    mWarmLoads == 0 ? 0 : mWarmLoadTotalMs / mWarmLoads);
+            writer.println();
+            writer.printf("pre-warmed sandboxes released unused: %d", mReleasedUnused);
+            writer.println();
+            writer.printf("idle sandboxes released: %d", mReleasedIdle);
+            writer.println();
+        }
+    }
+
+    /** Counters of sandbox crashes and of how long it took to recover from them. */
+    private static class RecoveryStats {
+        @GuardedBy("this")
+        private long mCrashes = 0;
+        @GuardedBy("this")
+        private long mCrashLoops = 0;
+        @GuardedBy("this")
+        private long mRecoveries = 0;
+        @GuardedBy("this")
+        private long mRecoveryTotalMs = 0;
+        @GuardedBy("this")
+        private long mRecoveryMaxMs = 0;
+        @GuardedBy("this")
+        private long mReplayedSdks = 0;
+
+        synchronized void onSandboxCrashed() {
+            mCrashes++;
+        }
+
+        synchronized void onCrashLoop() {
+            mCrashLoops++;
+        }
+
+        synchronized void onSandboxRecovered(long elapsedMs, int replayedSdks) {
+            mRecoveries++;
+            mRecoveryTotalMs += elapsedMs;
+            mRecoveryMaxMs = Math.max(mRecoveryMaxMs, elapsedMs);
+            mReplayedSdks += replayedSdks;
+        }
+
+        synchronized void dump(PrintWriter writer) {
+            writer.printf("sandbox crashes: %d, crash loops given up on: %d", mCrashes,
+                    mCrashLoops);
+            writer.println();
+            writer.printf("recoveries: %d, avg time to rebind: %d ms, max: %d ms, "
+                    + "sdks reloaded: %d", mRecoveries,
+                    mRecoveries == 0 ? 0 : mRecoveryTotalMs / mRecoveries, mRecoveryMaxMs,
+                    mReplayedSdks);
+            writer.println();
+        }
+    }
+
+    /** Latency histograms of loads and surface packages, recorded for all requests. */
+    private static class LatencyStats {
+        final LatencyHistogram mLoadSdk = new LatencyHistogram("loadSdk");
+        final LatencyHistogram mBind = new LatencyHistogram("bindSandbox");
+        final LatencyHistogram mSurfacePackage = new LatencyHistogram("surfacePackage");
+        // Time to initialize each sdk, as measured by the sandbox, by sdk name.
+        private final ConcurrentHashMap<String, LatencyHistogram> mSdkInit =
+                new ConcurrentHashMap<>();
+
+        void recordSdkInit(String sdkName, long initMs) {
+            LatencyHistogram histogram = mSdkInit.get(sdkName);
+            if (histogram == null) {
+                mSdkInit.putIfAbsent(sdkName, new LatencyHistogram("initSdk:" + sdkName));
+                histogram = mSdkInit.get(sdkName);
+            }
+            histogram.record(initMs);
+        }
+
+        void reset() {
+            mLoadSdk.reset();
+            mBind.reset();
+            mSurfacePackage.reset();
+            for (LatencyHistogram histogram : mSdkInit.values()) {
+                histogram.reset();
+            }
+        }
+
+        void dump(PrintWriter writer) {
+            mLoadSdk.dump(writer);
+            mBind.dump(writer);
+            mSurfacePackage.dump(writer);
+            for (LatencyHistogram histogram : mSdkInit.values()) {
+                histogram.dump(writer);
+            }
+        }
+
+        void dumpRaw(PrintWriter writer) {
+            mLoadSdk.dumpRaw(writer);
+            mBind.dumpRaw(writer);
+            mSurfacePackage.dumpRaw(writer);
+            for (LatencyHistogram histogram : mSdkInit.values()) {
+                histogram.dumpRaw(writer);
+            }
+        }
+    }
+
+    /**
+     * Latency of the hops of loads, for the requests sampled by {@link SdkSandboxTrace}. Binds are
+     * all recorded, in {@link LatencyStats}.
+     */
+    @ThreadSafe
+    private static class TraceStats {
+        static final int HOP_ENFORCE_CALLING_PACKAGE = 0;
+        static final int HOP_RESOLVE_SDKS = 1;
+        static final int HOP_LOAD_IN_SANDBOX = 2;
+
+        private static final String[] HOP_NAMES = {
+            "enforce calling package", "resolve sdks", "load in sandbox"
+        };
+
+        @GuardedBy("this")
+        private final long[] mCounts = new long[HOP_NAMES.length];
+        @GuardedBy("this")
+        private final long[] mTotalMs = new long[HOP_NAMES.length];
+        @GuardedBy("this")
+        private final long[] mMaxMs = new long[HOP_NAMES.length];
+
+        /** Returns the start time of a hop of the request, or 0 if the request is not sampled. */
+        static long start(int requestId) {
+            return requestId == SdkSandboxTrace.NO_REQUEST_ID ? 0 : SystemClock.elapsedRealtime();
+        }
+
+        /** Records a hop that started at {@code startMs}, unless its request is not sampled. */
+        void record(int hop, long startMs) {
+            if (startMs == 0) {
+                return;
+            }
+            final long elapsedMs = SystemClock.elapsedRealtime() - startMs;
+            synchronized (this) {
+                mCounts[hop]++;
+                mTotalMs[hop] += elapsedMs;
+                mMaxMs[hop] = Math.max(mMaxMs[hop], elapsedMs);
+            }
+        }
+
+        synchronized void dump(PrintWriter writer) {
+            for (int hop = 0; hop < HOP_NAMES.length; hop++) {
+                writer.printf("%s: count: %d, avg: %d ms, max: %d ms", HOP_NAMES[hop],
+                        mCounts[hop], mCounts[hop] == 0 ? 0 : mTotalMs[hop] / mCounts[hop],
+                        mMaxMs[hop]);
+                writer.println();
+            }
+        }
+    }
+
+    /**
+     * A callback object to establish a link between the app calling into manager service
+     * and the remote code being loaded in SdkSandbox.
+     *
+     * Overview of communication:
+     * 1. App to ManagerService: App calls into this service via app context
+     * 2. ManagerService to App: {@link AppAndRemoteSdkLink} holds reference to
+     * {@link IRemoteSdkCallback} object which provides call back into the app.
      * 3. RemoteCode to ManagerService: {@link AppAndRemoteSdkLink} extends
      * {@link ISdkSandboxToSdkSandboxManagerCallback} interface. We
      * pass on this object to {@link ISdkSandboxService} so that remote code
@@ -611,13 +1935,65 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
         // The codeToken for which this channel has been created
         private final IBinder mSdkToken;
         private final IRemoteSdkCallback mManagerToAppCallback;
-
-        @GuardedBy("this")
-        private ISdkSandboxManagerToSdkSandboxCallback mManagerToCodeCallback;
-
-        AppAndRemoteSdkLink(IBinder sdkToken, IRemoteSdkCallback managerToAppCallback) {
+        // What the app asked to load, kept to load the sdk again after it is updated.
+        private final int mAppUid;
+        private final String mAppPackageName;
+        private final String mSdkName;
+        private final Bundle mParams;
+        // Uid of the sdk package the link was loaded from, set when the load is dispatched.
+        private volatile int mSdkUid = Process.INVALID_UID;
+        // Whether the sdk is being loaded again after an update, rather than for the first time.
+        private volatile boolean mReloading = false;
+
+        // Set once the sdk is loaded. Calls to the sdk are made without holding any lock.
+        private volatile ISdkSandboxManagerToSdkSandboxCallback mManagerToCodeCallback;
+
+        // Whether this is the first load into a cold or pre-warmed sandbox, for PrewarmStats.
+        private volatile int mFirstLoad = PrewarmStats.NOT_FIRST_LOAD;
+        private volatile long mLoadRequestedAtMs;
+        // When the load was dispatched to the sandbox if it was sampled, for TraceStats.
+        private volatile long mDispatchedAtMs = 0;
+        // When the app asked to load the sdk, until it is loaded; reloads are not recorded.
+        private volatile long mLoadStartedAtMs = SystemClock.elapsedRealtime();
+
+        // Start times of the surface package requests in flight, oldest first, as the sdk
+        // serves them in order. The oldest requests are forgotten once too many are in flight.
+        @GuardedBy("mSurfacePackageRequestsMs")
+        private final long[] mSurfacePackageRequestsMs =
+                new long[MAX_SURFACE_PACKAGE_REQUESTS_TRACKED];
+        @GuardedBy("mSurfacePackageRequestsMs")
+        private int mFirstSurfacePackageRequest = 0;
+        @GuardedBy("mSurfacePackageRequestsMs")
+        private int mSurfacePackageRequestsInFlight = 0;
+
+        // Last resource usage reported by the sdk, keyed as in
+        // ISdkSandboxToSdkSandboxManagerCallback.
+        private volatile Bundle mResourceUsage;
+        // Counted down once the sdk reports its resource usage, one per request.
+        @GuardedBy("mResourceUsageRequests")
+        private final ArrayList<CountDownLatch> mResourceUsageRequests = new ArrayList<>();
+
+        AppAndRemoteSdkLink(IBinder sdkToken, IRemoteSdkCallback managerToAppCallback,
+                int appUid, String appPackageName, String sdkName, Bundle params) {
             mSdkToken = sdkToken;
             mManagerToAppCallback = managerToAppCallback;
+            mAppUid = appUid;
+            mAppPackageName = appPackageName;
+            mSdkName = sdkName;
+            mParams = params;
+        }
+
+        void onUnloaded() {
+            // A load that did not complete yet is still reported as a first load to the app.
+            if (mManagerToCodeCallback != null) {
+                mReloading = true;
+            }
+            mManagerToCodeCallback = null;
+        }
+
+        void setFirstLoad(int firstLoad, long loadRequestedAtMs) {
+            mLoadRequestedAtMs = loadRequestedAtMs;
+            mFirstLoad = firstLoad;
         }
 
         @Override
@@ -625,28 +2001,156 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
                 Bundle params, ISdkSandboxManagerToSdkSandboxCallback callback) {
             // Keep reference to callback so that manager service can
             // callback to remote code loaded.
-            synchronized (this) {
-                mManagerToCodeCallback = callback;
+            mManagerToCodeCallback = callback;
+            mTraceStats.record(TraceStats.HOP_LOAD_IN_SANDBOX, mDispatchedAtMs);
+            mDispatchedAtMs = 0;
+            if (mLoadStartedAtMs != 0) {
+                mLatencyStats.mLoadSdk.record(SystemClock.elapsedRealtime() - mLoadStartedAtMs);
+                mLoadStartedAtMs = 0;
+            }
+            final long initMs = params == null ? -1 : params.getLong(
+                    ISdkSandboxToSdkSandboxManagerCallback.INIT_DURATION_MILLIS_KEY, -1);
+            if (initMs >= 0) {
+                mLatencyStats.recordSdkInit(mSdkName, initMs);
+            }
+            if (mFirstLoad != PrewarmStats.NOT_FIRST_LOAD) {
+                mPrewarmStats.onFirstLoadFinished(
+                        mFirstLoad, SystemClock.elapsedRealtime() - mLoadRequestedAtMs);
+                mFirstLoad = PrewarmStats.NOT_FIRST_LOAD;
+            }
+            if (mReloading) {
+                mReloading = false;
+                sendSdkReloadedToApp(params);
+            } else {
+                sendLoadSdkSuccessToApp(params);
             }
-            sendLoadSdkSuccessToApp(params);
         }
 
         @Override
         public void onLoadSdkError(int errorCode, String errorMsg) {
+            mDispatchedAtMs = 0;
+            mLoadStartedAtMs = 0;
             sendLoadSdkErrorToApp(errorCode, errorMsg);
         }
 
         @Override
         public void onSurfacePackageReady(SurfaceControlViewHost.SurfacePackage surfacePackage,
                 int surfacePackageId, Bundle params) {
+            final long requestedAtMs = onSurfacePackageRequestFinished();
+            if (requestedAtMs != 0) {
+                mLatencyStats.mSurfacePackage.record(
+                        SystemClock.elapsedRealtime() - requestedAtMs);
+            }
             sendSurfacePackageReadyToApp(surfacePackage, surfacePackageId, params);
         }
 
         @Override
         public void onSurfacePackageError(int errorCode, String errorMsg) {
+            onSurfacePackageRequestFinished();
             sendSurfacePackageErrorToApp(errorCode, errorMsg);
         }
 
+        private void onSurfacePackageRequestStarted() {
+            final long nowMs = SystemClock.elapsedRealtime();
+            synchronized (mSurfacePackageRequestsMs) {
+                final int capacity = mSurfacePackageRequestsMs.length;
+                if (mSurfacePackageRequestsInFlight == capacity) {
+                    mFirstSurfacePackageRequest = (mFirstSurfacePackageRequest + 1) % capacity;
+                    mSurfacePackageRequestsInFlight--;
+                }
+                mSurfacePackageRequestsMs[(mFirstSurfacePackageRequest
+                        + mSurfacePackageRequestsInFlight) % capacity] = nowMs;
+                mSurfacePackageRequestsInFlight++;
+            }
+        }
+
+        /** Returns when the oldest surface package request in flight started, 0 if none. */
+        private long onSurfacePackageRequestFinished() {
+            synchronized (mSurfacePackageRequestsMs) {
+                if (mSurfacePackageRequestsInFlight == 0) {
+                    return 0;
+                }
+                final long requestedAtMs = mSurfacePackageRequestsMs[mFirstSurfacePackageRequest];
+                mFirstSurfacePackageRequest =
+                        (mFirstSurfacePackageRequest + 1) % mSurfacePackageRequestsMs.length;
+                mSurfacePackageRequestsInFlight--;
+                return requestedAtMs;
+            }
+        }
+
+        @Override
+        public void onResourceUsage(Bundle usage) {
+            final Bundle previousUsage = mResourceUsage;
+            final String throttledWindowsKey =
+                    ISdkSandboxToSdkSandboxManagerCallback.USAGE_THROTTLED_WINDOWS_KEY;
+            if (usage.getLong(throttledWindowsKey) > (previousUsage == null
+                    ? 0 : previousUsage.getLong(throttledWindowsKey))) {
+                Log.w(TAG, "Sdk " + mSdkName + " of app " + mAppUid
+                        + " went over its quota and is throttled");
+            }
+            mResourceUsage = usage;
+            synchronized (mResourceUsageRequests) {
+                for (int i = 0; i < mResourceUsageRequests.size(); i++) {
+                    mResourceUsageRequests.get(i).countDown();
+                }
+                mResourceUsageRequests.clear();
+            }
+        }
+
+        /**
+         * Asks the sdk for its resource usage. Returns a latch counted down once the sdk reports
+         * it, or null if the sdk cannot be asked.
+         */
+        @Nullable
+        CountDownLatch requestResourceUsageFromCode() {
+            final ISdkSandboxManagerToSdkSandboxCallback managerToCodeCallback =
+                    mManagerToCodeCallback;
+            if (managerToCodeCallback == null) {
+                return null;
+            }
+            final CountDownLatch usageReported = new CountDownLatch(1);
+            synchronized (mResourceUsageRequests) {
+                mResourceUsageRequests.add(usageReported);
+            }
+            try {
+                managerToCodeCallback.onResourceUsageRequested();
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to request resource usage", e);
+                synchronized (mResourceUsageRequests) {
+                    mResourceUsageRequests.remove(usageReported);
+                }
+                return null;
+            }
+            return usageReported;
+        }
+
+        void dumpResourceUsage(PrintWriter writer) {
+            final Bundle usage = mResourceUsage;
+            if (usage == null) {
+                return;
+            }
+            writer.printf("%s of %d: callbacks: %d, time in callbacks: %d ms, "
+                    + "throttled calls: %d", mSdkName, mAppUid,
+                    usage.getLong(ISdkSandboxToSdkSandboxManagerCallback.USAGE_CALLBACKS_KEY),
+                    usage.getLong(
+                            ISdkSandboxToSdkSandboxManagerCallback.USAGE_CALLBACK_TIME_MS_KEY),
+                    usage.getLong(
+                            ISdkSandboxToSdkSandboxManagerCallback.USAGE_THROTTLED_CALLS_KEY));
+            writer.println();
+            writer.printf("  surface packages: %d (%d bytes), evicted: %d, "
+                    + "heap growth on init: %d bytes, stalls: %d",
+                    usage.getInt(
+                            ISdkSandboxToSdkSandboxManagerCallback.USAGE_SURFACE_PACKAGES_KEY),
+                    usage.getLong(ISdkSandboxToSdkSandboxManagerCallback
+                            .USAGE_SURFACE_PACKAGE_BYTES_KEY),
+                    usage.getInt(ISdkSandboxToSdkSandboxManagerCallback
+                            .USAGE_EVICTED_SURFACE_PACKAGES_KEY),
+                    usage.getLong(
+                            ISdkSandboxToSdkSandboxManagerCallback.USAGE_INIT_HEAP_BYTES_KEY),
+                    usage.getLong(ISdkSandboxToSdkSandboxManagerCallback.USAGE_STALLS_KEY));
+            writer.println();
+        }
+
         private void sendLoadSdkSuccessToApp(Bundle params) {
             try {
                 mManagerToAppCallback.onLoadSdkSuccess(mSdkToken, params);
@@ -655,6 +2159,14 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
             }
         }
 
+        private void sendSdkReloadedToApp(Bundle params) {
+            try {
+                mManagerToAppCallback.onSdkReloaded(mSdkToken, params);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to send onSdkReloaded", e);
+            }
+        }
+
         void sendLoadSdkErrorToApp(int errorCode, String errorMsg) {
             // Since loadSdk failed, manager should no longer concern itself with communication
             // between the app and a non-existing remote code.
@@ -687,15 +2199,67 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
         }
 
         void requestSurfacePackageToCode(IBinder hostToken, int displayId, Bundle params) {
+            final ISdkSandboxManagerToSdkSandboxCallback managerToCodeCallback =
+                    mManagerToCodeCallback;
+            if (managerToCodeCallback == null) {
+                // Not loaded yet, or being reloaded after an update.
+                sendSurfacePackageErrorToApp(SdkSandboxManager.SURFACE_PACKAGE_INTERNAL_ERROR,
+                        mSdkName + " is not loaded");
+                return;
+            }
+            onSurfacePackageRequestStarted();
             try {
-                synchronized (this) {
-                    mManagerToCodeCallback.onSurfacePackageRequested(hostToken, displayId, params);
-                }
+                managerToCodeCallback.onSurfacePackageRequested(hostToken, displayId, params);
             } catch (RemoteException e) {
+                onSurfacePackageRequestFinished();
                 Log.w(TAG, "Failed to requestSurfacePackage", e);
                 // TODO(b/204991850): send request surface package error back to app
             }
         }
+
+        void sendDataToCode(Bundle data) {
+            final ISdkSandboxManagerToSdkSandboxCallback managerToCodeCallback =
+                    mManagerToCodeCallback;
+            if (managerToCodeCallback == null) {
+                throw new IllegalStateException("Sdk is not loaded yet");
+            }
+            try {
+                managerToCodeCallback.onDataReceived(data);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to sendData", e);
+            }
+        }
+
+        void openChannelToCode(ISdkChannel appEndpoint) {
+            final ISdkSandboxManagerToSdkSandboxCallback managerToCodeCallback =
+                    mManagerToCodeCallback;
+            if (managerToCodeCallback == null) {
+                throw new IllegalStateException("Sdk is not loaded yet");
+            }
+            try {
+                managerToCodeCallback.onChannelRequested(appEndpoint.asBinder());
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to openChannel", e);
+                try {
+                    appEndpoint.onClosed();
+                } catch (RemoteException ex) {
+                    Log.w(TAG, "Failed to close channel", ex);
+                }
+            }
+        }
+
+        void releaseSurfacePackageToCode(int surfacePackageId) {
+            final ISdkSandboxManagerToSdkSandboxCallback managerToCodeCallback =
+                    mManagerToCodeCallback;
+            if (managerToCodeCallback == null) {
+                return;
+            }
+            try {
+                managerToCodeCallback.onSurfacePackageReleased(surfacePackageId);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to releaseSurfacePackage", e);
+            }
+        }
     }
 
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PRIVATE)
@@ -707,14 +2271,22 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
             @NonNull String clientAppPackageName, int clientAppUid) {
         Log.d(TAG, "notifyInstrumentationStarted: clientApp = " + clientAppPackageName
                 + " clientAppUid = " + clientAppUid);
-        synchronized (mLock) {
-            mServiceProvider.unbindService(clientAppUid);
-            int sdkSandboxUid = Process.toSdkSandboxUid(clientAppUid);
-            mActivityManager.killUid(sdkSandboxUid, "instrumentation started");
-            mRunningInstrumentations.add(clientAppUid);
-        }
-        // TODO(b/223386213): we need to check if there is reconcileSdkData task already enqueued
-        //  because the instrumented client app was just installed.
+        while (true) {
+            final AppState appState = getAppState(clientAppUid);
+            synchronized (appState) {
+                // The state may have been removed since, with the flag set here lost with it.
+                if (!appState.mRemoved) {
+                    unbindSandbox(clientAppUid);
+                    appState.mRunningInstrumentation = true;
+                    break;
+                }
+            }
+        }
+        int sdkSandboxUid = Process.toSdkSandboxUid(clientAppUid);
+        mActivityManager.killUid(sdkSandboxUid, "instrumentation started");
+        // The instrumented client app may have just been installed, its queued reconcile is done
+        // right away instead.
+        mSdkDataReconcileQueue.remove(clientAppPackageName, clientAppUid);
         reconcileSdkData(clientAppPackageName, clientAppUid, /* forInstrumentation= */ true);
     }
 
@@ -722,13 +2294,17 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
             @NonNull String clientAppPackageName, int clientAppUid) {
         Log.d(TAG, "notifyInstrumentationFinished: clientApp = " + clientAppPackageName
                 + " clientAppUid = " + clientAppUid);
-        synchronized (mLock) {
-            mRunningInstrumentations.remove(clientAppUid);
+        final AppState appState = getAppState(clientAppUid);
+        synchronized (appState) {
+            appState.mRunningInstrumentation = false;
         }
+        maybeRemoveAppState(clientAppUid);
     }
 
     /** @hide */
     public static class Lifecycle extends SystemService {
+        private SdkSandboxManagerService mService;
+
         public Lifecycle(Context context) {
             super(context);
         }
@@ -737,11 +2313,27 @@ public class SdkSandboxManagerService extends ISdkSandboxManager.Stub {
         public void onStart() {
             SdkSandboxServiceProvider provider =
                     new SdkSandboxServiceProviderImpl(getContext());
-            SdkSandboxManagerService service =
-                    new SdkSandboxManagerService(getContext(), provider);
-            publishBinderService(SDK_SANDBOX_SERVICE, service);
+            mService = new SdkSandboxManagerService(getContext(), provider);
+            publishBinderService(SDK_SANDBOX_SERVICE, mService);
             LocalManagerRegistry.addManager(
-                    SdkSandboxManagerLocal.class, service.getLocalManager());
+                    SdkSandboxManagerLocal.class, mService.getLocalManager());
+        }
+
+        @Override
+        public void onBootPhase(int phase) {
+            if (phase == PHASE_ACTIVITY_MANAGER_READY) {
+                // Apps that start or come to the foreground get their sandbox pre-warmed.
+                mService.mActivityManager.addOnUidImportanceListener(
+                        mService::onUidImportance,
+                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND);
+            }
+        }
+
+        @Override
+        public void onUserUnlocked(@NonNull TargetUser user) {
+            // Apps whose package broadcasts were missed get their sdk data before they start,
+            // rather than lazily. Swept once unlocked, so that their CE sdk data is created too.
+            mService.mSdkDataSweeper.sweep(user.getUserHandle());
         }
     }
 
@@ -17,6 +17,7 @@
 package com.android.server.sdksandbox;
 
 import android.annotation.Nullable;
+import android.app.sdksandbox.SdkSandboxTrace;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -87,6 +88,8 @@ class SdkSandboxServiceProviderImpl implements SdkSandboxServiceProvider {
                     new SdkSandboxConnection(serviceConnection);
 
             final String processName = "sdk_sandbox_" + appUid;
+            final boolean traced = SdkSandboxTrace.beginSection(
+                    "SdkSandboxServiceProvider#bindService", SdkSandboxTrace.NO_REQUEST_ID);
             try {
                 boolean bound = mActivityManagerLocal.bindSdkSandboxService(intent,
                         serviceConnection, appUid, appPackageName, processName,
@@ -99,6 +102,8 @@ class SdkSandboxServiceProviderImpl implements SdkSandboxServiceProvider {
             } catch (RemoteException e) {
                 notifyFailedBinding(serviceConnection);
                 return;
+            } finally {
+                SdkSandboxTrace.endSection(traced);
             }
 
             mAppSdkSandboxConnections.append(appUid, sdkSandboxConnection);
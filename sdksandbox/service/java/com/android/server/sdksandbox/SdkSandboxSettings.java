@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.sdksandbox;
+
+import android.app.ActivityManager;
+import android.provider.DeviceConfig;
+
+/**
+ * Tunables of the sdk sandbox, read from {@link DeviceConfig}.
+ *
+ * @hide
+ */
+final class SdkSandboxSettings {
+
+    static final String NAMESPACE = "sdk_sandbox";
+
+    static final String KEY_PREWARM_ENABLED = "sdksandbox_prewarm_enabled";
+    static final String KEY_PREWARM_MAX_SANDBOXES = "sdksandbox_prewarm_max_sandboxes";
+    static final String KEY_PREWARM_IDLE_TIMEOUT_MS = "sdksandbox_prewarm_idle_timeout_ms";
+    static final String KEY_SDK_HOT_SWAP_ENABLED = "sdksandbox_sdk_hot_swap_enabled";
+    static final String KEY_RESTART_BACKOFF_BASE_MS = "sdksandbox_restart_backoff_base_ms";
+    static final String KEY_RESTART_BACKOFF_MAX_MS = "sdksandbox_restart_backoff_max_ms";
+    static final String KEY_MAX_RESTARTS = "sdksandbox_max_restarts";
+    static final String KEY_IDLE_RELEASE_ENABLED = "sdksandbox_idle_release_enabled";
+    static final String KEY_IDLE_RELEASE_TIMEOUT_MS = "sdksandbox_idle_release_timeout_ms";
+    static final String KEY_SDK_CALLBACK_TIME_QUOTA_MS = "sdksandbox_sdk_callback_time_quota_ms";
+    static final String KEY_SDK_SURFACE_PACKAGES_QUOTA = "sdksandbox_sdk_surface_packages_quota";
+    static final String KEY_TRACE_SAMPLE_RATE = "sdksandbox_trace_sample_rate";
+    static final String KEY_SDK_VERIFICATION_ENFORCED = "sdksandbox_sdk_verification_enforced";
+    static final String KEY_SDK_VERIFICATION_TIMEOUT_MS = "sdksandbox_sdk_verification_timeout_ms";
+
+    private static final boolean DEFAULT_PREWARM_ENABLED = false;
+    private static final int DEFAULT_PREWARM_MAX_SANDBOXES = 2;
+    private static final long DEFAULT_PREWARM_IDLE_TIMEOUT_MS = 60_000;
+    private static final boolean DEFAULT_SDK_HOT_SWAP_ENABLED = false;
+    private static final long DEFAULT_RESTART_BACKOFF_BASE_MS = 1_000;
+    private static final long DEFAULT_RESTART_BACKOFF_MAX_MS = 60_000;
+    private static final int DEFAULT_MAX_RESTARTS = 5;
+    private static final long DEFAULT_IDLE_RELEASE_TIMEOUT_MS = 10 * 60_000;
+    private static final long DEFAULT_SDK_CALLBACK_TIME_QUOTA_MS = 0;
+    private static final int DEFAULT_SDK_SURFACE_PACKAGES_QUOTA = 16;
+    private static final int DEFAULT_TRACE_SAMPLE_RATE = 100;
+    private static final boolean DEFAULT_SDK_VERIFICATION_ENFORCED = false;
+    private static final long DEFAULT_SDK_VERIFICATION_TIMEOUT_MS = 5_000;
+
+    private SdkSandboxSettings() {}
+
+    /**
+     * Whether sandboxes are bound speculatively for apps that depend on SDKs when they start or
+     * come to the foreground.
+     */
+    static boolean isPrewarmEnabled() {
+        return DeviceConfig.getBoolean(NAMESPACE, KEY_PREWARM_ENABLED, DEFAULT_PREWARM_ENABLED);
+    }
+
+    /** Maximum number of pre-warmed sandboxes that are not used by any load yet. */
+    static int getPrewarmMaxSandboxes() {
+        return DeviceConfig.getInt(
+                NAMESPACE, KEY_PREWARM_MAX_SANDBOXES, DEFAULT_PREWARM_MAX_SANDBOXES);
+    }
+
+    /** Time after which a pre-warmed sandbox that no load used is released. */
+    static long getPrewarmIdleTimeoutMs() {
+        return DeviceConfig.getLong(
+                NAMESPACE, KEY_PREWARM_IDLE_TIMEOUT_MS, DEFAULT_PREWARM_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * Whether an updated sdk is unloaded and loaded again in the sandboxes using it, instead of
+     * killing the apps that loaded it.
+     */
+    static boolean isSdkHotSwapEnabled() {
+        return DeviceConfig.getBoolean(
+                NAMESPACE, KEY_SDK_HOT_SWAP_ENABLED, DEFAULT_SDK_HOT_SWAP_ENABLED);
+    }
+
+    /** Delay before a crashed sandbox is bound again the first time; doubled on every crash. */
+    static long getRestartBackoffBaseMs() {
+        return DeviceConfig.getLong(
+                NAMESPACE, KEY_RESTART_BACKOFF_BASE_MS, DEFAULT_RESTART_BACKOFF_BASE_MS);
+    }
+
+    /** Upper bound of the delay before a crashed sandbox is bound again. */
+    static long getRestartBackoffMaxMs() {
+        return DeviceConfig.getLong(
+                NAMESPACE, KEY_RESTART_BACKOFF_MAX_MS, DEFAULT_RESTART_BACKOFF_MAX_MS);
+    }
+
+    /**
+     * Number of crashes in a row after which a sandbox is not restarted anymore, and the sdks
+     * loaded in it are reported as failed to their app.
+     */
+    static int getMaxRestarts() {
+        return DeviceConfig.getInt(NAMESPACE, KEY_MAX_RESTARTS, DEFAULT_MAX_RESTARTS);
+    }
+
+    /**
+     * Whether the sandbox of an app in the background is released once the app did not use its
+     * sdks for {@link #getIdleReleaseTimeoutMs()}. On by default on low RAM devices.
+     *
+     * @param isLowRamDevice whether the device is low on RAM, see
+     *     {@link ActivityManager#isLowRamDevice()}.
+     */
+    static boolean isIdleReleaseEnabled(boolean isLowRamDevice) {
+        return DeviceConfig.getBoolean(NAMESPACE, KEY_IDLE_RELEASE_ENABLED, isLowRamDevice);
+    }
+
+    /** Time without sdk activity after which the sandbox of a background app is released. */
+    static long getIdleReleaseTimeoutMs() {
+        return DeviceConfig.getLong(
+                NAMESPACE, KEY_IDLE_RELEASE_TIMEOUT_MS, DEFAULT_IDLE_RELEASE_TIMEOUT_MS);
+    }
+
+    /**
+     * Cpu time an sdk may spend in callbacks per minute before calls into it are throttled for
+     * the rest of the minute; 0, the default, for no quota.
+     */
+    static long getSdkCallbackTimeQuotaMs() {
+        return DeviceConfig.getLong(
+                NAMESPACE, KEY_SDK_CALLBACK_TIME_QUOTA_MS, DEFAULT_SDK_CALLBACK_TIME_QUOTA_MS);
+    }
+
+    /**
+     * Maximum number of live surface packages of an sdk; the least recently used ones are
+     * released past it.
+     */
+    static int getSdkSurfacePackagesQuota() {
+        return DeviceConfig.getInt(
+                NAMESPACE, KEY_SDK_SURFACE_PACKAGES_QUOTA, DEFAULT_SDK_SURFACE_PACKAGES_QUOTA);
+    }
+
+    /**
+     * One in how many requests is given a request id and has the latency of its hops recorded,
+     * while tracing is disabled; 0 to only do so while tracing.
+     */
+    static int getTraceSampleRate() {
+        return DeviceConfig.getInt(NAMESPACE, KEY_TRACE_SAMPLE_RATE, DEFAULT_TRACE_SAMPLE_RATE);
+    }
+
+    /**
+     * Whether the install of an sdk whose code uses disallowed apis is rejected, rather than only
+     * logged.
+     */
+    static boolean isSdkVerificationEnforced() {
+        return DeviceConfig.getBoolean(
+                NAMESPACE, KEY_SDK_VERIFICATION_ENFORCED, DEFAULT_SDK_VERIFICATION_ENFORCED);
+    }
+
+    /**
+     * Time after which the verification of an sdk is given up and its install allowed, well
+     * within the timeout of the package verification.
+     */
+    static long getSdkVerificationTimeoutMs() {
+        return DeviceConfig.getLong(
+                NAMESPACE, KEY_SDK_VERIFICATION_TIMEOUT_MS, DEFAULT_SDK_VERIFICATION_TIMEOUT_MS);
+    }
+}
@@ -16,14 +16,23 @@
 
 package com.android.server.sdksandbox;
 
+import android.annotation.Nullable;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Broadcast Receiver for receiving new Sdk install requests and
  * verifying Sdk code before running it in Sandbox.
@@ -32,7 +41,13 @@ import android.util.Log;
 public class SdkSandboxVerifierReceiver extends BroadcastReceiver {
 
     private static final String TAG = "SdkSandboxManager";
-    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+    // Verifications wait for the scans of the verifier, off the main thread.
+    private static final Executor VERIFICATION_EXECUTOR = newVerificationExecutor();
+    private static final SdkCodeVerifier VERIFIER = new SdkCodeVerifier();
+    // The same sdk apks are installed for every user and again on reinstalls.
+    private static final SdkVerificationCache CACHE = new SdkVerificationCache(new File(
+            Environment.getDataDirectory(), "system/sdksandbox/sdk_verification_cache"));
 
 
     @Override
@@ -44,7 +59,7 @@ public class SdkSandboxVerifierReceiver extends BroadcastReceiver {
         Log.d(TAG, "Received sdk sandbox verification intent " + intent.toString());
         Log.d(TAG, "Extras " + intent.getExtras());
 
-        MAIN_HANDLER.post(() -> verifySdkHandler(context, intent));
+        VERIFICATION_EXECUTOR.execute(() -> verifySdkHandler(context, intent));
     }
 
     private void verifySdkHandler(Context context, Intent intent) {
@@ -54,16 +69,48 @@ public class SdkSandboxVerifierReceiver extends BroadcastReceiver {
 
         String apkPath = intent.getData().getSchemeSpecificPart();
 
-        boolean validSdk = true;
-
-        for (String apkWithHash : verificationRootHash.split(";")) {
-            String apk = apkWithHash.split(":")[0];
+        final long startMs = SystemClock.elapsedRealtime();
+        final List<File> apks = new ArrayList<>();
+        final List<String> rootHashes = new ArrayList<>();
+        getApks(apkPath, verificationRootHash, apks, rootHashes);
+        final List<SdkCodeVerifier.Result> results = new ArrayList<>(apks.size());
+        final List<Integer> toVerify = new ArrayList<>();
+        for (int i = 0; i < apks.size(); i++) {
+            results.add(CACHE.get(rootHashes.get(i)));
+            if (results.get(i) == null) {
+                toVerify.add(i);
+            }
+        }
+        if (!toVerify.isEmpty()) {
+            final List<File> apksToVerify = new ArrayList<>(toVerify.size());
+            for (int i = 0; i < toVerify.size(); i++) {
+                apksToVerify.add(apks.get(toVerify.get(i)));
+            }
+            final List<SdkCodeVerifier.Result> verified = VERIFIER.verify(
+                    apksToVerify, SdkSandboxSettings.getSdkVerificationTimeoutMs());
+            for (int i = 0; i < toVerify.size(); i++) {
+                final int index = toVerify.get(i);
+                results.set(index, verified.get(i));
+                CACHE.put(rootHashes.get(index), verified.get(i));
+            }
+        }
+        Log.d(TAG, "Verified " + apkPath + " in " + (SystemClock.elapsedRealtime() - startMs)
+                + " ms, " + (apks.size() - toVerify.size()) + " cached: " + results
+                + ", cache " + CACHE);
 
-            //TODO(b/206445674): move verify call to sdk sandbox apk
-            //TODO(b/206445674): call verify and pass the apk Path
+        boolean validSdk = true;
+        for (int i = 0; i < results.size(); i++) {
+            // Apks that cannot be read or take too long are left to the package manager.
+            if (results.get(i).mCode == SdkCodeVerifier.RESULT_DISALLOWED_API) {
+                Log.w(TAG, apks.get(i) + " uses disallowed api " + results.get(i).mDetail);
+                validSdk = false;
+            }
+        }
+        if (!validSdk && !SdkSandboxSettings.isSdkVerificationEnforced()) {
+            // Until verification is enforced, disallowed apis are only logged.
+            validSdk = true;
         }
 
-        // TODO(b/206445674): store results from the verifier.
         if (validSdk) {
             context.getPackageManager().verifyPendingInstall(
                     verificationId,
@@ -74,4 +121,41 @@ public class SdkSandboxVerifierReceiver extends BroadcastReceiver {
                     PackageManager.VERIFICATION_REJECT);
         }
     }
+
+    /**
+     * Adds the apks of the install, named in its root hashes if it has several, to {@code apks}
+     * and their root hashes, null if unknown, to {@code rootHashes}.
+     */
+    private static void getApks(String apkPath, @Nullable String verificationRootHash,
+            List<File> apks, List<String> rootHashes) {
+        final File path = new File(apkPath);
+        final String[] apksWithHash =
+                verificationRootHash == null ? new String[0] : verificationRootHash.split(";");
+        if (!path.isDirectory()) {
+            apks.add(path);
+            rootHashes.add(apksWithHash.length == 1 ? getRootHash(apksWithHash[0]) : null);
+            return;
+        }
+        for (String apkWithHash : apksWithHash) {
+            String apk = apkWithHash.split(":")[0];
+            if (!apk.isEmpty()) {
+                apks.add(new File(path, apk));
+                rootHashes.add(getRootHash(apkWithHash));
+            }
+        }
+    }
+
+    @Nullable
+    private static String getRootHash(String apkWithHash) {
+        final int index = apkWithHash.indexOf(':');
+        return index < 0 ? null : apkWithHash.substring(index + 1);
+    }
+
+    private static Executor newVerificationExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "SdkSandboxVerifier"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.sdksandbox;
+
+import android.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Verification results of sdk apks by root hash, persisted so that an apk verified once, for any
+ * user, is not verified again.
+ *
+ * <p>Only the results that depend on the code of the apk alone are kept, and the least recently
+ * used ones are evicted past {@link #MAX_ENTRIES}. The results are dropped whenever
+ * {@link SdkCodeVerifier#VERIFIER_VERSION} or {@link SdkCodeVerifier#DISALLOWED_APIS} change.
+ */
+@ThreadSafe
+class SdkVerificationCache {
+
+    private static final String TAG = "SdkSandboxManager";
+
+    static final int MAX_ENTRIES = 256;
+
+    private static final String VERSION_PREFIX = "version ";
+    // Version of the results, which changes with the verifier and the apis they were verified
+    // against.
+    private static final String VERSION = SdkCodeVerifier.VERIFIER_VERSION + " "
+            + Integer.toHexString(Arrays.hashCode(SdkCodeVerifier.DISALLOWED_APIS));
+
+    private final AtomicFile mFile;
+    private final int mMaxEntries;
+
+    // Results by root hash, from the least recently used.
+    @GuardedBy("this")
+    private final LinkedHashMap<String, SdkCodeVerifier.Result> mResults =
+            new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/ true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, SdkCodeVerifier.Result> eldest) {
+                    return size() > mMaxEntries;
+                }
+            };
+    @GuardedBy("this")
+    private boolean mLoaded = false;
+    @GuardedBy("this")
+    private long mHits = 0;
+    @GuardedBy("this")
+    private long mMisses = 0;
+
+    SdkVerificationCache(File file) {
+        this(file, MAX_ENTRIES);
+    }
+
+    SdkVerificationCache(File file, int maxEntries) {
+        mFile = new AtomicFile(file);
+        mMaxEntries = maxEntries;
+    }
+
+    /** Returns the result of the apk of {@code rootHash}, if it was verified. */
+    @Nullable
+    synchronized SdkCodeVerifier.Result get(@Nullable String rootHash) {
+        loadLocked();
+        final SdkCodeVerifier.Result result =
+                TextUtils.isEmpty(rootHash) ? null : mResults.get(rootHash);
+        if (result != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the result of the apk of {@code rootHash}, unless it depends on more than its code,
+     * such as a verification that timed out.
+     */
+    synchronized void put(@Nullable String rootHash, SdkCodeVerifier.Result result) {
+        if (TextUtils.isEmpty(rootHash) || rootHash.contains(" ")
+                || (result.mCode != SdkCodeVerifier.RESULT_ALLOWED
+                        && result.mCode != SdkCodeVerifier.RESULT_DISALLOWED_API)) {
+            return;
+        }
+        loadLocked();
+        mResults.put(rootHash, result);
+        writeLocked();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "entries: " + mResults.size() + ", hits: " + mHits + ", misses: " + mMisses;
+    }
+
+    /**
+     * Reads the results, written as a version line then one line per result from the least
+     * recently used: its root hash, code and detail, separated by spaces.
+     */
+    @GuardedBy("this")
+    private void loadLocked() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(mFile.openRead(), StandardCharsets.UTF_8))) {
+            if (!(VERSION_PREFIX + VERSION).equals(reader.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ", 3);
+                if (fields.length < 2) {
+                    continue;
+                }
+                mResults.put(fields[0], new SdkCodeVerifier.Result(
+                        Integer.parseInt(fields[1]), fields.length > 2 ? fields[2] : null));
+            }
+        } catch (FileNotFoundException ignored) {
+            // Nothing verified yet.
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Failed to read " + mFile.getBaseFile(), e);
+            mResults.clear();
+        }
+    }
+
+    @GuardedBy("this")
+    private void writeLocked() {
+        final File dir = mFile.getBaseFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + dir);
+            return;
+        }
+        final StringBuilder builder = new StringBuilder(VERSION_PREFIX).append(VERSION)
+                .append('\n');
+        for (Map.Entry<String, SdkCodeVerifier.Result> entry : mResults.entrySet()) {
+            builder.append(entry.getKey()).append(' ').append(entry.getValue().mCode);
+            if (entry.getValue().mDetail != null) {
+                builder.append(' ').append(entry.getValue().mDetail);
+            }
+            builder.append('\n');
+        }
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + mFile.getBaseFile(), e);
+            mFile.failWrite(out);
+        }
+    }
+}
@@ -140,6 +140,9 @@ public class SdkSandboxManagerTest {
             mSurfacePackageLatch.countDown();
         }
 
+        @Override
+        public void onSdkReloaded(IBinder sdkToken, Bundle params) {}
+
         void waitForLatch(CountDownLatch latch) {
             try {
                 // Wait for callback to be called
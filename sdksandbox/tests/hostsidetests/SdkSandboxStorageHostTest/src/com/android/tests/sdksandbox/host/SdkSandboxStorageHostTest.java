@@ -41,6 +41,8 @@ import java.security.cert.Certificate;
 import java.util.Arrays;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
@@ -352,6 +354,27 @@ public final class SdkSandboxStorageHostTest extends BaseHostJUnit4Test {
                     0, TEST_APP_STORAGE_PACKAGE, SDK_PACKAGE, false)).isNotNull();
     }
 
+    @Test
+    public void testSdkDataPerSdkDirectory_IsKeptOnUpdate() throws Exception {
+        installPackage(TEST_APP_STORAGE_APK);
+        final String perSdkCePath = getSdkDataPerSdkPath(
+                0, TEST_APP_STORAGE_PACKAGE, SDK_PACKAGE, true);
+        assertThat(perSdkCePath).isNotNull();
+        final String file = perSdkCePath + "/file";
+        getDevice().executeShellCommand("echo something > " + file);
+        final long[] countsBefore = awaitSdkDataReconcileCounts(0);
+
+        // Updating the app reconciles its sdk data again, which does not need installd as the
+        // sdks it uses did not change.
+        installPackage(TEST_APP_STORAGE_APK);
+        final long[] countsAfter = awaitSdkDataReconcileCounts(countsBefore[0] + 1);
+        assertThat(countsAfter[1] - countsBefore[1]).isEqualTo(0);
+
+        assertThat(getSdkDataPerSdkPath(0, TEST_APP_STORAGE_PACKAGE, SDK_PACKAGE, true))
+                .isEqualTo(perSdkCePath);
+        assertThat(getDevice().doesFileExist(file)).isTrue();
+    }
+
     @Test
     public void testSdkData_CanBeMovedToDifferentVolume() throws Exception {
         assumeTrue(isAdoptableStorageSupported());
@@ -476,6 +499,28 @@ public final class SdkSandboxStorageHostTest extends BaseHostJUnit4Test {
         fail("Timed out in unlocking user: " + userId);
     }
 
+    /**
+     * Waits for the service to have reconciled sdk data at least {@code minReconciles} times, and
+     * returns the number of reconciles and of calls into installd it made so far.
+     */
+    private long[] awaitSdkDataReconcileCounts(long minReconciles) throws Exception {
+        final Pattern pattern = Pattern.compile("reconciles: (\\d+), installd calls: (\\d+)");
+        for (int i = 0; i < SWITCH_USER_COMPLETED_NUMBER_OF_POLLS; ++i) {
+            final Matcher matcher = pattern.matcher(
+                    getDevice().executeShellCommand("dumpsys sdk_sandbox"));
+            assertThat(matcher.find()).isTrue();
+            final long[] counts = {
+                Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))
+            };
+            if (counts[0] >= minReconciles) {
+                return counts;
+            }
+            Thread.sleep(SWITCH_USER_COMPLETED_POLL_INTERVAL_IN_MILLIS);
+        }
+        fail("Timed out waiting for " + minReconciles + " sdk data reconciles");
+        return null;
+    }
+
     private void removeSecondaryUserIfNecessary() throws Exception {
         if (mSecondaryUserId != -1) {
             // Can't remove the 2nd user without switching out of it
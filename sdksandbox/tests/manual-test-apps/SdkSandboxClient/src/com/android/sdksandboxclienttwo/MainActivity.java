@@ -91,6 +91,11 @@ public class MainActivity extends Activity {
         public void onSurfacePackageError(int errorCode, String errorMessage) {
             makeToast("Failed: " + errorMessage);
         }
+
+        @Override
+        public void onSdkReloaded(IBinder token, Bundle bundle) {
+            makeToast("Sdk was updated, render it again");
+        }
     }
 
 
@@ -30,6 +30,7 @@ import java.util.concurrent.TimeUnit;
 public class FakeRemoteSdkCallback extends IRemoteSdkCallback.Stub {
     private final CountDownLatch mLoadSdkLatch = new CountDownLatch(1);
     private final CountDownLatch mSurfacePackageLatch = new CountDownLatch(1);
+    private final CountDownLatch mSdkReloadedLatch = new CountDownLatch(1);
 
     private boolean mLoadSdkSuccess;
     private boolean mSurfacePackageSuccess;
@@ -69,6 +70,11 @@ public class FakeRemoteSdkCallback extends IRemoteSdkCallback.Stub {
         mSurfacePackageLatch.countDown();
     }
 
+    @Override
+    public void onSdkReloaded(IBinder sdkToken, Bundle params) {
+        mSdkReloadedLatch.countDown();
+    }
+
     public boolean isLoadSdkSuccessful() {
         waitForLatch(mLoadSdkLatch);
         return mLoadSdkSuccess;
@@ -109,6 +115,10 @@ public class FakeRemoteSdkCallback extends IRemoteSdkCallback.Stub {
         return mErrorMsg;
     }
 
+    public void waitForSdkReloaded() {
+        waitForLatch(mSdkReloadedLatch);
+    }
+
     private void waitForLatch(CountDownLatch latch) {
         try {
             // Wait for callback to be called
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.sdksandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class SdkChannelTest {
+
+    private ExecutorService mAppExecutor;
+    private ExecutorService mSdkExecutor;
+
+    @Before
+    public void setup() {
+        mAppExecutor = Executors.newSingleThreadExecutor();
+        mSdkExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mAppExecutor.shutdownNow();
+        mSdkExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testMessagesAreDeliveredInOrder() throws Exception {
+        final int count = 2000;
+        RecordingListener sdkListener = new RecordingListener(count);
+        SdkChannel appChannel = new SdkChannel(mAppExecutor, new RecordingListener(0));
+        SdkChannel sdkChannel = new SdkChannel(mSdkExecutor, sdkListener);
+
+        // Messages sent before the sdk side connects are queued, not dropped.
+        for (int i = 0; i < 10; i++) {
+            assertThat(appChannel.send(message(i))).isTrue();
+        }
+        sdkChannel.connect(appChannel.getEndpoint());
+        for (int i = 10; i < count; i++) {
+            // Wait out back pressure rather than dropping messages.
+            while (!appChannel.send(message(i))) {
+                Thread.sleep(1);
+            }
+        }
+
+        assertThat(sdkListener.mMessagesLatch.await(10, TimeUnit.SECONDS)).isTrue();
+        synchronized (sdkListener.mMessages) {
+            for (int i = 0; i < count; i++) {
+                assertThat(sdkListener.mMessages.get(i)).isEqualTo(i);
+            }
+        }
+    }
+
+    @Test
+    public void testMessagesAreDeliveredInOrderOnParallelExecutor() throws Exception {
+        final int count = 2000;
+        final ExecutorService sdkExecutor = Executors.newFixedThreadPool(4);
+        try {
+            RecordingListener sdkListener = new RecordingListener(count);
+            SdkChannel appChannel = new SdkChannel(mAppExecutor, new RecordingListener(0));
+            SdkChannel sdkChannel = new SdkChannel(sdkExecutor, sdkListener);
+            sdkChannel.connect(appChannel.getEndpoint());
+            for (int i = 0; i < count; i++) {
+                while (!appChannel.send(message(i))) {
+                    Thread.sleep(1);
+                }
+            }
+
+            assertThat(sdkListener.mMessagesLatch.await(10, TimeUnit.SECONDS)).isTrue();
+            synchronized (sdkListener.mMessages) {
+                for (int i = 0; i < count; i++) {
+                    assertThat(sdkListener.mMessages.get(i)).isEqualTo(i);
+                }
+            }
+        } finally {
+            sdkExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCloseNotifiesOtherSide() throws Exception {
+        RecordingListener appListener = new RecordingListener(0);
+        SdkChannel appChannel = new SdkChannel(mAppExecutor, appListener);
+        SdkChannel sdkChannel = new SdkChannel(mSdkExecutor, new RecordingListener(0));
+        sdkChannel.connect(appChannel.getEndpoint());
+        assertThat(appListener.mOpenedLatch.await(10, TimeUnit.SECONDS)).isTrue();
+
+        sdkChannel.close();
+        assertThat(appListener.mClosedLatch.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(appChannel.send(message(0))).isFalse();
+        assertThat(sdkChannel.send(message(0))).isFalse();
+    }
+
+    private static Bundle message(int i) {
+        Bundle message = new Bundle();
+        message.putInt("i", i);
+        return message;
+    }
+
+    private static class RecordingListener implements SdkChannel.Listener {
+        final List<Integer> mMessages = new ArrayList<>();
+        final CountDownLatch mMessagesLatch;
+        final CountDownLatch mOpenedLatch = new CountDownLatch(1);
+        final CountDownLatch mClosedLatch = new CountDownLatch(1);
+
+        RecordingListener(int expectedMessages) {
+            mMessagesLatch = new CountDownLatch(expectedMessages);
+        }
+
+        @Override
+        public void onOpened(SdkChannel channel) {
+            mOpenedLatch.countDown();
+        }
+
+        @Override
+        public void onMessage(Bundle message) {
+            synchronized (mMessages) {
+                mMessages.add(message.getInt("i"));
+            }
+            mMessagesLatch.countDown();
+        }
+
+        @Override
+        public void onClosed() {
+            mClosedLatch.countDown();
+        }
+    }
+}
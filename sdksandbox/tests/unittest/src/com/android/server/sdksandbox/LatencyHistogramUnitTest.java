@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.sdksandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.sdksandbox.LatencyHistogram;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/** Unit tests for {@link LatencyHistogram}. */
+@RunWith(JUnit4.class)
+public class LatencyHistogramUnitTest {
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 0; i < 98; i++) {
+            histogram.record(3);
+        }
+        histogram.record(100);
+        histogram.record(5_000);
+
+        assertThat(histogram.getPercentileMs(50)).isEqualTo(4);
+        assertThat(histogram.getPercentileMs(99)).isEqualTo(128);
+        assertThat(histogram.getPercentileMs(100)).isEqualTo(5_000);
+    }
+
+    @Test
+    public void testDumpAndReset() {
+        final LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(1);
+        histogram.record(40_000);
+
+        final StringWriter raw = new StringWriter();
+        histogram.dumpRaw(new PrintWriter(raw));
+        assertThat(raw.toString()).startsWith("test,2,40001,40000,1:1,2:0,");
+        assertThat(raw.toString().trim()).endsWith(",inf:1");
+
+        histogram.reset();
+        final StringWriter dump = new StringWriter();
+        histogram.dump(new PrintWriter(dump));
+        assertThat(dump.toString()).startsWith("test: count: 0, avg: 0 ms, p50: 0 ms");
+    }
+}
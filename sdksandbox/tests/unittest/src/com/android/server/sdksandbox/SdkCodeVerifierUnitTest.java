@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.sdksandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/** Unit tests for {@link SdkCodeVerifier}. */
+@RunWith(JUnit4.class)
+public class SdkCodeVerifierUnitTest {
+
+    private static final String TAG = "SdkCodeVerifierUnitTest";
+    private static final long TIMEOUT_MS = 5_000;
+    private static final String[] ALLOWED_METHOD = {"Ljava/lang/Runtime;", "getRuntime"};
+
+    @Rule
+    public final TemporaryFolder mTempDir = new TemporaryFolder();
+
+    private final SdkCodeVerifier mVerifier = new SdkCodeVerifier();
+
+    @Test
+    public void testFindDisallowedApi_allowedCode() throws Exception {
+        final byte[] dex = buildDex(Arrays.asList("Lcom/android/sdk/Sdk;", "Ljava/lang/Runtime;"),
+                Collections.singletonList(ALLOWED_METHOD));
+
+        assertThat(SdkCodeVerifier.findDisallowedApi(ByteBuffer.wrap(dex))).isNull();
+    }
+
+    @Test
+    public void testFindDisallowedApi_disallowedType() throws Exception {
+        final byte[] dex = buildDex(
+                Arrays.asList("Lcom/android/sdk/Sdk;", "Ldalvik/system/DexClassLoader;"),
+                Collections.emptyList());
+
+        assertThat(SdkCodeVerifier.findDisallowedApi(ByteBuffer.wrap(dex)))
+                .isEqualTo("Ldalvik/system/DexClassLoader;");
+    }
+
+    @Test
+    public void testFindDisallowedApi_disallowedMethod() throws Exception {
+        final byte[] dex = buildDex(Collections.singletonList("Ljava/lang/Runtime;"),
+                Arrays.asList(ALLOWED_METHOD, new String[] {"Ljava/lang/Runtime;", "exec"}));
+
+        assertThat(SdkCodeVerifier.findDisallowedApi(ByteBuffer.wrap(dex)))
+                .isEqualTo("Ljava/lang/Runtime;->exec");
+    }
+
+    @Test
+    public void testFindDisallowedApi_truncatedDex() throws Exception {
+        final byte[] dex = buildDex(
+                Arrays.asList("Lcom/android/sdk/Sdk;", "Ldalvik/system/DexClassLoader;"),
+                Collections.emptyList());
+
+        assertThrows(IOException.class, () -> SdkCodeVerifier.findDisallowedApi(
+                ByteBuffer.wrap(Arrays.copyOf(dex, dex.length - 8))));
+    }
+
+    @Test
+    public void testVerify_storedAndCompressedDex() throws Exception {
+        final byte[] allowed = buildDex(Collections.singletonList("Ljava/lang/Runtime;"),
+                Collections.singletonList(ALLOWED_METHOD));
+        final byte[] disallowed = buildDex(
+                Collections.singletonList("Ljava/lang/ProcessBuilder;"), Collections.emptyList());
+        final File storedApk = buildApk("stored.apk", /*compress=*/ false, allowed, disallowed);
+        final File compressedApk = buildApk("compressed.apk", /*compress=*/ true, allowed);
+
+        final List<SdkCodeVerifier.Result> results =
+                mVerifier.verify(Arrays.asList(storedApk, compressedApk), TIMEOUT_MS);
+
+        assertThat(results.get(0).mCode).isEqualTo(SdkCodeVerifier.RESULT_DISALLOWED_API);
+        assertThat(results.get(0).mDetail).isEqualTo("Ljava/lang/ProcessBuilder;");
+        assertThat(results.get(1).mCode).isEqualTo(SdkCodeVerifier.RESULT_ALLOWED);
+    }
+
+    @Test
+    public void testVerify_notAnApk() throws Exception {
+        final File file = mTempDir.newFile("not.apk");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[100]);
+        }
+
+        final List<SdkCodeVerifier.Result> results =
+                mVerifier.verify(Collections.singletonList(file), TIMEOUT_MS);
+
+        assertThat(results.get(0).mCode).isEqualTo(SdkCodeVerifier.RESULT_INVALID_APK);
+    }
+
+    @Test
+    public void testVerify_dexSizeOverCompressionRatio() throws Exception {
+        final byte[] dex = buildDex(Collections.singletonList("Ljava/lang/Runtime;"),
+                Collections.singletonList(ALLOWED_METHOD));
+        final File apk = buildApk("bomb.apk", /*compress=*/ true, dex);
+        // Well below the maximum size of a dex file, but not of a dex file this small compressed.
+        setCentralDirectorySize(apk, "classes.dex", 1024 * 1024);
+
+        final List<SdkCodeVerifier.Result> results =
+                mVerifier.verify(Collections.singletonList(apk), TIMEOUT_MS);
+
+        assertThat(results.get(0).mCode).isEqualTo(SdkCodeVerifier.RESULT_INVALID_APK);
+    }
+
+    @Test
+    public void testVerify_nameLengthPastEndOfApk() throws Exception {
+        final byte[] dex = buildDex(Collections.singletonList("Ljava/lang/Runtime;"),
+                Collections.singletonList(ALLOWED_METHOD));
+        final File apk = buildApk("name.apk", /*compress=*/ false, dex);
+        setCentralDirectoryNameLength(apk, "classes.dex", 0xffff);
+
+        final List<SdkCodeVerifier.Result> results =
+                mVerifier.verify(Collections.singletonList(apk), TIMEOUT_MS);
+
+        assertThat(results.get(0).mCode).isEqualTo(SdkCodeVerifier.RESULT_INVALID_APK);
+    }
+
+    /**
+     * Benchmark of the verification of large sdks: several apks of several large dex files,
+     * which must be verified well within the verification timeout.
+     */
+    @Test
+    public void testVerify_largeApks() throws Exception {
+        final List<String> types = new ArrayList<>();
+        final List<String[]> methods = new ArrayList<>();
+        for (int i = 0; i < 60_000; i++) {
+            types.add("Lcom/android/sdk/generated/package" + (i % 100) + "/Class" + i + ";");
+            methods.add(new String[] {types.get(i), "method" + i});
+        }
+        types.add("Ljava/lang/Runtime;");
+        methods.add(ALLOWED_METHOD);
+        final byte[] dex = buildDex(types, methods);
+        final List<File> apks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            apks.add(buildApk("large" + i + ".apk", /*compress=*/ i % 2 == 0, dex, dex, dex));
+        }
+
+        final long startMs = SystemClock.elapsedRealtime();
+        final List<SdkCodeVerifier.Result> results = mVerifier.verify(apks, TIMEOUT_MS);
+        final long durationMs = SystemClock.elapsedRealtime() - startMs;
+        Log.i(TAG, "Verified " + apks.size() + " apks of 3 dex files of " + dex.length
+                + " bytes in " + durationMs + " ms");
+
+        for (int i = 0; i < results.size(); i++) {
+            assertThat(results.get(i).mCode).isEqualTo(SdkCodeVerifier.RESULT_ALLOWED);
+        }
+        assertThat(durationMs).isLessThan(TIMEOUT_MS);
+    }
+
+    private File buildApk(String name, boolean compress, byte[]... dexFiles) throws Exception {
+        final File apk = mTempDir.newFile(name);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk))) {
+            for (int i = 0; i < dexFiles.length; i++) {
+                final ZipEntry entry =
+                        new ZipEntry(i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex");
+                if (!compress) {
+                    final CRC32 crc = new CRC32();
+                    crc.update(dexFiles[i]);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(dexFiles[i].length);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(dexFiles[i]);
+                out.closeEntry();
+            }
+            out.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            out.closeEntry();
+        }
+        return apk;
+    }
+
+    /** Overwrites the name length of {@code name} in the central directory of {@code apk}. */
+    private static void setCentralDirectoryNameLength(File apk, String name, int nameLength)
+            throws Exception {
+        final ByteBuffer zip = findCentralDirectoryHeader(apk, name);
+        zip.putShort(zip.position() + 28, (short) nameLength);
+        Files.write(apk.toPath(), zip.array());
+    }
+
+    /** Overwrites the uncompressed size of {@code name} in the central directory of {@code apk}. */
+    private static void setCentralDirectorySize(File apk, String name, int size)
+            throws Exception {
+        final ByteBuffer zip = findCentralDirectoryHeader(apk, name);
+        zip.putInt(zip.position() + 24, size);
+        Files.write(apk.toPath(), zip.array());
+    }
+
+    /** Returns {@code apk}, positioned at the central directory header of {@code name}. */
+    private static ByteBuffer findCentralDirectoryHeader(File apk, String name) throws Exception {
+        final ByteBuffer zip = ByteBuffer.wrap(Files.readAllBytes(apk.toPath()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        for (int offset = 0; offset + 46 + nameBytes.length <= zip.limit(); offset++) {
+            if (zip.getInt(offset) == 0x02014b50 && zip.getShort(offset + 28) == nameBytes.length
+                    && Arrays.equals(nameBytes, Arrays.copyOfRange(
+                            zip.array(), offset + 46, offset + 46 + nameBytes.length))) {
+                zip.position(offset);
+                return zip;
+            }
+        }
+        throw new AssertionError(name + " not found in " + apk);
+    }
+
+    /**
+     * Builds a dex file with only the sections the verifier reads: the strings, types and
+     * methods, the latter given as their type and name.
+     */
+    private static byte[] buildDex(List<String> types, List<String[]> methods) {
+        final LinkedHashMap<String, Integer> strings = new LinkedHashMap<>();
+        for (String type : types) {
+            strings.putIfAbsent(type, strings.size());
+        }
+        for (String[] method : methods) {
+            strings.putIfAbsent(method[1], strings.size());
+        }
+        int stringDataSize = 0;
+        for (String string : strings.keySet()) {
+            // Ascii strings of fewer than 128 characters take a single byte of length.
+            stringDataSize += 1 + string.length() + 1;
+        }
+
+        final int stringIdsOffset = 0x70;
+        final int typeIdsOffset = stringIdsOffset + 4 * strings.size();
+        final int methodIdsOffset = typeIdsOffset + 4 * types.size();
+        final int stringDataOffset = methodIdsOffset + 8 * methods.size();
+        final ByteBuffer dex = ByteBuffer.allocate(stringDataOffset + stringDataSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        dex.put("dex\n035\0".getBytes(StandardCharsets.US_ASCII));
+        dex.putInt(0x38, strings.size()).putInt(0x3C, stringIdsOffset);
+        dex.putInt(0x40, types.size()).putInt(0x44, typeIdsOffset);
+        dex.putInt(0x58, methods.size()).putInt(0x5C, methodIdsOffset);
+
+        int index = 0;
+        int offset = stringDataOffset;
+        for (String string : strings.keySet()) {
+            dex.putInt(stringIdsOffset + 4 * index++, offset);
+            dex.put(offset++, (byte) string.length());
+            for (byte b : string.getBytes(StandardCharsets.US_ASCII)) {
+                dex.put(offset++, b);
+            }
+            dex.put(offset++, (byte) 0);
+        }
+        final HashMap<String, Integer> typeIndexes = new HashMap<>();
+        for (int i = 0; i < types.size(); i++) {
+            dex.putInt(typeIdsOffset + 4 * i, strings.get(types.get(i)));
+            typeIndexes.put(types.get(i), i);
+        }
+        for (int i = 0; i < methods.size(); i++) {
+            dex.putShort(methodIdsOffset + 8 * i, typeIndexes.get(methods.get(i)[0]).shortValue());
+            dex.putInt(methodIdsOffset + 8 * i + 4, strings.get(methods.get(i)[1]));
+        }
+        return dex.array();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.sdksandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link SdkDataReconcileQueue}. */
+@RunWith(JUnit4.class)
+public class SdkDataReconcileQueueUnitTest {
+
+    private static final int UID = 10001;
+    private static final long TIMEOUT_MS = 5_000;
+
+    private final LinkedBlockingQueue<String> mReconciles = new LinkedBlockingQueue<>();
+    private HandlerThread mHandlerThread;
+    private SdkDataReconcileQueue mQueue;
+
+    @Before
+    public void setup() {
+        mHandlerThread = new HandlerThread("SdkDataReconcileQueueUnitTest");
+        mHandlerThread.start();
+        mQueue = new SdkDataReconcileQueue(
+                (packageName, uid, forInstrumentation) ->
+                        mReconciles.add(packageName + ":" + forInstrumentation),
+                new Handler(mHandlerThread.getLooper()));
+    }
+
+    @After
+    public void tearDown() {
+        mHandlerThread.quitSafely();
+    }
+
+    @Test
+    public void testEnqueue_pendingRequestsAreCoalesced() throws Exception {
+        mQueue.enqueue("com.android.app", UID, /*forInstrumentation=*/ false);
+        mQueue.enqueue("com.android.app", UID, /*forInstrumentation=*/ true);
+        mQueue.enqueue("com.android.app2", UID, /*forInstrumentation=*/ false);
+        mQueue.enqueue("com.android.app", UID, /*forInstrumentation=*/ false);
+
+        assertThat(Arrays.asList(mReconciles.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS),
+                        mReconciles.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS)))
+                .containsExactly("com.android.app:true", "com.android.app2:false");
+        assertThat(mReconciles.poll(500, TimeUnit.MILLISECONDS)).isNull();
+        assertThat(dump()).contains("depth: 0, max depth: 2, requests: 4, coalesced: 2");
+    }
+
+    @Test
+    public void testRemove_pendingRequestIsDropped() throws Exception {
+        mQueue.enqueue("com.android.app", UID, /*forInstrumentation=*/ false);
+        mQueue.remove("com.android.app", UID);
+        mQueue.enqueue("com.android.app2", UID, /*forInstrumentation=*/ false);
+
+        assertThat(mReconciles.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                .isEqualTo("com.android.app2:false");
+        assertThat(mReconciles.poll(500, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    @Test
+    public void testEnqueue_failedReconcileDoesNotStopTheQueue() throws Exception {
+        final SdkDataReconcileQueue queue = new SdkDataReconcileQueue(
+                (packageName, uid, forInstrumentation) -> {
+                    mReconciles.add(packageName);
+                    if (packageName.equals("com.android.broken")) {
+                        throw new IllegalStateException("Failed to reconcile");
+                    }
+                },
+                new Handler(mHandlerThread.getLooper()));
+        queue.enqueue("com.android.broken", UID, /*forInstrumentation=*/ false);
+        queue.enqueue("com.android.app", UID, /*forInstrumentation=*/ false);
+
+        assertThat(Arrays.asList(mReconciles.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS),
+                        mReconciles.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS)))
+                .containsExactly("com.android.broken", "com.android.app");
+
+        // The user is scheduled again for later requests.
+        queue.enqueue("com.android.app2", UID, /*forInstrumentation=*/ false);
+        assertThat(mReconciles.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                .isEqualTo("com.android.app2");
+    }
+
+    private String dump() {
+        final StringWriter stringWriter = new StringWriter();
+        mQueue.dump(new PrintWriter(stringWriter));
+        return stringWriter.toString();
+    }
+}
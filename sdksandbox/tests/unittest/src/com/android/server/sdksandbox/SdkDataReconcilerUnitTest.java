@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.sdksandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.server.pm.PackageManagerLocal;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Unit tests for {@link SdkDataReconciler}. */
+@RunWith(JUnit4.class)
+public class SdkDataReconcilerUnitTest {
+
+    private static final String PACKAGE = "com.android.app";
+    private static final String SDK = "com.android.sdk";
+    private static final String SDK_DIR = SDK + "@suffix";
+    private static final int FLAGS =
+            PackageManagerLocal.FLAG_STORAGE_CE | PackageManagerLocal.FLAG_STORAGE_DE;
+
+    @Rule
+    public final TemporaryFolder mDataDir = new TemporaryFolder();
+
+    private PackageManagerLocal mPackageManagerLocal;
+    private SdkDataReconciler mReconciler;
+
+    @Before
+    public void setup() {
+        mPackageManagerLocal = Mockito.mock(PackageManagerLocal.class);
+        mReconciler = new SdkDataReconciler(mPackageManagerLocal, mDataDir.getRoot());
+    }
+
+    @Test
+    public void testReconcile_upToDate_doesNotCallInstalld() throws Exception {
+        createSubDirs(SdkDataReconciler.SHARED_DIR_NAME, SDK_DIR);
+
+        mReconciler.reconcile(PACKAGE, 0, 10001, Collections.singletonList(SDK), FLAGS);
+
+        Mockito.verifyZeroInteractions(mPackageManagerLocal);
+    }
+
+    @Test
+    public void testReconcile_newSdk_keepsDirectoryOfExistingSdk() throws Exception {
+        createSubDirs(SdkDataReconciler.SHARED_DIR_NAME, SDK_DIR);
+
+        mReconciler.reconcile(PACKAGE, 0, 10001, Arrays.asList(SDK, "com.android.sdk2"), FLAGS);
+
+        final List<String> subDirNames = captureSubDirNames();
+        assertThat(subDirNames).hasSize(3);
+        assertThat(subDirNames).containsAtLeast(SdkDataReconciler.SHARED_DIR_NAME, SDK_DIR);
+        assertThat(subDirNames.get(2)).startsWith("com.android.sdk2@");
+    }
+
+    @Test
+    public void testComputeDiff_unusedSdk_isDeleted() {
+        createSubDirs(SdkDataReconciler.SHARED_DIR_NAME, SDK_DIR);
+
+        final SdkDataReconciler.Diff diff =
+                mReconciler.computeDiff(PACKAGE, 0, Collections.emptyList(), true);
+
+        assertThat(diff.mSubDirNames).containsExactly(SdkDataReconciler.SHARED_DIR_NAME);
+        assertThat(diff.mToCreate).isEmpty();
+        assertThat(diff.mToDelete).containsExactly(SDK_DIR);
+    }
+
+    @Test
+    public void testReconcile_isIdempotent() throws Exception {
+        // Let installd create what it is asked for.
+        Mockito.doAnswer(invocation -> {
+            final List<String> subDirNames = invocation.getArgument(2);
+            createSubDirs(subDirNames.toArray(new String[0]));
+            return null;
+        }).when(mPackageManagerLocal).reconcileSdkData(ArgumentMatchers.any(),
+                ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.anyInt(),
+                ArgumentMatchers.anyInt(), ArgumentMatchers.anyInt(), ArgumentMatchers.any(),
+                ArgumentMatchers.anyInt());
+
+        for (int i = 0; i < 3; i++) {
+            mReconciler.reconcile(PACKAGE, 0, 10001, Collections.singletonList(SDK), FLAGS);
+        }
+
+        captureSubDirNames();
+    }
+
+    private void createSubDirs(String... names) {
+        for (String storage : new String[] {"misc_ce", "misc_de"}) {
+            for (String name : names) {
+                new File(mDataDir.getRoot(), storage + "/0/sdksandbox/" + PACKAGE + "/" + name)
+                        .mkdirs();
+            }
+        }
+    }
+
+    /** Returns the sub directories of the single call into installd. */
+    private List<String> captureSubDirNames() throws Exception {
+        @SuppressWarnings("unchecked")
+        final ArgumentCaptor<List<String>> subDirNames = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(mPackageManagerLocal).reconcileSdkData(ArgumentMatchers.isNull(),
+                ArgumentMatchers.eq(PACKAGE), subDirNames.capture(), ArgumentMatchers.eq(0),
+                ArgumentMatchers.eq(10001), ArgumentMatchers.eq(-1),
+                ArgumentMatchers.eq("default"), ArgumentMatchers.eq(FLAGS));
+        return subDirNames.getValue();
+    }
+}
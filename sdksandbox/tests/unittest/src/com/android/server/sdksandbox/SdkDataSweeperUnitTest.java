@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.sdksandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+
+import com.android.server.pm.PackageManagerLocal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Unit tests for {@link SdkDataSweeper}. */
+@RunWith(JUnit4.class)
+public class SdkDataSweeperUnitTest {
+
+    private static final int ALL_STORAGES =
+            PackageManagerLocal.FLAG_STORAGE_CE | PackageManagerLocal.FLAG_STORAGE_DE;
+    private static final SdkDataSweeper.App APP = new SdkDataSweeper.App(
+            "com.android.app", 10001, Collections.singletonList("com.android.sdk"), 1);
+    private static final SdkDataSweeper.App APP2 = new SdkDataSweeper.App(
+            "com.android.app2", 10002, Collections.singletonList("com.android.sdk"), 1);
+
+    @Rule
+    public final TemporaryFolder mDataDir = new TemporaryFolder();
+
+    private final List<String> mReconciled = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean mReconcileSucceeds = true;
+
+    @Test
+    public void testSweep_unchangedAppsAreSkippedAfterReboot() {
+        assertThat(newSweeper().sweep(0, ALL_STORAGES, Arrays.asList(APP, APP2))).isEqualTo(2);
+
+        // A new sweeper reads what the previous one persisted.
+        final SdkDataSweeper.App updatedApp = new SdkDataSweeper.App(
+                APP.mPackageName, APP.mUid, APP.mSdkNames, 2);
+        assertThat(newSweeper().sweep(0, ALL_STORAGES, Arrays.asList(updatedApp, APP2)))
+                .isEqualTo(1);
+
+        assertThat(mReconciled).containsExactly(
+                APP.mPackageName, APP2.mPackageName, APP.mPackageName);
+    }
+
+    @Test
+    public void testSweep_failedAppIsRetried() {
+        mReconcileSucceeds = false;
+        assertThat(newSweeper().sweep(0, ALL_STORAGES, Collections.singletonList(APP)))
+                .isEqualTo(1);
+
+        mReconcileSucceeds = true;
+        assertThat(newSweeper().sweep(0, ALL_STORAGES, Collections.singletonList(APP)))
+                .isEqualTo(1);
+        assertThat(newSweeper().sweep(0, ALL_STORAGES, Collections.singletonList(APP)))
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void testSweep_usersAreSweptSeparately() {
+        final SdkDataSweeper sweeper = newSweeper();
+        sweeper.sweep(0, ALL_STORAGES, Collections.singletonList(APP));
+
+        assertThat(sweeper.sweep(10, ALL_STORAGES, Collections.singletonList(APP))).isEqualTo(1);
+    }
+
+    @Test
+    public void testSweep_appReconciledBeforeUnlockIsReconciledAgainOnceUnlocked() {
+        assertThat(newSweeper().sweep(
+                0, PackageManagerLocal.FLAG_STORAGE_DE, Collections.singletonList(APP)))
+                .isEqualTo(1);
+
+        assertThat(newSweeper().sweep(0, ALL_STORAGES, Collections.singletonList(APP)))
+                .isEqualTo(1);
+        assertThat(newSweeper().sweep(0, ALL_STORAGES, Collections.singletonList(APP)))
+                .isEqualTo(0);
+    }
+
+    private SdkDataSweeper newSweeper() {
+        return new SdkDataSweeper(Mockito.mock(Context.class),
+                (packageName, uid, sdkNames, storageFlags) -> {
+                    mReconciled.add(packageName);
+                    return mReconcileSucceeds;
+                },
+                mDataDir.getRoot());
+    }
+}
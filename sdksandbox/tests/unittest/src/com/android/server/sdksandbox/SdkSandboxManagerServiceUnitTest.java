@@ -23,22 +23,29 @@ import static org.junit.Assert.assertThrows;
 import android.Manifest;
 import android.app.ActivityManager;
 import android.app.sdksandbox.IRemoteSdkCallback;
+import android.app.sdksandbox.ISdkChannel;
 import android.app.sdksandbox.SandboxedSdkContext;
 import android.app.sdksandbox.SdkSandboxManager;
+import android.app.sdksandbox.SdkSandboxTrace;
 import android.app.sdksandbox.testutils.FakeRemoteSdkCallback;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
+import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 
 import androidx.annotation.Nullable;
@@ -64,7 +71,12 @@ import java.io.FileDescriptor;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link SdkSandboxManagerService}.
@@ -76,6 +88,7 @@ public class SdkSandboxManagerServiceUnitTest {
     private FakeSdkSandboxService mSdkSandboxService;
     private FakeSdkSandboxProvider mProvider;
     private MockitoSession mStaticMockSession = null;
+    private Context mSpyContext;
 
     private static final String SDK_PROVIDER_PACKAGE = "com.android.codeprovider";
     private static final String SDK_PROVIDER_RESOURCES_PACKAGE =
@@ -86,6 +99,8 @@ public class SdkSandboxManagerServiceUnitTest {
     public void setup() {
         mStaticMockSession = ExtendedMockito.mockitoSession()
             .mockStatic(LocalManagerRegistry.class)
+            .spyStatic(SdkSandboxSettings.class)
+            .spyStatic(Binder.class)
             .startMocking();
 
         Context context = InstrumentationRegistry.getInstrumentation().getContext();
@@ -106,6 +121,7 @@ public class SdkSandboxManagerServiceUnitTest {
         ExtendedMockito.doReturn(Mockito.mock(PackageManagerLocal.class))
             .when(() -> LocalManagerRegistry.getManager(PackageManagerLocal.class));
 
+        mSpyContext = spyContext;
         mService = new SdkSandboxManagerService(spyContext, mProvider);
     }
 
@@ -216,6 +232,68 @@ public class SdkSandboxManagerServiceUnitTest {
         }
     }
 
+    @Test
+    public void testLoadSdk_concurrentLoadsShareSandboxBinding() throws Exception {
+        mProvider.setDeferConnection(true);
+
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        FakeRemoteSdkCallback callback2 = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, "does.not.exist", new Bundle(), callback2);
+        assertThat(callback2.getLoadSdkErrorCode())
+                .isEqualTo(SdkSandboxManager.LOAD_SDK_SDK_NOT_FOUND);
+
+        // Both loads were issued while the sandbox was still being bound
+        assertThat(mProvider.getBindServiceCount()).isEqualTo(1);
+
+        mProvider.connectDeferred();
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+        assertThat(mProvider.getBindServiceCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testLoadSdk_reusesResolvedSdkProviderInfo() throws Exception {
+        // Load code, but make it fail
+        {
+            FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+            mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+            mSdkSandboxService.sendLoadCodeError();
+            assertThat(callback.isLoadSdkSuccessful()).isFalse();
+        }
+
+        // Loading again is served without querying the package manager
+        {
+            FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+            mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+            mSdkSandboxService.sendLoadCodeSuccessful();
+            assertThat(callback.isLoadSdkSuccessful()).isTrue();
+        }
+
+        assertThat(dump()).contains("size: 1, hits: 1, misses: 1");
+    }
+
+    @Test
+    public void testLoadSdks_reportsResultPerSdk() throws Exception {
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        FakeRemoteSdkCallback callback2 = new FakeRemoteSdkCallback();
+        mService.loadSdks(TEST_PACKAGE, Arrays.asList(SDK_PROVIDER_PACKAGE, "does.not.exist"),
+                new Bundle(), Arrays.asList(callback, callback2));
+
+        assertThat(callback2.getLoadSdkErrorCode())
+                .isEqualTo(SdkSandboxManager.LOAD_SDK_SDK_NOT_FOUND);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+    }
+
+    @Test
+    public void testLoadSdks_mismatchedCallbacks() throws Exception {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> mService.loadSdks(TEST_PACKAGE, Arrays.asList(SDK_PROVIDER_PACKAGE),
+                        new Bundle(), Arrays.asList()));
+    }
+
     @Test
     public void testRequestSurfacePackageSdkNotLoaded() {
         // Trying to request package without using proper sdkToken should fail
@@ -245,6 +323,143 @@ public class SdkSandboxManagerServiceUnitTest {
         assertThat(callback.isRequestSurfacePackageSuccessful()).isTrue();
     }
 
+    @Test
+    public void testReleaseSurfacePackage() throws Exception {
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+
+        mService.releaseSurfacePackage(callback.getSdkToken(), 42);
+        assertThat(mSdkSandboxService.mReleasedSurfacePackageId).isEqualTo(42);
+    }
+
+    @Test
+    public void testReleaseSurfacePackageFromOtherUid() throws Exception {
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+
+        ExtendedMockito.doReturn(Process.myUid() + 1).when(Binder::getCallingUid);
+        SecurityException thrown = assertThrows(
+                SecurityException.class,
+                () -> mService.releaseSurfacePackage(callback.getSdkToken(), 42));
+        assertThat(thrown).hasMessageThat().contains("does not belong to uid");
+    }
+
+    @Test
+    public void testReleaseSurfacePackageSdkNotLoaded() {
+        SecurityException thrown = assertThrows(
+                SecurityException.class,
+                () -> mService.releaseSurfacePackage(new Binder(), 42));
+        assertThat(thrown).hasMessageThat().contains("sdkToken is invalid");
+    }
+
+    @Test
+    public void testSendData() throws Exception {
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+
+        Bundle data = new Bundle();
+        data.putString("key", "value");
+        mService.sendData(callback.getSdkToken(), data);
+        assertThat(mSdkSandboxService.mReceivedData.getString("key")).isEqualTo("value");
+    }
+
+    @Test
+    public void testSendDataSdkNotLoaded() {
+        SecurityException thrown = assertThrows(
+                SecurityException.class,
+                () -> mService.sendData(new Binder(), new Bundle()));
+        assertThat(thrown).hasMessageThat().contains("sdkToken is invalid");
+    }
+
+    @Test
+    public void testSendDataFromOtherUid() throws Exception {
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+
+        ExtendedMockito.doReturn(Process.myUid() + 1).when(Binder::getCallingUid);
+        SecurityException thrown = assertThrows(
+                SecurityException.class,
+                () -> mService.sendData(callback.getSdkToken(), new Bundle()));
+        assertThat(thrown).hasMessageThat().contains("does not belong to uid");
+        assertThat(mSdkSandboxService.mReceivedData).isNull();
+    }
+
+    @Test
+    public void testOpenChannel() throws Exception {
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+
+        ISdkChannel appEndpoint = Mockito.mock(ISdkChannel.class);
+        IBinder appEndpointBinder = new Binder();
+        Mockito.doReturn(appEndpointBinder).when(appEndpoint).asBinder();
+        mService.openChannel(callback.getSdkToken(), appEndpoint);
+        assertThat(mSdkSandboxService.mChannelAppEndpoint).isSameInstanceAs(appEndpointBinder);
+    }
+
+    @Test
+    public void testOpenChannelFromOtherUid() throws Exception {
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+
+        ExtendedMockito.doReturn(Process.myUid() + 1).when(Binder::getCallingUid);
+        SecurityException thrown = assertThrows(
+                SecurityException.class,
+                () -> mService.openChannel(callback.getSdkToken(),
+                        Mockito.mock(ISdkChannel.class)));
+        assertThat(thrown).hasMessageThat().contains("does not belong to uid");
+        assertThat(mSdkSandboxService.mChannelAppEndpoint).isNull();
+    }
+
+    @Test
+    public void testOpenChannelSdkNotLoaded() {
+        SecurityException thrown = assertThrows(
+                SecurityException.class,
+                () -> mService.openChannel(new Binder(),
+                        Mockito.mock(ISdkChannel.class)));
+        assertThat(thrown).hasMessageThat().contains("sdkToken is invalid");
+    }
+
+    @Test
+    public void testRequestSurfacePackage_doesNotBlockOtherCalls() throws Exception {
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+        IBinder sdkToken = callback.getSdkToken();
+
+        // The sdk is slow to handle the request, which must not hold up the rest of the service.
+        CountDownLatch gate = new CountDownLatch(1);
+        mSdkSandboxService.mSurfacePackageRequestGate = gate;
+        Thread requestThread = new Thread(
+                () -> mService.requestSurfacePackage(sdkToken, new Binder(), 0, new Bundle()));
+        requestThread.start();
+        try {
+            FakeRemoteSdkCallback otherCallback = new FakeRemoteSdkCallback();
+            mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_RESOURCES_PACKAGE, new Bundle(),
+                    otherCallback);
+            mSdkSandboxService.sendLoadCodeSuccessful();
+            assertThat(otherCallback.isLoadSdkSuccessful()).isTrue();
+            mService.sendData(sdkToken, new Bundle());
+            assertThat(mSdkSandboxService.mReceivedData).isNotNull();
+            assertThat(dump()).contains("mAppAndRemoteSdkLinks size: 2");
+        } finally {
+            gate.countDown();
+            requestThread.join();
+        }
+    }
+
     @Test
     public void testRequestSurfacePackageFailedAfterAppDied() throws Exception {
         disableKillUid();
@@ -274,6 +489,253 @@ public class SdkSandboxManagerServiceUnitTest {
         assertThat(thrown).hasMessageThat().contains("sdkToken is invalid");
     }
 
+    @Test
+    public void testAppDeath_destroysAllSdkTokensOfApp() throws Exception {
+        disableKillUid();
+
+        FakeRemoteSdkCallback callback = Mockito.spy(new FakeRemoteSdkCallback());
+        Mockito.doReturn(Mockito.mock(Binder.class)).when(callback).asBinder();
+        ArgumentCaptor<IBinder.DeathRecipient> deathRecipient = ArgumentCaptor
+                .forClass(IBinder.DeathRecipient.class);
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+        Mockito.verify(callback.asBinder())
+                .linkToDeath(deathRecipient.capture(), ArgumentMatchers.eq(0));
+
+        FakeRemoteSdkCallback otherCallback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_RESOURCES_PACKAGE, new Bundle(),
+                otherCallback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(otherCallback.isLoadSdkSuccessful()).isTrue();
+
+        // App Died
+        deathRecipient.getValue().binderDied();
+
+        SecurityException thrown = assertThrows(
+                SecurityException.class,
+                () -> mService.requestSurfacePackage(otherCallback.getSdkToken(), new Binder(),
+                        0, new Bundle()));
+        assertThat(thrown).hasMessageThat().contains("sdkToken is invalid");
+        final String dump = dump();
+        assertThat(dump).contains("mSdkTokens is empty");
+        assertThat(dump).contains("mAppAndRemoteSdkLinks size: 0");
+        assertThat(dump).contains("mAppStates size: 0");
+        assertThat(dump).contains("mSdkUidToAppUids size: 0");
+    }
+
+    @Test
+    public void testSdkUpdate_hotSwapReloadsSdkWithoutKillingApp() throws Exception {
+        disableKillUid();
+        ExtendedMockito.doReturn(true).when(SdkSandboxSettings::isSdkHotSwapEnabled);
+
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+        final ApplicationInfo sdkInfo = mSdkSandboxService.mLastLoadedApplicationInfo;
+
+        // The old version of the sdk is unloaded when the update starts...
+        sendPackageBroadcast(Intent.ACTION_PACKAGE_REMOVED, sdkInfo, /*replacing=*/ true);
+        assertThat(mSdkSandboxService.mUnloadedSdkTokens.poll(5, TimeUnit.SECONDS))
+                .isEqualTo(callback.getSdkToken());
+        // ...and the new one loaded with the same token once it is installed.
+        sendPackageBroadcast(Intent.ACTION_PACKAGE_ADDED, sdkInfo, /*replacing=*/ true);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        callback.waitForSdkReloaded();
+
+        Mockito.verify(mAmSpy, Mockito.never()).killUid(Mockito.eq(Process.myUid()),
+                Mockito.anyString());
+        mService.requestSurfacePackage(callback.getSdkToken(), new Binder(), 0, new Bundle());
+        mSdkSandboxService.sendSurfacePackageReady();
+        assertThat(callback.isRequestSurfacePackageSuccessful()).isTrue();
+    }
+
+    @Test
+    public void testSandboxCrash_restartsSandboxAndReloadsSdks() throws Exception {
+        ExtendedMockito.doReturn(0L).when(SdkSandboxSettings::getRestartBackoffBaseMs);
+
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+
+        mProvider.crashSandbox(Process.myUid());
+
+        // The sandbox is bound again and the sdk loaded into it with the same token.
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        callback.waitForSdkReloaded();
+        assertThat(mProvider.getBindServiceCount()).isEqualTo(2);
+        mService.requestSurfacePackage(callback.getSdkToken(), new Binder(), 0, new Bundle());
+        mSdkSandboxService.sendSurfacePackageReady();
+        assertThat(callback.isRequestSurfacePackageSuccessful()).isTrue();
+        assertThat(dump()).contains("sandbox crashes: 1, crash loops given up on: 0");
+    }
+
+    @Test
+    public void testSandboxCrashLoop_givesUpAndUnloadsSdks() throws Exception {
+        ExtendedMockito.doReturn(0).when(SdkSandboxSettings::getMaxRestarts);
+
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        final IBinder sdkToken = callback.getSdkToken();
+
+        mProvider.crashSandbox(Process.myUid());
+
+        SecurityException thrown = assertThrows(
+                SecurityException.class,
+                () -> mService.requestSurfacePackage(sdkToken, new Binder(), 0, new Bundle()));
+        assertThat(thrown).hasMessageThat().contains("sdkToken is invalid");
+        assertThat(mProvider.getBindServiceCount()).isEqualTo(1);
+        assertThat(dump()).contains("sandbox crashes: 1, crash loops given up on: 1");
+    }
+
+    @Test
+    public void testIdleSandbox_releasedInBackgroundAndReloadedInForeground() throws Exception {
+        disableKillUid();
+        ExtendedMockito.doReturn(true).when(
+                () -> SdkSandboxSettings.isIdleReleaseEnabled(ArgumentMatchers.anyBoolean()));
+        ExtendedMockito.doReturn(0L).when(SdkSandboxSettings::getIdleReleaseTimeoutMs);
+
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+
+        mService.onUidImportance(Process.myUid(),
+                ActivityManager.RunningAppProcessInfo.IMPORTANCE_CACHED);
+        Mockito.verify(mAmSpy, Mockito.timeout(5000)).killUid(
+                Mockito.eq(Process.toSdkSandboxUid(Process.myUid())), Mockito.anyString());
+        assertThat(mProvider.getBoundServiceForApp(Process.myUid())).isNull();
+
+        mService.onUidImportance(Process.myUid(),
+                ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        callback.waitForSdkReloaded();
+        assertThat(mProvider.getBindServiceCount()).isEqualTo(2);
+        assertThat(dump()).contains("idle sandboxes released: 1");
+    }
+
+    @Test
+    public void testSdkResourceUsage() throws Exception {
+        Bundle params = new Bundle();
+        params.putString("key", "value");
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, params, callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+
+        // Quotas are passed along with the params of the app, which are left untouched.
+        final Bundle loadParams = mSdkSandboxService.mLastLoadParams;
+        assertThat(loadParams.getString("key")).isEqualTo("value");
+        assertThat(loadParams.getLong(ISdkSandboxToSdkSandboxManagerCallback
+                .QUOTA_CALLBACK_TIME_MS_PER_MINUTE_KEY))
+                .isEqualTo(SdkSandboxSettings.getSdkCallbackTimeQuotaMs());
+        assertThat(params.containsKey(ISdkSandboxToSdkSandboxManagerCallback
+                .QUOTA_SURFACE_PACKAGES_KEY)).isFalse();
+
+        // Dump asks the sdks for their usage, and prints what they report.
+        final Bundle usage = new Bundle();
+        usage.putLong(ISdkSandboxToSdkSandboxManagerCallback.USAGE_CALLBACK_TIME_MS_KEY, 42);
+        usage.putLong(ISdkSandboxToSdkSandboxManagerCallback.USAGE_THROTTLED_WINDOWS_KEY, 1);
+        mSdkSandboxService.mResourceUsage = usage;
+        assertThat(dump()).contains(SDK_PROVIDER_PACKAGE + " of " + Process.myUid()
+                + ": callbacks: 0, time in callbacks: 42 ms");
+        assertThat(mSdkSandboxService.mResourceUsageRequests).isEqualTo(1);
+    }
+
+    @Test
+    public void testDumpSdkResourceUsage_sdkDoesNotReport() throws Exception {
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+        mSdkSandboxService.mResourceUsage = null;
+
+        // Dump does not wait on the sdk for long, and has no usage to print for it.
+        final long startMs = SystemClock.elapsedRealtime();
+        assertThat(dump()).doesNotContain(SDK_PROVIDER_PACKAGE + " of " + Process.myUid());
+        assertThat(SystemClock.elapsedRealtime() - startMs).isLessThan(5_000L);
+        assertThat(mSdkSandboxService.mResourceUsageRequests).isEqualTo(1);
+    }
+
+    @Test
+    public void testLoadSdk_sampledRequestCarriesRequestId() throws Exception {
+        ExtendedMockito.doReturn(1).when(SdkSandboxSettings::getTraceSampleRate);
+
+        Bundle params = new Bundle();
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, params, callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+
+        // The id is passed along to the sandbox, the params of the app are left untouched.
+        assertThat(SdkSandboxTrace.getRequestId(mSdkSandboxService.mLastLoadParams))
+                .isNotEqualTo(SdkSandboxTrace.NO_REQUEST_ID);
+        assertThat(params.containsKey(SdkSandboxTrace.REQUEST_ID_KEY)).isFalse();
+
+        final String dump = dump();
+        assertThat(dump).contains("enforce calling package: count: 1");
+        assertThat(dump).contains("resolve sdks: count: 1");
+        assertThat(dump).contains("load in sandbox: count: 1");
+    }
+
+    @Test
+    public void testRequestSurfacePackage_sampledRequestWithNullParams() throws Exception {
+        ExtendedMockito.doReturn(1).when(SdkSandboxSettings::getTraceSampleRate);
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+
+        mService.requestSurfacePackage(callback.getSdkToken(), new Binder(), 0, null);
+        mSdkSandboxService.sendSurfacePackageReady();
+
+        assertThat(callback.isRequestSurfacePackageSuccessful()).isTrue();
+        assertThat(SdkSandboxTrace.getRequestId(mSdkSandboxService.mLastSurfacePackageParams))
+                .isNotEqualTo(SdkSandboxTrace.NO_REQUEST_ID);
+    }
+
+    @Test
+    public void testDumpLatencyHistograms() throws Exception {
+        FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
+        mService.loadSdk(TEST_PACKAGE, SDK_PROVIDER_PACKAGE, new Bundle(), callback);
+        mSdkSandboxService.sendLoadCodeSuccessful();
+        assertThat(callback.isLoadSdkSuccessful()).isTrue();
+        mService.requestSurfacePackage(callback.getSdkToken(), new Binder(), 0, new Bundle());
+        mSdkSandboxService.sendSurfacePackageReady();
+        assertThat(callback.isRequestSurfacePackageSuccessful()).isTrue();
+
+        final String dump = dump();
+        assertThat(dump).contains("loadSdk: count: 1");
+        assertThat(dump).contains("bindSandbox: count: 1");
+        assertThat(dump).contains("surfacePackage: count: 1");
+
+        // Histograms are dumped one per line for tools, then cleared.
+        final String histograms = dump("--histograms", "--reset");
+        assertThat(histograms).startsWith("loadSdk,1,");
+        assertThat(histograms).doesNotContain("mSdkTokenManager");
+        assertThat(dump()).contains("loadSdk: count: 0");
+    }
+
+    private void sendPackageBroadcast(String action, ApplicationInfo info, boolean replacing) {
+        final ArgumentCaptor<BroadcastReceiver> receivers =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        final ArgumentCaptor<IntentFilter> filters = ArgumentCaptor.forClass(IntentFilter.class);
+        Mockito.verify(mSpyContext, Mockito.atLeastOnce()).registerReceiver(receivers.capture(),
+                filters.capture(), Mockito.isNull(), Mockito.any(Handler.class));
+        final Intent intent = new Intent(action)
+                .setData(Uri.fromParts("package", info.packageName, null))
+                .putExtra(Intent.EXTRA_UID, info.uid)
+                .putExtra(Intent.EXTRA_REPLACING, replacing);
+        for (int i = 0; i < filters.getAllValues().size(); i++) {
+            if (filters.getAllValues().get(i).hasAction(action)) {
+                receivers.getAllValues().get(i).onReceive(mSpyContext, intent);
+            }
+        }
+    }
+
     @Test
     public void testSurfacePackageError() throws Exception {
         FakeRemoteSdkCallback callback = new FakeRemoteSdkCallback();
@@ -457,6 +919,15 @@ public class SdkSandboxManagerServiceUnitTest {
                 () -> mSdkSandboxManagerLocal.enforceAllowedToStartOrBindService(disallowedIntent));
     }
 
+    private String dump(String... args) {
+        InstrumentationRegistry.getInstrumentation().getUiAutomation().adoptShellPermissionIdentity(
+                Manifest.permission.ACCESS_SHARED_LIBRARIES, Manifest.permission.INSTALL_PACKAGES,
+                Manifest.permission.DUMP);
+        final StringWriter stringWriter = new StringWriter();
+        mService.dump(new FileDescriptor(), new PrintWriter(stringWriter), args);
+        return stringWriter.toString();
+    }
+
     /**
      * Fake service provider that returns local instance of {@link SdkSandboxServiceProvider}
      */
@@ -464,6 +935,11 @@ public class SdkSandboxManagerServiceUnitTest {
         private final ISdkSandboxService mSdkSandboxService;
         private final ArrayMap<Integer, ISdkSandboxService> mService = new ArrayMap<>();
 
+        private int mBindServiceCount = 0;
+        private boolean mDeferConnection = false;
+        @Nullable private ServiceConnection mDeferredConnection = null;
+        private final ArrayMap<Integer, ServiceConnection> mConnections = new ArrayMap<>();
+
         FakeSdkSandboxProvider(ISdkSandboxService service) {
             mSdkSandboxService = service;
         }
@@ -474,6 +950,12 @@ public class SdkSandboxManagerServiceUnitTest {
             if (mService.containsKey(callingUid)) {
                 return;
             }
+            mBindServiceCount++;
+            mConnections.put(callingUid, serviceConnection);
+            if (mDeferConnection) {
+                mDeferredConnection = serviceConnection;
+                return;
+            }
             mService.put(callingUid, mSdkSandboxService);
             serviceConnection.onServiceConnected(null, mSdkSandboxService.asBinder());
         }
@@ -493,13 +975,49 @@ public class SdkSandboxManagerServiceUnitTest {
         public void setBoundServiceForApp(int callingUid, @Nullable ISdkSandboxService service) {
             mService.put(callingUid, service);
         }
+
+        /** Holds back {@code onServiceConnected} until {@link #connectDeferred()} is called. */
+        void setDeferConnection(boolean deferConnection) {
+            mDeferConnection = deferConnection;
+        }
+
+        void connectDeferred() {
+            mDeferConnection = false;
+            Objects.requireNonNull(mDeferredConnection)
+                    .onServiceConnected(null, mSdkSandboxService.asBinder());
+            mDeferredConnection = null;
+        }
+
+        int getBindServiceCount() {
+            return mBindServiceCount;
+        }
+
+        /** Reports the sandbox of {@code callingUid} as died, as if its process crashed. */
+        void crashSandbox(int callingUid) {
+            Objects.requireNonNull(mConnections.get(callingUid)).onServiceDisconnected(null);
+        }
     }
 
     public static class FakeSdkSandboxService extends ISdkSandboxService.Stub {
         private ISdkSandboxToSdkSandboxManagerCallback mSdkSandboxToManagerCallback;
         private final ISdkSandboxManagerToSdkSandboxCallback mManagerToSdkCallback;
+        // Loads are dispatched to the sandbox asynchronously, tests wait for them to arrive.
+        private final LinkedBlockingQueue<ISdkSandboxToSdkSandboxManagerCallback> mLoadSdkRequests =
+                new LinkedBlockingQueue<>();
 
         boolean mSurfacePackageRequested = false;
+        int mReleasedSurfacePackageId = 0;
+        Bundle mReceivedData = null;
+        IBinder mChannelAppEndpoint = null;
+        volatile ApplicationInfo mLastLoadedApplicationInfo = null;
+        volatile Bundle mLastLoadParams = null;
+        volatile Bundle mLastSurfacePackageParams = null;
+        int mResourceUsageRequests = 0;
+        // Resource usage reported when asked for, if any.
+        volatile Bundle mResourceUsage = new Bundle();
+        final LinkedBlockingQueue<IBinder> mUnloadedSdkTokens = new LinkedBlockingQueue<>();
+        // When set, surface package requests block until it is counted down.
+        volatile CountDownLatch mSurfacePackageRequestGate = null;
 
         FakeSdkSandboxService() {
             mManagerToSdkCallback = new FakeManagerToSdkCallback();
@@ -508,34 +1026,103 @@ public class SdkSandboxManagerServiceUnitTest {
         @Override
         public void loadSdk(IBinder codeToken, ApplicationInfo info, String codeProviderClassName,
                 Bundle params, ISdkSandboxToSdkSandboxManagerCallback callback) {
-            mSdkSandboxToManagerCallback = callback;
+            mLastLoadedApplicationInfo = info;
+            mLastLoadParams = params;
+            mLoadSdkRequests.add(callback);
+        }
+
+        @Override
+        public void loadSdks(List<IBinder> codeTokens, List<ApplicationInfo> infos,
+                List<String> codeProviderClassNames, Bundle params,
+                List<ISdkSandboxToSdkSandboxManagerCallback> callbacks) {
+            mLoadSdkRequests.addAll(callbacks);
+        }
+
+        @Override
+        public void unloadSdk(IBinder codeToken) {
+            mUnloadedSdkTokens.add(codeToken);
         }
 
         void sendLoadCodeSuccessful() throws RemoteException {
-            mSdkSandboxToManagerCallback.onLoadSdkSuccess(new Bundle(), mManagerToSdkCallback);
+            awaitNextLoadSdk().onLoadSdkSuccess(new Bundle(), mManagerToSdkCallback);
         }
 
         void sendLoadCodeError() throws RemoteException {
-            mSdkSandboxToManagerCallback.onLoadSdkError(
+            awaitNextLoadSdk().onLoadSdkError(
                     SdkSandboxManager.LOAD_SDK_INTERNAL_ERROR, "Internal error");
         }
 
+        private ISdkSandboxToSdkSandboxManagerCallback awaitNextLoadSdk() {
+            try {
+                final ISdkSandboxToSdkSandboxManagerCallback callback =
+                        mLoadSdkRequests.poll(5, TimeUnit.SECONDS);
+                if (callback == null) {
+                    throw new IllegalStateException("loadSdk not called within 5 seconds");
+                }
+                mSdkSandboxToManagerCallback = callback;
+                return callback;
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(
+                        "Interrupted while waiting on loadSdk: " + e.getMessage());
+            }
+        }
+
+        private ISdkSandboxToSdkSandboxManagerCallback getLoadSdkCallback() {
+            if (mSdkSandboxToManagerCallback == null) {
+                return awaitNextLoadSdk();
+            }
+            return mSdkSandboxToManagerCallback;
+        }
+
         void sendSurfacePackageReady() throws RemoteException {
             if (mSurfacePackageRequested) {
-                mSdkSandboxToManagerCallback.onSurfacePackageReady(
+                getLoadSdkCallback().onSurfacePackageReady(
                         /*hostToken=*/null, /*displayId=*/0, /*params=*/null);
             }
         }
 
         void sendSurfacePackageError(int errorCode, String errorMsg) throws RemoteException {
-            mSdkSandboxToManagerCallback.onSurfacePackageError(errorCode, errorMsg);
+            getLoadSdkCallback().onSurfacePackageError(errorCode, errorMsg);
         }
 
         private class FakeManagerToSdkCallback extends ISdkSandboxManagerToSdkSandboxCallback.Stub {
             @Override
             public void onSurfacePackageRequested(IBinder hostToken,
                     int displayId, Bundle extraParams) {
+                mLastSurfacePackageParams = extraParams;
                 mSurfacePackageRequested = true;
+                final CountDownLatch gate = mSurfacePackageRequestGate;
+                if (gate != null) {
+                    try {
+                        gate.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+
+            @Override
+            public void onSurfacePackageReleased(int surfacePackageId) {
+                mReleasedSurfacePackageId = surfacePackageId;
+            }
+
+            @Override
+            public void onDataReceived(Bundle data) {
+                mReceivedData = data;
+            }
+
+            @Override
+            public void onChannelRequested(IBinder appEndpoint) {
+                mChannelAppEndpoint = appEndpoint;
+            }
+
+            @Override
+            public void onResourceUsageRequested() throws RemoteException {
+                mResourceUsageRequests++;
+                final Bundle usage = mResourceUsage;
+                if (usage != null) {
+                    getLoadSdkCallback().onResourceUsage(usage);
+                }
             }
         }
     }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.sdksandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+/** Unit tests for {@link SdkVerificationCache}. */
+@RunWith(JUnit4.class)
+public class SdkVerificationCacheUnitTest {
+
+    private static final SdkCodeVerifier.Result ALLOWED =
+            new SdkCodeVerifier.Result(SdkCodeVerifier.RESULT_ALLOWED, null);
+    private static final SdkCodeVerifier.Result DISALLOWED = new SdkCodeVerifier.Result(
+            SdkCodeVerifier.RESULT_DISALLOWED_API, "Ljava/lang/ProcessBuilder;");
+
+    @Rule
+    public final TemporaryFolder mTempDir = new TemporaryFolder();
+
+    @Test
+    public void testGet_resultsArePersisted() {
+        final File file = new File(mTempDir.getRoot(), "sdksandbox/cache");
+        final SdkVerificationCache cache = new SdkVerificationCache(file);
+        cache.put("hash1", ALLOWED);
+        cache.put("hash2", DISALLOWED);
+
+        final SdkVerificationCache reloaded = new SdkVerificationCache(file);
+
+        assertThat(reloaded.get("hash1").mCode).isEqualTo(SdkCodeVerifier.RESULT_ALLOWED);
+        assertThat(reloaded.get("hash2").mCode)
+                .isEqualTo(SdkCodeVerifier.RESULT_DISALLOWED_API);
+        assertThat(reloaded.get("hash2").mDetail).isEqualTo("Ljava/lang/ProcessBuilder;");
+        assertThat(reloaded.get("hash3")).isNull();
+        assertThat(reloaded.get(null)).isNull();
+    }
+
+    @Test
+    public void testPut_inconclusiveResultsAreNotKept() {
+        final SdkVerificationCache cache =
+                new SdkVerificationCache(new File(mTempDir.getRoot(), "cache"));
+        cache.put("hash1", new SdkCodeVerifier.Result(SdkCodeVerifier.RESULT_TIMED_OUT, null));
+        cache.put("hash2", new SdkCodeVerifier.Result(SdkCodeVerifier.RESULT_INVALID_APK, "?"));
+
+        assertThat(cache.get("hash1")).isNull();
+        assertThat(cache.get("hash2")).isNull();
+    }
+
+    @Test
+    public void testPut_leastRecentlyUsedIsEvicted() {
+        final File file = new File(mTempDir.getRoot(), "cache");
+        final SdkVerificationCache cache = new SdkVerificationCache(file, 2);
+        cache.put("hash1", ALLOWED);
+        cache.put("hash2", ALLOWED);
+        cache.get("hash1");
+        cache.put("hash3", ALLOWED);
+
+        final SdkVerificationCache reloaded = new SdkVerificationCache(file, 2);
+
+        assertThat(reloaded.get("hash1")).isNotNull();
+        assertThat(reloaded.get("hash2")).isNull();
+        assertThat(reloaded.get("hash3")).isNotNull();
+    }
+
+    @Test
+    public void testGet_corruptedFileIsIgnored() throws Exception {
+        final File file = new File(mTempDir.getRoot(), "cache");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not a cache\nhash1 0\n".getBytes());
+        }
+
+        final SdkVerificationCache cache = new SdkVerificationCache(file);
+
+        assertThat(cache.get("hash1")).isNull();
+    }
+
+    @Test
+    public void testGet_resultsOfPreviousVerifierAreIgnored() throws Exception {
+        final File file = new File(mTempDir.getRoot(), "cache");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(("version " + (SdkCodeVerifier.VERIFIER_VERSION - 1) + " "
+                    + Integer.toHexString(Arrays.hashCode(SdkCodeVerifier.DISALLOWED_APIS))
+                    + "\nhash1 0\n").getBytes());
+        }
+
+        final SdkVerificationCache cache = new SdkVerificationCache(file);
+
+        assertThat(cache.get("hash1")).isNull();
+    }
+}